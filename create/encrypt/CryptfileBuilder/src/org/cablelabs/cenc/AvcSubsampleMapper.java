@@ -0,0 +1,215 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cenc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.cablelabs.isobmff.Box;
+
+/**
+ * Splits AVC samples into clear and protected byte ranges (subsamples) as required by
+ * ISO/IEC 23001-7 for NAL structured video.
+ * <p>
+ * Samples are parsed as a sequence of length-prefixed NAL units using the NAL unit length
+ * size from the 'avcC' box of the sample entry.  The length prefix, NAL header and leading
+ * bytes of every NAL unit (enough to hold the slice header) are left in the clear.  Non-VCL
+ * NAL units (SPS, PPS, SEI, etc.) and very small slices are left entirely in the clear.  When
+ * block alignment is requested (AES-CBC), each protected range is shortened to a multiple of
+ * the AES block size and the remainder is added to the preceding clear range.
+ * <p>
+ * Results are kept in reusable arrays owned by the mapper, so mapping a sample performs no
+ * allocation once the arrays have grown large enough.  Instances are not thread-safe.
+ */
+class AvcSubsampleMapper {
+
+    private static final int BLOCK_SIZE = 16;
+
+    // Size of the fixed fields of a visual sample entry, which precede its child boxes
+    private static final int VISUAL_SAMPLE_ENTRY_SIZE = 78;
+
+    // Leading bytes of each VCL NAL unit (including the NAL header) that are never encrypted.
+    // Slice headers are not parsed, so this must be large enough to cover them
+    static final int CLEAR_LEADER = 32;
+
+    // VCL NAL units this size or smaller are left entirely in the clear
+    static final int MIN_PROTECTED_NAL_SIZE = 48;
+
+    // BytesOfClearData is a 16-bit field in each subsample entry
+    private static final int MAX_CLEAR_BYTES = 0xFFFF;
+
+    private int nalLengthSize;
+    private boolean blockAligned;
+
+    // Interleaved (clear, protected) byte counts for the last mapped sample
+    private int[] subsamples = new int[32];
+    private int count;
+
+    /**
+     * Create a new mapper
+     *
+     * @param nalLengthSize the size in bytes of the NAL unit length prefix (1, 2, or 4)
+     * @param blockAligned true if protected ranges must be a multiple of 16 bytes
+     */
+    AvcSubsampleMapper(int nalLengthSize, boolean blockAligned) {
+        if (nalLengthSize != 1 && nalLengthSize != 2 && nalLengthSize != 4)
+            throw new IllegalArgumentException("Invalid NAL unit length size: " + nalLengthSize);
+        this.nalLengthSize = nalLengthSize;
+        this.blockAligned = blockAligned;
+    }
+
+    /**
+     * Create a mapper for the given sample entry, if it describes AVC video
+     *
+     * @param entry the sample entry box (avc1 or avc3)
+     * @param blockAligned true if protected ranges must be a multiple of 16 bytes
+     * @return the mapper or null if the sample entry is not AVC
+     * @throws IOException if the sample entry is AVC but has no valid 'avcC' box
+     */
+    static AvcSubsampleMapper forSampleEntry(Box entry, boolean blockAligned) throws IOException {
+        if (!entry.getType().equals("avc1") && !entry.getType().equals("avc3"))
+            return null;
+
+        // Child boxes follow the 78 bytes of visual sample entry fields
+        ByteBuffer payload = ByteBuffer.wrap(entry.getPayload());
+        payload.position(Math.min(VISUAL_SAMPLE_ENTRY_SIZE, payload.limit()));
+        while (payload.remaining() >= Box.HEADER_SIZE) {
+            Box child = Box.read(payload);
+            if (child.getType().equals("avcC")) {
+                if (child.getPayload().length < 5)
+                    throw new IOException("Invalid 'avcC' box");
+                return new AvcSubsampleMapper((child.getPayload()[4] & 0x3) + 1, blockAligned);
+            }
+        }
+        throw new IOException("AVC sample entry is missing 'avcC' box");
+    }
+
+    /**
+     * Map a single sample.  The buffer's position and limit are not modified.
+     *
+     * @param sample buffer holding the sample from its position to its limit
+     * @return the number of subsamples
+     * @throws IOException if the sample is not a valid sequence of length-prefixed NAL units
+     */
+    int map(ByteBuffer sample) throws IOException {
+        count = 0;
+        int position = sample.position();
+        int end = sample.limit();
+        int clear = 0;
+
+        while (position < end) {
+            if (end - position < nalLengthSize)
+                throw new IOException("Truncated NAL unit length in sample");
+            int nalSize = 0;
+            for (int i = 0; i < nalLengthSize; i++)
+                nalSize = (nalSize << 8) | (sample.get(position + i) & 0xFF);
+            int nalStart = position + nalLengthSize;
+            if (nalSize < 0 || nalSize > end - nalStart)
+                throw new IOException("NAL unit size (" + nalSize + ") exceeds sample size");
+
+            int protect = 0;
+            int nalType = (nalSize > 0) ? sample.get(nalStart) & 0x1F : 0;
+            if (nalType >= 1 && nalType <= 5 && nalSize > MIN_PROTECTED_NAL_SIZE) {
+                protect = nalSize - CLEAR_LEADER;
+                if (blockAligned)
+                    protect -= protect % BLOCK_SIZE;
+            }
+
+            clear += nalLengthSize + nalSize - protect;
+            if (protect > 0) {
+                add(clear, protect);
+                clear = 0;
+            }
+            position = nalStart + nalSize;
+        }
+        if (clear > 0)
+            add(clear, 0);
+
+        return count;
+    }
+
+    // Append a subsample, splitting clear ranges that do not fit in 16 bits
+    private void add(int clear, int protect) {
+        while (clear > MAX_CLEAR_BYTES) {
+            append(MAX_CLEAR_BYTES, 0);
+            clear -= MAX_CLEAR_BYTES;
+        }
+        append(clear, protect);
+    }
+
+    private void append(int clear, int protect) {
+        if (count * 2 == subsamples.length) {
+            int[] grown = new int[subsamples.length * 2];
+            System.arraycopy(subsamples, 0, grown, 0, subsamples.length);
+            subsamples = grown;
+        }
+        subsamples[count * 2] = clear;
+        subsamples[count * 2 + 1] = protect;
+        count++;
+    }
+
+    /**
+     * Returns the number of subsamples in the last mapped sample
+     *
+     * @return the subsample count
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the number of clear bytes in a subsample of the last mapped sample
+     *
+     * @param index the subsample index
+     * @return the number of clear bytes
+     */
+    int getClearBytes(int index) {
+        return subsamples[index * 2];
+    }
+
+    /**
+     * Returns the number of protected bytes in a subsample of the last mapped sample
+     *
+     * @param index the subsample index
+     * @return the number of protected bytes
+     */
+    int getProtectedBytes(int index) {
+        return subsamples[index * 2 + 1];
+    }
+
+    /**
+     * Returns a copy of the subsamples of the last mapped sample as interleaved
+     * (clear, protected) byte counts
+     *
+     * @return the subsample ranges
+     */
+    int[] getSubsamples() {
+        int[] retVal = new int[count * 2];
+        System.arraycopy(subsamples, 0, retVal, 0, retVal.length);
+        return retVal;
+    }
+}
@@ -0,0 +1,1200 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cenc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.cablelabs.cryptfile.CryptTrack;
+import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.CryptfileBuilder.ProtectionScheme;
+import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.isobmff.Box;
+import org.cablelabs.isobmff.BoxReader;
+import org.cablelabs.isobmff.BoxWriter;
+import org.cablelabs.isobmff.MovieBox;
+import org.cablelabs.isobmff.MovieFragmentBox;
+import org.cablelabs.isobmff.TrackBox;
+import org.cablelabs.isobmff.TrackExtendsBox;
+import org.cablelabs.isobmff.TrackFragmentBox;
+import org.cablelabs.isobmff.TrackFragmentHeaderBox;
+import org.cablelabs.isobmff.TrackRunBox;
+
+/**
+ * Encrypts fragmented ISOBMFF files according to ISO/IEC 23001-7 (Common Encryption) using
+ * the same track, key, and PSSH definitions that are used to generate MP4Box cryptfiles.
+ * <p>
+ * The sample entries of each encrypted track are converted to protected sample entries
+ * (encv/enca) with the appropriate scheme and track encryption information, PSSH boxes are
+ * added to the movie box, and every movie fragment is given sample encryption (senc) and
+ * sample auxiliary information (saiz/saio) boxes describing the per-sample IVs.
+ * <p>
+ * Tracks with rolling keys switch keys every {@link CryptTrack#getKeyRoll()} samples, cycling
+ * through the track's key list.  Samples that are not encrypted with the first (default) key
+ * are mapped to 'seig' sample group descriptions with sample group (sgpd/sbgp) boxes in each
+ * track fragment.
+ * <p>
+ * Only metadata boxes are loaded into memory.  Media data is streamed from input to output
+ * one sample at a time, and boxes that need no changes are transferred directly between
+ * channels, so memory use does not depend on the size of the input file.
+ * <p>
+ * When the parallelism is greater than 1, the samples of each movie fragment are encrypted
+ * concurrently in a fork/join pool while the next fragment is being read.  Reading waits
+ * for the oldest fragment once two fragments per thread are in progress, so memory use stays
+ * bounded.  IVs and data offsets are always assigned in file order, so the output is identical
+ * to that of sequential encryption.
+ * <p>
+ * Files that reserve space for the encryption boxes can be encrypted in place with
+ * {@link #encryptInPlace(File)}, which memory-maps the file and never writes a second copy.
+ * <p>
+ * Live streams are encrypted incrementally by passing the initialization segment to
+ * {@link #encryptInitSegment(ByteBuffer)} once and then each fragment, as it arrives, to
+ * {@link #encryptFragment(ByteBuffer)}.  IV and key rotation state is carried from one
+ * fragment to the next.  The fragments of a stream may be encrypted on any thread, such as
+ * the workers of a thread pool, but one at a time and in order.
+ */
+public class CencEncryptor {
+
+    private ProtectionScheme scheme;
+    private Map<Integer, CryptTrack> tracks = new HashMap<Integer, CryptTrack>();
+    private List<DRMInfoPSSH> pssh;
+    private int parallelism = 1;
+
+    // Track states for incremental encryption, set by encryptInitSegment.  Volatile so that
+    // consecutive fragments may be encrypted on different threads
+    private volatile Map<Integer, TrackState> liveStates;
+
+    // Reusable buffer for reading samples from media data boxes
+    private ByteBuffer sampleBuffer;
+    private static final int MIN_SAMPLE_BUFFER = 64 * 1024;
+
+    // Adjacent samples are read and encrypted together, up to this many bytes at a time
+    private static final int MAX_SAMPLE_RUN = 1024 * 1024;
+
+    // Boxes in a track fragment that are replaced when encrypting in place
+    private static final Set<String> RESERVED_SPACE_TYPES = new HashSet<String>(Arrays.asList(
+            "senc", "saiz", "saio", "free", "skip"));
+
+    // senc flag indicating that each sample has subsample entries
+    private static final int SENC_USE_SUBSAMPLE_ENCRYPTION = 0x000002;
+
+    // Sample group type and the first fragment-local sample group description index
+    private static final String SEIG = "seig";
+    private static final int SAMPLE_GROUP_LOCAL_INDEX = 0x10000;
+
+    // Fragments with more samples than this are split into multiple fork/join tasks
+    private static final int SAMPLES_PER_TASK = 128;
+
+    // Maximum number of fragments still being encrypted while the next one is read, per
+    // thread.  Each one holds its samples until it completes
+    private static final int FRAGMENTS_PER_THREAD = 2;
+
+    // Encryption state for a single track
+    private static class TrackState {
+        CryptTrack track;   // null for clear tracks
+        byte[][] keys;
+        SampleCipher[] ciphers;
+        int keyRoll;
+        long sampleCount;
+        AvcSubsampleMapper mapper;
+        int perSampleIVSize;
+        int cryptBlocks;
+        int skipBlocks;
+        byte[] iv;
+        int defaultSampleSize;
+    }
+
+    // Location of a single sample to be encrypted
+    private static class Sample {
+        TrackState track;
+        long position;
+        int size;
+        int key;
+        byte[] iv;
+        int[] subsamples;
+    }
+
+    /**
+     * Create an encryptor for the tracks and PSSH described by the given cryptfile builder
+     *
+     * @param builder the cryptfile builder
+     */
+    public CencEncryptor(CryptfileBuilder builder) {
+        this(builder.getScheme(), builder.getTracks(), builder.getPSSH());
+    }
+
+    /**
+     * Create an encryptor
+     *
+     * @param scheme the desired encryption scheme
+     * @param tracks the track list.  Tracks that do not exist in a particular input file
+     * are ignored
+     * @param pssh the PSSH list
+     */
+    public CencEncryptor(ProtectionScheme scheme, List<CryptTrack> tracks, List<DRMInfoPSSH> pssh) {
+        if (scheme == null)
+            throw new IllegalArgumentException("Protection scheme may not be null");
+        this.scheme = scheme;
+        this.pssh = new ArrayList<DRMInfoPSSH>(pssh);
+        for (CryptTrack t : tracks) {
+            if (!t.isEncrypted())
+                continue;
+            if (t.isConstantIV() && scheme != ProtectionScheme.AES_CBCS)
+                throw new IllegalArgumentException("Constant IVs can only be used with " + ProtectionScheme.AES_CBCS +
+                                                   " (track " + t.getTrackID() + ")");
+            if (t.hasPattern() && scheme != ProtectionScheme.AES_CBCS)
+                throw new IllegalArgumentException("Encryption patterns can only be used with " + ProtectionScheme.AES_CBCS +
+                                                   " (track " + t.getTrackID() + ")");
+            if (scheme == ProtectionScheme.AES_CBCS && !(t.isConstantIV() && t.getIVSize() == CryptTrack.IV_SIZE_16))
+                throw new IllegalArgumentException(ProtectionScheme.AES_CBCS + " requires a " + CryptTrack.IV_SIZE_16 +
+                                                   "-byte constant IV (track " + t.getTrackID() + ")");
+            this.tracks.put(t.getTrackID(), t);
+        }
+    }
+
+    /**
+     * Set the number of threads used to encrypt samples.  The default is 1, which encrypts
+     * all samples on the calling thread.
+     *
+     * @param parallelism the number of encryption threads
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Encrypt a fragmented MP4 file
+     *
+     * @param input the clear input file
+     * @param output the encrypted output file
+     * @throws IOException if the input could not be read or is not a fragmented MP4 file, or
+     * the output could not be written
+     */
+    public void encrypt(File input, File output) throws IOException {
+        FileInputStream fis = new FileInputStream(input);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(output);
+            encrypt(fis.getChannel(), fos.getChannel());
+        }
+        finally {
+            fis.close();
+            if (fos != null)
+                fos.close();
+        }
+    }
+
+    /**
+     * Encrypt a fragmented MP4 file
+     *
+     * @param in channel for reading the clear input file
+     * @param out channel for writing the encrypted output file
+     * @throws IOException if the input could not be read or is not a fragmented MP4 file, or
+     * the output could not be written
+     */
+    public void encrypt(FileChannel in, FileChannel out) throws IOException {
+
+        Map<Integer, TrackState> states = null;
+        List<Sample> pending = new ArrayList<Sample>();
+        BoxReader reader = new BoxReader(in);
+        BoxWriter writer = new BoxWriter(out);
+
+        ForkJoinPool pool = null;
+        LinkedList<ForkJoinTask<Void>> tasks = new LinkedList<ForkJoinTask<Void>>();
+        if (parallelism > 1)
+            pool = new ForkJoinPool(parallelism);
+
+        try {
+            while (reader.next()) {
+                String type = reader.getType();
+                if (type.equals("moov")) {
+                    Box moov = reader.readBox();
+                    states = processMovie(new MovieBox(moov), false);
+                    writer.write(moov);
+                }
+                else if (type.equals("moof")) {
+                    if (states == null)
+                        throw new IOException("Movie fragment found before movie box");
+                    Box moof = reader.readBox();
+                    processFragment(reader, new MovieFragmentBox(moof), writer.getPosition(), states, pending, false);
+                    writer.write(moof);
+                }
+                else if (type.equals("sidx")) {
+                    throw new IOException("Segment index (sidx) boxes can not be updated.  Encrypt before DASH segmentation");
+                }
+                else if (type.equals("mfra")) {
+                    throw new IOException("Movie fragment random access (mfra) boxes can not be updated.  Encrypt in place " +
+                                          "or remove the 'mfra' box");
+                }
+                else if (type.equals("mdat") && !pending.isEmpty()) {
+                    if (pool == null) {
+                        encryptMediaData(reader, writer, pending);
+                    }
+                    else {
+                        // Copy the clear data now and let the pool overwrite the samples
+                        List<Sample> samples = takeSamples(reader, pending);
+                        long shift = writer.getPosition() - reader.getPosition();
+                        writer.copy(reader);
+                        tasks.add(pool.submit(new EncryptSamples(in, out, shift, samples, 0, samples.size())));
+                        if (tasks.size() > parallelism * FRAGMENTS_PER_THREAD)
+                            waitFor(tasks.removeFirst());
+                    }
+                }
+                else {
+                    writer.copy(reader);
+                }
+            }
+
+            while (!tasks.isEmpty())
+                waitFor(tasks.removeFirst());
+        }
+        finally {
+            if (pool != null)
+                pool.shutdownNow();
+        }
+
+        if (states == null)
+            throw new IOException("No movie box found in input file");
+        if (!pending.isEmpty())
+            throw new IOException("Sample data not found at offset " + pending.get(0).position);
+    }
+
+    /**
+     * Encrypt a fragmented MP4 file in place, without writing a second file.  The file must
+     * already reserve space for everything that encryption adds:
+     * <ul>
+     * <li>The movie box must be immediately followed by free space ('free' or 'skip' boxes)
+     * large enough to hold the protected sample entries and PSSH boxes</li>
+     * <li>Each track fragment of an encrypted track must contain 'senc', 'saiz', 'saio' and/or
+     * free space boxes whose total size is large enough to hold the sample encryption
+     * information.  These are replaced by the real boxes and any space left over is kept as a
+     * 'free' box</li>
+     * </ul>
+     * No box changes size, so sample data never moves and segment indexes stay valid.  The
+     * whole file is checked before anything is written, so a file without enough reserved
+     * space is left untouched.
+     *
+     * @param file the clear file, which is encrypted in place
+     * @throws IOException if the file could not be read or written, is not a fragmented MP4
+     * file, or does not reserve enough space
+     */
+    public void encryptInPlace(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            encryptInPlace(raf.getChannel());
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Encrypt a fragmented MP4 file in place.  See {@link #encryptInPlace(File)}.
+     *
+     * @param channel channel opened for reading and writing the file
+     * @throws IOException if the file could not be read or written, is not a fragmented MP4
+     * file, or does not reserve enough space
+     */
+    public void encryptInPlace(FileChannel channel) throws IOException {
+
+        Map<Integer, TrackState> states = null;
+        List<Sample> pending = new ArrayList<Sample>();
+        BoxReader reader = new BoxReader(channel);
+
+        // Metadata boxes to be rewritten, and the samples in each media data box
+        Map<Long, Box> boxes = new LinkedHashMap<Long, Box>();
+        Map<Long, List<Sample>> mediaData = new LinkedHashMap<Long, List<Sample>>();
+        Box moov = null;
+        long moovEnd = 0;
+        long moovSpace = 0;
+
+        // First pass: build all of the new metadata and check that it fits
+        while (reader.next()) {
+            String type = reader.getType();
+            if ((type.equals("free") || type.equals("skip")) && moov != null && reader.getPosition() == moovEnd) {
+                moovEnd += reader.getSize();
+                moovSpace += reader.getSize();
+            }
+            else if (type.equals("moov")) {
+                moov = reader.readBox();
+                moovEnd = reader.getPosition() + reader.getSize();
+                moovSpace = reader.getSize();
+                states = processMovie(new MovieBox(moov), false);
+                boxes.put(reader.getPosition(), moov);
+            }
+            else if (type.equals("moof")) {
+                if (states == null)
+                    throw new IOException("Movie fragment found before movie box");
+                Box moof = reader.readBox();
+                processFragment(reader, new MovieFragmentBox(moof), reader.getPosition(), states, pending, true);
+                if (moof.getSize() != reader.getSize())
+                    throw new IOException("Movie fragment at offset " + reader.getPosition() + " changed size");
+                boxes.put(reader.getPosition(), moof);
+            }
+            else if (type.equals("mdat") && !pending.isEmpty()) {
+                if (reader.getPayloadSize() > Integer.MAX_VALUE)
+                    throw new IOException("Media data box at offset " + reader.getPosition() +
+                                          " is too large to encrypt in place");
+                List<Sample> samples = takeSamples(reader, pending);
+                if (!samples.isEmpty())
+                    mediaData.put(reader.getPayloadPosition(), samples);
+            }
+        }
+
+        if (states == null)
+            throw new IOException("No movie box found in input file");
+        if (!pending.isEmpty())
+            throw new IOException("Sample data not found at offset " + pending.get(0).position);
+        fillReservedSpace(moov, moovSpace - moov.getSize());
+
+        // Second pass: patch the metadata and encrypt the samples
+        for (Map.Entry<Long, Box> e : boxes.entrySet()) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, e.getKey(), e.getValue().getSize());
+            e.getValue().write(buf);
+            buf.force();
+        }
+
+        ForkJoinPool pool = null;
+        List<ForkJoinTask<Void>> tasks = new ArrayList<ForkJoinTask<Void>>();
+        List<MappedByteBuffer> mapped = new ArrayList<MappedByteBuffer>();
+        if (parallelism > 1)
+            pool = new ForkJoinPool(parallelism);
+        try {
+            for (Map.Entry<Long, List<Sample>> e : mediaData.entrySet()) {
+                List<Sample> samples = e.getValue();
+                Sample last = samples.get(samples.size() - 1);
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, e.getKey(),
+                                                   last.position + last.size - e.getKey());
+                mapped.add(buf);
+                EncryptSamples task = new EncryptSamples(buf, e.getKey(), samples, 0, samples.size());
+                if (pool == null)
+                    task.encryptMapped();
+                else
+                    tasks.add(pool.submit(task));
+            }
+            for (ForkJoinTask<Void> task : tasks)
+                waitFor(task);
+        }
+        finally {
+            if (pool != null)
+                pool.shutdownNow();
+        }
+        for (MappedByteBuffer buf : mapped)
+            buf.force();
+    }
+
+    /**
+     * Start incremental encryption of a live stream by encrypting its initialization segment.
+     * Any stream previously started with this encryptor is ended.  The ciphers created for
+     * the stream belong to it rather than to the calling thread, so its fragments may be
+     * encrypted on other threads.
+     *
+     * @param init buffer holding the initialization segment (ftyp and moov boxes) from its
+     * position to its limit.  The buffer is not modified
+     * @return a new buffer holding the encrypted initialization segment
+     * @throws IOException if the segment is invalid or is not for a fragmented file
+     */
+    public ByteBuffer encryptInitSegment(ByteBuffer init) throws IOException {
+        liveStates = null;
+        Map<Integer, TrackState> states = null;
+        List<Box> boxes = new ArrayList<Box>();
+        long size = 0;
+
+        BoxReader reader = new BoxReader(init);
+        while (reader.next()) {
+            Box box = reader.readBox();
+            if (box.getType().equals("moov"))
+                states = processMovie(new MovieBox(box), true);
+            boxes.add(box);
+            size += box.getSize();
+        }
+        if (states == null)
+            throw new IOException("No movie box found in initialization segment");
+
+        ByteBuffer out = ByteBuffer.allocate((int)size);
+        for (Box box : boxes)
+            box.write(out);
+        out.flip();
+        liveStates = states;
+        return out;
+    }
+
+    /**
+     * Encrypt the next fragment of a live stream started with
+     * {@link #encryptInitSegment(ByteBuffer)}.  The fragment holds one or more movie fragments,
+     * each followed by its media data, and may include other boxes such as 'styp', 'prft' or
+     * 'emsg', which are copied unchanged.  Fragments must use movie fragment relative data
+     * offsets (no base data offsets in 'tfhd'), as CMAF requires.
+     * <p>
+     * Everything is done on the calling thread with the ciphers created for the initialization
+     * segment, so the added latency is little more than the time taken to encrypt the samples.
+     * Any thread may call this method, but calls for the same stream must not overlap: each
+     * fragment must be passed only after the previous call has returned, as a single-threaded
+     * executor or a per-stream lock would ensure.  If an exception is thrown, the stream must be
+     * started again.
+     *
+     * @param fragment buffer holding the fragment from its position to its limit.  The buffer is
+     * not modified
+     * @return a new buffer holding the encrypted fragment
+     * @throws IOException if the fragment is invalid
+     */
+    public ByteBuffer encryptFragment(ByteBuffer fragment) throws IOException {
+        if (liveStates == null)
+            throw new IllegalStateException("No live stream has been started with encryptInitSegment");
+        Map<Integer, TrackState> states = liveStates;
+        liveStates = null;
+
+        List<Sample> pending = new ArrayList<Sample>();
+        Map<Long, Box> moofs = new HashMap<Long, Box>();
+        Map<Long, List<Sample>> mediaData = new HashMap<Long, List<Sample>>();
+        long size = 0;
+
+        // First pass: rewrite the movie fragments and find the samples in each media data box
+        BoxReader reader = new BoxReader(fragment);
+        while (reader.next()) {
+            String type = reader.getType();
+            if (type.equals("moof")) {
+                Box moof = reader.readBox();
+                MovieFragmentBox view = new MovieFragmentBox(moof);
+                for (TrackFragmentBox traf : view.getTrackFragments()) {
+                    if (traf.getBox().getChild("tfhd") != null && traf.getHeader().hasBaseDataOffset())
+                        throw new IOException("Base data offsets are not supported in live fragments");
+                }
+                processFragment(reader, view, size, states, pending, false);
+                moofs.put(reader.getPosition(), moof);
+                size += moof.getSize();
+            }
+            else {
+                if (type.equals("sidx"))
+                    throw new IOException("Segment index (sidx) boxes can not be updated.  Encrypt before DASH segmentation");
+                if (type.equals("mfra"))
+                    throw new IOException("Movie fragment random access (mfra) boxes can not be updated");
+                if (type.equals("mdat") && !pending.isEmpty())
+                    mediaData.put(reader.getPosition(), takeSamples(reader, pending));
+                size += reader.getSize();
+            }
+        }
+        if (!pending.isEmpty())
+            throw new IOException("Sample data not found at offset " + pending.get(0).position);
+
+        // Second pass: write the new fragment and encrypt the samples in the copied media data
+        ByteBuffer out = ByteBuffer.allocate((int)size);
+        reader = new BoxReader(fragment);
+        while (reader.next()) {
+            long outPosition = out.position();
+            Box moof = moofs.get(reader.getPosition());
+            if (moof != null) {
+                moof.write(out);
+                continue;
+            }
+            out.limit((int)(outPosition + reader.getSize()));
+            reader.read(out, reader.getPosition());
+            out.limit(out.capacity());
+
+            List<Sample> samples = mediaData.get(reader.getPosition());
+            if (samples != null && !samples.isEmpty())
+                encryptSamples(samples, 0, samples.size(), out, reader.getPosition() - outPosition, null);
+        }
+        out.flip();
+
+        liveStates = states;
+        return out;
+    }
+
+    // Convert protected sample entries and add PSSH.  Returns the states of all tracks.  Clear
+    // tracks have no CryptTrack.  The track ciphers of live streams are unshared, since their
+    // fragments may be encrypted on any thread
+    private Map<Integer, TrackState> processMovie(MovieBox moov, boolean live) throws IOException {
+        Map<Integer, TrackState> states = new HashMap<Integer, TrackState>();
+
+        if (!moov.isFragmented())
+            throw new IOException("Input file is not fragmented (no 'mvex' box found)");
+
+        for (TrackBox trak : moov.getTracks()) {
+            if (trak.getBox().getChild("tkhd") == null)
+                throw new IOException("Track is missing 'tkhd' box");
+            int trackID = trak.getHeader().getTrackID();
+
+            // Clear tracks only need their default sample size, to locate the data of the
+            // track fragments that follow theirs
+            TrackState state = new TrackState();
+            TrackExtendsBox trex = moov.getTrackExtends(trackID);
+            if (trex != null)
+                state.defaultSampleSize = trex.getDefaultSampleSize();
+            states.put(trackID, state);
+
+            CryptTrack track = tracks.get(trackID);
+            if (track == null)
+                continue;
+
+            state.track = track;
+            state.iv = track.getIV().clone();
+            state.keys = new byte[track.getKeyCount()][];
+            for (int i = 0; i < state.keys.length; i++)
+                state.keys[i] = track.getKey(i).getKeyPair().getKey();
+            state.keyRoll = (state.keys.length > 1) ? track.getKeyRoll() : 0;
+            state.perSampleIVSize = track.isConstantIV() ? 0 : track.getIVSize();
+
+            state.cryptBlocks = track.getCryptByteBlock();
+            state.skipBlocks = track.getSkipByteBlock();
+            state.ciphers = new SampleCipher[state.keys.length];
+            for (int i = 0; i < state.ciphers.length; i++)
+                state.ciphers[i] = newCipher(state, i, live);
+            state.mapper = protectSampleEntries(trak, state);
+        }
+
+        for (DRMInfoPSSH p : pssh) {
+            moov.getBox().addChild(Box.read(ByteBuffer.wrap(p.generatePSSH())));
+        }
+
+        return states;
+    }
+
+    // Rename each sample entry to its protected form and append a 'sinf' box.  Returns a
+    // subsample mapper if the track is AVC video
+    private AvcSubsampleMapper protectSampleEntries(TrackBox trak, TrackState state) throws IOException {
+        CryptTrack track = state.track;
+        String handler = trak.getHandlerType();
+        Box stsd = trak.getSampleDescription();
+        if (handler == null || stsd == null)
+            throw new IOException("Track " + track.getTrackID() + " is missing 'hdlr' or 'stsd' box");
+
+        String protectedType = "enct";
+        if (handler.equals("vide"))
+            protectedType = "encv";
+        else if (handler.equals("soun"))
+            protectedType = "enca";
+
+        // stsd is a full box with an entry count followed by the sample entries
+        ByteBuffer stsdData = ByteBuffer.wrap(stsd.getPayload());
+        int entryCount = stsdData.getInt(4);
+        stsdData.position(8);
+        List<Box> entries = new ArrayList<Box>(entryCount);
+        AvcSubsampleMapper mapper = null;
+        long size = 8;
+        for (int i = 0; i < entryCount; i++) {
+            Box entry = Box.read(stsdData);
+            if (mapper == null)
+                mapper = AvcSubsampleMapper.forSampleEntry(entry, scheme != ProtectionScheme.AES_CTR);
+            byte[] sinf = sinf(state, entry.getType()).toByteArray();
+            byte[] payload = new byte[entry.getPayload().length + sinf.length];
+            System.arraycopy(entry.getPayload(), 0, payload, 0, entry.getPayload().length);
+            System.arraycopy(sinf, 0, payload, entry.getPayload().length, sinf.length);
+            entry.setPayload(payload);
+            entry.setType(protectedType);
+            entries.add(entry);
+            size += entry.getSize();
+        }
+
+        ByteBuffer newStsd = ByteBuffer.allocate((int)size);
+        newStsd.put(stsd.getPayload(), 0, 8);
+        for (Box entry : entries)
+            entry.write(newStsd);
+        stsd.setPayload(newStsd.array());
+
+        return mapper;
+    }
+
+    // Build the protection scheme information box for the given original format
+    private Box sinf(TrackState state, String originalFormat) {
+        CryptTrack track = state.track;
+        Box sinf = new Box("sinf");
+        sinf.addChild(new Box("frma", Box.fourCC(originalFormat)));
+
+        ByteBuffer schm = ByteBuffer.allocate(12);
+        schm.putInt(0);
+        schm.put(Box.fourCC(scheme.getSchemeType()));
+        schm.putInt(0x00010000);
+        sinf.addChild(new Box("schm", schm.array()));
+
+        // Version 1 carries the encryption pattern.  Constant IVs follow the key ID
+        int constantIVSize = track.isConstantIV() ? track.getIVSize() : 0;
+        ByteBuffer tenc = ByteBuffer.allocate(24 + ((constantIVSize > 0) ? 1 + constantIVSize : 0));
+        tenc.putInt((scheme == ProtectionScheme.AES_CBCS) ? 0x01000000 : 0);
+        putEncryptionInfo(tenc, state, 0);
+        Box schi = new Box("schi");
+        schi.addChild(new Box("tenc", tenc.array()));
+        sinf.addChild(schi);
+
+        return sinf;
+    }
+
+    // Write the default encryption information shared by the track encryption box and 'seig'
+    // sample group entries for the given key
+    private static void putEncryptionInfo(ByteBuffer buf, TrackState state, int key) {
+        CryptTrack track = state.track;
+        buf.put((byte)0);
+        buf.put((byte)((state.cryptBlocks << 4) | state.skipBlocks));
+        buf.put((byte)1);
+        buf.put((byte)state.perSampleIVSize);
+        buf.put(track.getKey(key).getKeyPair().getID());
+        if (track.isConstantIV()) {
+            buf.put((byte)track.getIVSize());
+            buf.put(track.getIV());
+        }
+    }
+
+    // Build the 'seig' sample group description and sample-to-group boxes for a track fragment
+    // of a track with rolling keys.  Samples encrypted with the first key use the defaults in
+    // the track encryption box.  Every other key used by the fragment gets a fragment-local
+    // group description.
+    private static Box[] sampleGroups(TrackState state, List<Sample> samples) {
+        int[] groups = new int[state.keys.length];
+        List<Integer> keys = new ArrayList<Integer>();
+        int runs = 0;
+        for (int i = 0; i < samples.size(); i++) {
+            int key = samples.get(i).key;
+            if (key != 0 && groups[key] == 0) {
+                keys.add(key);
+                groups[key] = SAMPLE_GROUP_LOCAL_INDEX + keys.size();
+            }
+            if (i == 0 || key != samples.get(i - 1).key)
+                runs++;
+        }
+        if (keys.isEmpty())
+            return new Box[0];
+
+        // Version 1 with a default entry length, since every entry has the same size
+        int entrySize = 20 + (state.track.isConstantIV() ? 1 + state.track.getIVSize() : 0);
+        ByteBuffer sgpd = ByteBuffer.allocate(16 + keys.size() * entrySize);
+        sgpd.putInt(0x01000000);
+        sgpd.put(Box.fourCC(SEIG));
+        sgpd.putInt(entrySize);
+        sgpd.putInt(keys.size());
+        for (int key : keys)
+            putEncryptionInfo(sgpd, state, key);
+
+        ByteBuffer sbgp = ByteBuffer.allocate(12 + runs * 8);
+        sbgp.putInt(0);
+        sbgp.put(Box.fourCC(SEIG));
+        sbgp.putInt(runs);
+        for (int i = 0; i < samples.size(); ) {
+            int key = samples.get(i).key;
+            int count = 1;
+            while (i + count < samples.size() && samples.get(i + count).key == key)
+                count++;
+            sbgp.putInt(count);
+            sbgp.putInt(groups[key]);
+            i += count;
+        }
+
+        return new Box[] { new Box("sgpd", sgpd.array()), new Box("sbgp", sbgp.array()) };
+    }
+
+    // Add sample encryption information to each encrypted track fragment, fix up data
+    // offsets, and record the location of each sample to be encrypted.  When encrypting in place,
+    // the new boxes replace the space reserved in each track fragment so that the size of the
+    // movie fragment does not change.
+    private void processFragment(BoxReader reader, MovieFragmentBox moof, long outPosition,
+            Map<Integer, TrackState> states, List<Sample> pending, boolean inPlace) throws IOException {
+
+        long inPosition = reader.getPosition();
+        long originalSize = moof.getBox().getSize();
+        List<TrackFragmentBox> trafs = moof.getTrackFragments();
+        long[] bases = new long[trafs.size()];
+        List<TrackFragmentBox> encryptedTrafs = new ArrayList<TrackFragmentBox>();
+
+        long previousEnd = -1;
+        for (int t = 0; t < trafs.size(); t++) {
+            TrackFragmentBox traf = trafs.get(t);
+            if (traf.getBox().getChild("tfhd") == null)
+                throw new IOException("Track fragment is missing 'tfhd' box");
+            TrackFragmentHeaderBox tfhd = traf.getHeader();
+            TrackState state = states.get(tfhd.getTrackID());
+            boolean encrypted = (state != null && state.track != null);
+
+            // A track fragment without a base data offset may follow on from the data of
+            // the previous one, so the data of clear tracks is located too
+            long base = tfhd.getBaseDataOffset(inPosition, previousEnd);
+            int defaultSize = tfhd.getDefaultSampleSize((state == null) ? 0 : state.defaultSampleSize);
+            bases[t] = base;
+
+            // Locate every sample in this track fragment
+            List<Sample> samples = new ArrayList<Sample>();
+            long dataPosition = base;
+            for (TrackRunBox trun : traf.getRuns()) {
+                if (trun.hasDataOffset())
+                    dataPosition = base + trun.getDataOffset();
+                for (int size : trun.getSampleSizes(defaultSize)) {
+                    if (!encrypted) {
+                        dataPosition += size;
+                        continue;
+                    }
+                    Sample s = new Sample();
+                    s.track = state;
+                    s.position = dataPosition;
+                    s.size = size;
+                    if (state.keyRoll > 0)
+                        s.key = (int)(state.sampleCount / state.keyRoll % state.keys.length);
+                    state.sampleCount++;
+                    if (state.track.isConstantIV()) {
+                        s.iv = state.iv;
+                    }
+                    else {
+                        s.iv = state.iv.clone();
+                        nextIV(state.iv, s.size);
+                    }
+                    if (state.mapper != null) {
+                        state.mapper.map(readSample(reader, s));
+                        s.subsamples = state.mapper.getSubsamples();
+                    }
+                    dataPosition += s.size;
+                    samples.add(s);
+                }
+            }
+            previousEnd = dataPosition;
+            if (!encrypted)
+                continue;
+            pending.addAll(samples);
+            long reserved = inPlace ? removeReservedSpace(traf.getBox()) : 0;
+
+            // Key rotation is signalled with sample groups in each track fragment
+            if (state.keyRoll > 0) {
+                for (Box b : sampleGroups(state, samples)) {
+                    traf.getBox().addChild(b);
+                    reserved -= b.getSize();
+                }
+            }
+
+            // Sample encryption box (version 0) and the size of each sample's entry
+            int ivSize = state.perSampleIVSize;
+            int[] infoSizes = new int[samples.size()];
+            int sencSize = 8;
+            boolean constantSize = true;
+            for (int i = 0; i < infoSizes.length; i++) {
+                int[] subsamples = samples.get(i).subsamples;
+                infoSizes[i] = ivSize + ((subsamples == null) ? 0 : 2 + subsamples.length / 2 * 6);
+                if (infoSizes[i] > 0xFF)
+                    throw new IOException("Too many subsamples (" + subsamples.length / 2 + ") in sample at offset " +
+                                          samples.get(i).position);
+                constantSize &= (infoSizes[i] == infoSizes[0]);
+                sencSize += infoSizes[i];
+            }
+
+            // Nothing to signal for constant IVs without subsamples
+            if (sencSize == 8) {
+                if (inPlace)
+                    fillReservedSpace(traf.getBox(), reserved);
+                continue;
+            }
+
+            ByteBuffer senc = ByteBuffer.allocate(sencSize);
+            senc.putInt((state.mapper != null) ? SENC_USE_SUBSAMPLE_ENCRYPTION : 0);
+            senc.putInt(samples.size());
+            for (Sample s : samples) {
+                if (ivSize > 0)
+                    senc.put(s.iv);
+                if (s.subsamples != null) {
+                    senc.putShort((short)(s.subsamples.length / 2));
+                    for (int i = 0; i < s.subsamples.length; i += 2) {
+                        senc.putShort((short)s.subsamples[i]);
+                        senc.putInt(s.subsamples[i + 1]);
+                    }
+                }
+            }
+
+            // Sample auxiliary information sizes.  A single default size is used when all
+            // samples have the same size
+            ByteBuffer saiz = ByteBuffer.allocate(9 + (constantSize ? 0 : infoSizes.length));
+            saiz.putInt(0);
+            saiz.put((byte)(constantSize && infoSizes.length > 0 ? infoSizes[0] : 0));
+            saiz.putInt(samples.size());
+            if (!constantSize) {
+                for (int infoSize : infoSizes)
+                    saiz.put((byte)infoSize);
+            }
+
+            // Sample auxiliary information offsets (filled in below)
+            ByteBuffer saio = ByteBuffer.allocate(12);
+            saio.putInt(0);
+            saio.putInt(1);
+            saio.putInt(0);
+
+            Box[] added = { new Box("saiz", saiz.array()), new Box("saio", saio.array()),
+                            new Box("senc", senc.array()) };
+            for (Box b : added) {
+                traf.getBox().addChild(b);
+                reserved -= b.getSize();
+            }
+            if (inPlace)
+                fillReservedSpace(traf.getBox(), reserved);
+            encryptedTrafs.add(traf);
+        }
+
+        // Samples move by the growth of this box and all previously written data.  Data
+        // offsets from the start of this box, or from a base before it, grow with the box.
+        // Bases after it move with the samples
+        long delta = moof.getBox().getSize() - originalSize;
+        long shift = outPosition - inPosition;
+        long[] outBases = new long[trafs.size()];
+        for (int i = 0; i < trafs.size(); i++) {
+            TrackFragmentBox traf = trafs.get(i);
+            if (bases[i] > inPosition) {
+                outBases[i] = bases[i] + shift + delta;
+            }
+            else {
+                outBases[i] = bases[i] + shift;
+                for (TrackRunBox trun : traf.getRuns()) {
+                    if (trun.hasDataOffset())
+                        trun.setDataOffset((int)(trun.getDataOffset() + delta));
+                }
+            }
+            if (traf.getHeader().hasBaseDataOffset())
+                traf.getHeader().setBaseDataOffset(outBases[i]);
+        }
+
+        // Point each saio at the first IV in its senc box, relative to the same base as the
+        // track fragment's data offsets
+        for (TrackFragmentBox traf : encryptedTrafs) {
+            long offset = outPosition + moof.getBox().getOffset(traf.getBox().getChild("senc")) +
+                          Box.HEADER_SIZE + 8 - outBases[trafs.indexOf(traf)];
+            if (offset < 0 || offset > 0xFFFFFFFFL)
+                throw new IOException("Sample encryption box for track " + traf.getHeader().getTrackID() +
+                                      " at offset " + inPosition + " is not addressable from the track fragment's base");
+            ByteBuffer.wrap(traf.getBox().getChild("saio").getPayload()).putInt(8, (int)offset);
+        }
+    }
+
+    // Remove the boxes that reserve space for sample encryption information from a track
+    // fragment and return their total size
+    private static long removeReservedSpace(Box traf) {
+        long reserved = 0;
+        Iterator<Box> it = traf.getChildren().iterator();
+        while (it.hasNext()) {
+            Box b = it.next();
+            if (RESERVED_SPACE_TYPES.contains(b.getType())) {
+                reserved += b.getSize();
+                it.remove();
+            }
+        }
+        return reserved;
+    }
+
+    // Fill unused reserved space in a container with a free space box
+    private static void fillReservedSpace(Box container, long space) throws IOException {
+        if (space == 0)
+            return;
+        if (space < Box.HEADER_SIZE)
+            throw new IOException("Not enough space reserved for '" + container.getType() + "' box (" +
+                                  ((space < 0) ? -space + " bytes short" : space + " bytes left over") + ")");
+        container.addChild(new Box("free", new byte[(int)(space - Box.HEADER_SIZE)]));
+    }
+
+    // Create a new cipher for one of the keys of the given track
+    private SampleCipher newCipher(TrackState state, int key, boolean unshared) throws IOException {
+        try {
+            if (unshared)
+                return SampleCipher.unshared(scheme, state.keys[key], state.cryptBlocks, state.skipBlocks);
+            return new SampleCipher(scheme, state.keys[key], state.cryptBlocks, state.skipBlocks);
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException("Could not create cipher for track " + state.track.getTrackID() + ": " +
+                                  e.getMessage(), e);
+        }
+    }
+
+    // Advance the initialization vector past a sample of the given size.  8-byte IVs are
+    // incremented by one for every sample.  16-byte IVs are advanced by the number of AES blocks
+    // in the sample so that counter blocks are never reused.
+    private static void nextIV(byte[] iv, int sampleSize) {
+        long increment = (iv.length == CryptTrack.IV_SIZE_8) ? 1 : SampleCipher.blockCount(sampleSize);
+        for (int i = iv.length - 1; i >= 0 && increment != 0; i--) {
+            long sum = (iv[i] & 0xFF) + (increment & 0xFF);
+            iv[i] = (byte)sum;
+            increment = (increment >>> 8) + (sum >>> 8);
+        }
+    }
+
+    // Copy the current media data box to the output, encrypting all pending samples found
+    // in it.  Only one run of adjacent samples is held in memory at a time.
+    private void encryptMediaData(BoxReader reader, BoxWriter writer, List<Sample> pending)
+            throws IOException {
+        FileChannel in = reader.getChannel();
+        long position = reader.getPayloadPosition();
+        long end = reader.getPosition() + reader.getSize();
+        List<Sample> samples = takeSamples(reader, pending);
+
+        writer.transfer(in, reader.getPosition(), reader.getHeaderSize());
+        for (int i = 0; i < samples.size(); ) {
+            Sample first = samples.get(i);
+            if (first.position < position)
+                throw new IOException("Overlapping samples at offset " + first.position);
+            writer.transfer(in, position, first.position - position);
+
+            int count = runLength(samples, i);
+            int size = runSize(samples, i, count);
+            if (sampleBuffer == null || sampleBuffer.capacity() < size)
+                sampleBuffer = ByteBuffer.allocateDirect(Math.max(size, MIN_SAMPLE_BUFFER));
+            sampleBuffer.clear();
+            sampleBuffer.limit(size);
+            reader.read(sampleBuffer, first.position);
+            sampleBuffer.flip();
+            encryptSamples(samples, i, i + count, sampleBuffer, first.position, null);
+            writer.write(sampleBuffer);
+
+            position = first.position + size;
+            i += count;
+        }
+        writer.transfer(in, position, end - position);
+    }
+
+    // Returns the number of samples starting at the given index that are adjacent to each
+    // other in the file and fit in a single run buffer (always at least 1)
+    private static int runLength(List<Sample> samples, int from) {
+        Sample prev = samples.get(from);
+        long size = prev.size;
+        int count = 1;
+        for (int i = from + 1; i < samples.size(); i++) {
+            Sample s = samples.get(i);
+            if (s.position != prev.position + prev.size || size + s.size > MAX_SAMPLE_RUN)
+                break;
+            size += s.size;
+            count++;
+            prev = s;
+        }
+        return count;
+    }
+
+    // Returns the number of bytes spanned by a run of adjacent samples
+    private static int runSize(List<Sample> samples, int from, int count) {
+        Sample last = samples.get(from + count - 1);
+        return (int)(last.position + last.size - samples.get(from).position);
+    }
+
+    // Encrypt samples held in a buffer.  Small CTR samples are batched so that their keystream
+    // is generated together.  Ciphers are taken from the given map, which is filled in as
+    // needed, or from the track states if the map is null.  Each track has one cipher per key,
+    // so key rotation only switches between existing ciphers.
+    private void encryptSamples(List<Sample> samples, int from, int to, ByteBuffer data, long dataPosition,
+            Map<TrackState, SampleCipher[]> ciphers) throws IOException {
+        List<SampleCipher> used = new ArrayList<SampleCipher>(2);
+        try {
+            for (int i = from; i < to; i++) {
+                Sample s = samples.get(i);
+                SampleCipher[] trackCiphers = s.track.ciphers;
+                if (ciphers != null) {
+                    trackCiphers = ciphers.get(s.track);
+                    if (trackCiphers == null) {
+                        trackCiphers = new SampleCipher[s.track.keys.length];
+                        ciphers.put(s.track, trackCiphers);
+                    }
+                    if (trackCiphers[s.key] == null)
+                        trackCiphers[s.key] = newCipher(s.track, s.key, false);
+                }
+                SampleCipher cipher = trackCiphers[s.key];
+                if (!used.contains(cipher))
+                    used.add(cipher);
+                cipher.queue(s.iv, data, (int)(s.position - dataPosition), s.size, s.subsamples);
+            }
+            for (SampleCipher cipher : used)
+                cipher.flush();
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException("Could not encrypt sample: " + e.getMessage(), e);
+        }
+    }
+
+    // Read a sample into the reusable sample buffer
+    private ByteBuffer readSample(BoxReader reader, Sample s) throws IOException {
+        if (sampleBuffer == null || sampleBuffer.capacity() < s.size)
+            sampleBuffer = ByteBuffer.allocateDirect(Math.max(s.size, MIN_SAMPLE_BUFFER));
+        sampleBuffer.clear();
+        sampleBuffer.limit(s.size);
+        reader.read(sampleBuffer, s.position);
+        sampleBuffer.flip();
+        return sampleBuffer;
+    }
+
+    // Remove all pending samples that lie within the current media data box and return them
+    // sorted by file offset
+    private static List<Sample> takeSamples(BoxReader reader, List<Sample> pending) {
+        long start = reader.getPayloadPosition();
+        long end = reader.getPosition() + reader.getSize();
+
+        List<Sample> samples = new ArrayList<Sample>();
+        Iterator<Sample> it = pending.iterator();
+        while (it.hasNext()) {
+            Sample s = it.next();
+            if (s.position >= start && s.position + s.size <= end) {
+                samples.add(s);
+                it.remove();
+            }
+        }
+        Collections.sort(samples, new Comparator<Sample>() {
+            public int compare(Sample a, Sample b) {
+                return (a.position < b.position) ? -1 : ((a.position == b.position) ? 0 : 1);
+            }
+        });
+        return samples;
+    }
+
+    // Wait for a fork/join task to complete and return its result, rethrowing any I/O error
+    // it encountered
+    static <T> T waitFor(ForkJoinTask<T> task) throws IOException {
+        try {
+            return task.get();
+        }
+        catch (InterruptedException e) {
+            throw new IOException("Interrupted while encrypting", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            while (cause != null && !(cause instanceof IOException))
+                cause = cause.getCause();
+            if (cause != null)
+                throw (IOException)cause;
+            throw new IOException("Encryption failed: " + e.getCause(), e.getCause());
+        }
+    }
+
+    // Encrypts a range of samples.  Samples are either read from the input and written at the
+    // same offset in the output plus the given shift (after the clear data has been copied), or
+    // encrypted in place within a memory-mapped region of the file.  Large ranges are split in
+    // half and encrypted concurrently.
+    private class EncryptSamples extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private FileChannel in;
+        private FileChannel out;
+        private long shift;
+        private ByteBuffer mapped;
+        private long mappedPosition;
+        private List<Sample> samples;
+        private int from;
+        private int to;
+
+        EncryptSamples(FileChannel in, FileChannel out, long shift, List<Sample> samples, int from, int to) {
+            this.in = in;
+            this.out = out;
+            this.shift = shift;
+            this.samples = samples;
+            this.from = from;
+            this.to = to;
+        }
+
+        EncryptSamples(ByteBuffer mapped, long mappedPosition, List<Sample> samples, int from, int to) {
+            this.mapped = mapped;
+            this.mappedPosition = mappedPosition;
+            this.samples = samples;
+            this.from = from;
+            this.to = to;
+        }
+
+        // Create a task for part of the parent's range
+        private EncryptSamples(EncryptSamples parent, int from, int to) {
+            this.in = parent.in;
+            this.out = parent.out;
+            this.shift = parent.shift;
+            this.mapped = parent.mapped;
+            this.mappedPosition = parent.mappedPosition;
+            this.samples = parent.samples;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SAMPLES_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new EncryptSamples(this, from, mid), new EncryptSamples(this, mid, to));
+                return;
+            }
+            try {
+                if (mapped != null)
+                    encryptMapped();
+                else
+                    encrypt();
+            }
+            catch (IOException e) {
+                throw new EncryptionException(e);
+            }
+        }
+
+        private void encryptMapped() throws IOException {
+            encryptSamples(samples, from, to, mapped.duplicate(), mappedPosition,
+                           new HashMap<TrackState, SampleCipher[]>());
+        }
+
+        private void encrypt() throws IOException {
+            // Ciphers are not thread-safe, so each task uses its own
+            Map<TrackState, SampleCipher[]> ciphers = new HashMap<TrackState, SampleCipher[]>();
+            ByteBuffer buf = null;
+            for (int i = from; i < to; ) {
+                Sample first = samples.get(i);
+                int count = Math.min(runLength(samples, i), to - i);
+                int size = runSize(samples, i, count);
+                if (buf == null || buf.capacity() < size)
+                    buf = ByteBuffer.allocate(size);
+                buf.clear();
+                buf.limit(size);
+                while (buf.hasRemaining()) {
+                    if (in.read(buf, first.position + buf.position()) < 0)
+                        throw new IOException("Unexpected end of file at offset " + first.position);
+                }
+                buf.flip();
+                encryptSamples(samples, i, i + count, buf, first.position, ciphers);
+                while (buf.hasRemaining())
+                    out.write(buf, first.position + shift + buf.position());
+                i += count;
+            }
+        }
+    }
+
+    // Carries I/O errors out of fork/join tasks
+    private static class EncryptionException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        EncryptionException(IOException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,904 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cenc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.cablelabs.cmdline.CmdLine;
+import org.cablelabs.cryptfile.CryptKey;
+import org.cablelabs.cryptfile.CryptTrack;
+import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.CryptfileBuilder.ProtectionScheme;
+import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.isobmff.Box;
+import org.cablelabs.isobmff.BoxReader;
+import org.cablelabs.isobmff.MovieBox;
+import org.cablelabs.isobmff.MovieFragmentBox;
+import org.cablelabs.isobmff.TrackBox;
+import org.cablelabs.isobmff.TrackExtendsBox;
+import org.cablelabs.isobmff.TrackFragmentBox;
+import org.cablelabs.isobmff.TrackFragmentHeaderBox;
+import org.cablelabs.isobmff.TrackRunBox;
+
+/**
+ * Checks that a file encrypted with Common Encryption decrypts to its clear source using the
+ * tracks and keys from a cryptfile.
+ * <p>
+ * The protection of each track is read from the encrypted file itself (scheme, default key ID,
+ * IVs, subsamples and 'seig' sample groups), so files encrypted by MP4Box and by
+ * {@link CencEncryptor} can both be checked.  Every sample of a track that the cryptfile
+ * encrypts must be protected with the scheme of the cryptfile and one of the key IDs of that
+ * track.  Every sample of the encrypted file is decrypted and compared with the sample at the
+ * same position in the clear file.  Both files must have the same movie fragments and samples.
+ * <p>
+ * Only the movie and movie fragment boxes are loaded into memory.  The samples of each movie
+ * fragment are read, decrypted and compared as a unit, and fragments are verified
+ * concurrently when the parallelism is greater than 1.
+ */
+public class CencVerifier {
+
+    private ProtectionScheme scheme;
+    private Map<ByteBuffer, byte[]> keys = new HashMap<ByteBuffer, byte[]>();
+
+    // Key IDs of each track that the cryptfile encrypts
+    private Map<Integer, Set<ByteBuffer>> encryptedTracks = new HashMap<Integer, Set<ByteBuffer>>();
+    private int parallelism = 1;
+
+    // Only the first mismatches are kept for the report.  All of them are counted
+    private static final int MAX_REPORTED_MISMATCHES = 100;
+
+    // Maximum number of fragments read ahead of the oldest fragment still being verified,
+    // per thread
+    private static final int FRAGMENTS_PER_THREAD = 2;
+
+    // senc flag indicating that each sample has subsample entries
+    private static final int SENC_USE_SUBSAMPLE_ENCRYPTION = 0x000002;
+
+    // Sample group type and the first fragment-local sample group description index
+    private static final String SEIG = "seig";
+    private static final int SAMPLE_GROUP_LOCAL_INDEX = 0x10000;
+
+    // Encryption parameters from a track encryption box or 'seig' sample group entry
+    private static class EncryptionInfo {
+        boolean isProtected;
+        int cryptBlocks;
+        int skipBlocks;
+        int perSampleIVSize;
+        byte[] kid;
+        byte[] constantIV;
+    }
+
+    // Protection of a single track
+    private static class TrackInfo {
+        int trackID;
+        Set<ByteBuffer> kids;
+        ProtectionScheme scheme;
+        EncryptionInfo defaults;
+        List<EncryptionInfo> groups = new ArrayList<EncryptionInfo>();
+        int clearDefaultSize;
+        int defaultSize;
+        long sampleCount;
+    }
+
+    // A single sample in both files
+    private static class Sample {
+        TrackInfo track;
+        long number;
+        long clearPosition;
+        int clearSize;
+        long position;
+        int size;
+        EncryptionInfo info;
+        byte[] iv;
+        int[] subsamples;
+    }
+
+    /**
+     * A sample that did not match its clear source
+     */
+    public static class Mismatch {
+
+        private int trackID;
+        private long sampleNumber;
+        private long position;
+        private String reason;
+
+        Mismatch(Sample s, String reason) {
+            this.trackID = s.track.trackID;
+            this.sampleNumber = s.number;
+            this.position = s.position;
+            this.reason = reason;
+        }
+
+        /**
+         * Returns the ID of the track containing the sample
+         *
+         * @return the track ID
+         */
+        public int getTrackID() {
+            return trackID;
+        }
+
+        /**
+         * Returns the number of the sample within its track, starting at 1
+         *
+         * @return the sample number
+         */
+        public long getSampleNumber() {
+            return sampleNumber;
+        }
+
+        /**
+         * Returns the offset of the sample in the encrypted file
+         *
+         * @return the file offset
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * Returns why the sample did not match
+         *
+         * @return the reason
+         */
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return "Track " + trackID + " sample " + sampleNumber + " at offset " + position + ": " + reason;
+        }
+    }
+
+    /**
+     * The result of verifying a file
+     */
+    public static class Report {
+
+        private long sampleCount;
+        private long byteCount;
+        private long mismatchCount;
+        private long unprotectedCount;
+        private List<Mismatch> mismatches = new ArrayList<Mismatch>();
+
+        // Add the results of another report to this one
+        private void add(Report r) {
+            sampleCount += r.sampleCount;
+            byteCount += r.byteCount;
+            unprotectedCount += r.unprotectedCount;
+            mismatchCount += r.mismatchCount - r.mismatches.size();
+            for (Mismatch m : r.mismatches)
+                addMismatch(m);
+        }
+
+        private void addMismatch(Mismatch m) {
+            mismatchCount++;
+            if (mismatches.size() < MAX_REPORTED_MISMATCHES)
+                mismatches.add(m);
+        }
+
+        /**
+         * Returns the number of samples that were checked
+         *
+         * @return the sample count
+         */
+        public long getSampleCount() {
+            return sampleCount;
+        }
+
+        /**
+         * Returns the number of sample bytes that were checked
+         *
+         * @return the byte count
+         */
+        public long getByteCount() {
+            return byteCount;
+        }
+
+        /**
+         * Returns the number of samples that did not match their clear source
+         *
+         * @return the mismatch count
+         */
+        public long getMismatchCount() {
+            return mismatchCount;
+        }
+
+        /**
+         * Returns the number of samples of tracks encrypted by the cryptfile that were not
+         * protected.  Each of them is also counted as a mismatch
+         *
+         * @return the unprotected sample count
+         */
+        public long getUnprotectedCount() {
+            return unprotectedCount;
+        }
+
+        /**
+         * Returns the first mismatching samples in file order.  At most 100 are kept
+         *
+         * @return the mismatches
+         */
+        public List<Mismatch> getMismatches() {
+            return mismatches;
+        }
+
+        /**
+         * Returns whether or not every sample matched its clear source
+         *
+         * @return true if there were no mismatches
+         */
+        public boolean isValid() {
+            return mismatchCount == 0;
+        }
+    }
+
+    /**
+     * Create a verifier for files encrypted with the given cryptfile
+     *
+     * @param cryptfile the scheme, tracks and keys that were used to encrypt the file
+     */
+    public CencVerifier(CryptfileBuilder cryptfile) {
+        this.scheme = cryptfile.getScheme();
+        for (CryptTrack track : cryptfile.getTracks()) {
+            if (!track.isEncrypted())
+                continue;
+            Set<ByteBuffer> kids = new HashSet<ByteBuffer>();
+            for (CryptKey key : track.getKeys()) {
+                KeyPair kp = key.getKeyPair();
+                kids.add(ByteBuffer.wrap(kp.getID()));
+                keys.put(ByteBuffer.wrap(kp.getID()), kp.getKey());
+            }
+            encryptedTracks.put(track.getTrackID(), kids);
+        }
+    }
+
+    /**
+     * Read a cryptfile
+     *
+     * @param cryptfile the GPACDRM document written by
+     * {@link org.cablelabs.cryptfile.CryptfileBuilder#writeXML}
+     * @return the scheme, tracks and keys of the cryptfile
+     * @throws IOException if the cryptfile could not be read or parsed
+     */
+    public static CryptfileBuilder readCryptfile(File cryptfile) throws IOException {
+        FileInputStream is = new FileInputStream(cryptfile);
+        try {
+            return CryptfileBuilder.readCryptfile(is);
+        }
+        finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Set the number of threads used to verify samples.  The default is 1, which verifies all
+     * samples on the calling thread.
+     *
+     * @param parallelism the number of verification threads
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Verify an encrypted file against its clear source
+     *
+     * @param clear the clear file
+     * @param encrypted the encrypted file
+     * @return the verification report
+     * @throws IOException if either file could not be read or the files do not have the same
+     * structure
+     */
+    public Report verify(File clear, File encrypted) throws IOException {
+        FileInputStream clearIn = new FileInputStream(clear);
+        FileInputStream encIn = null;
+        try {
+            encIn = new FileInputStream(encrypted);
+            return verify(clearIn.getChannel(), encIn.getChannel());
+        }
+        finally {
+            clearIn.close();
+            if (encIn != null)
+                encIn.close();
+        }
+    }
+
+    /**
+     * Verify an encrypted file against its clear source
+     *
+     * @param clear channel for reading the clear file
+     * @param encrypted channel for reading the encrypted file
+     * @return the verification report
+     * @throws IOException if either file could not be read or the files do not have the same
+     * structure
+     */
+    public Report verify(final FileChannel clear, final FileChannel encrypted) throws IOException {
+        BoxReader clearReader = new BoxReader(clear);
+        BoxReader encReader = new BoxReader(encrypted);
+        Map<Integer, TrackInfo> tracks = null;
+        Report report = new Report();
+
+        ForkJoinPool pool = null;
+        LinkedList<ForkJoinTask<Report>> tasks = new LinkedList<ForkJoinTask<Report>>();
+        if (parallelism > 1)
+            pool = new ForkJoinPool(parallelism);
+
+        try {
+            while (nextMetadata(encReader)) {
+                if (!nextMetadata(clearReader) || !clearReader.getType().equals(encReader.getType()))
+                    throw new IOException("Encrypted '" + encReader.getType() + "' box at offset " +
+                                          encReader.getPosition() + " has no matching box in the clear file");
+
+                if (encReader.getType().equals("moov")) {
+                    tracks = readTracks(new MovieBox(clearReader.readBox()), new MovieBox(encReader.readBox()));
+                    continue;
+                }
+                if (tracks == null)
+                    throw new IOException("Movie fragment found before movie box");
+
+                final List<Sample> samples = readFragment(clearReader, encReader, tracks);
+                if (pool == null) {
+                    report.add(verifySamples(clear, encrypted, samples));
+                    continue;
+                }
+                tasks.add(pool.submit(new Callable<Report>() {
+                    public Report call() throws IOException {
+                        return verifySamples(clear, encrypted, samples);
+                    }
+                }));
+                if (tasks.size() > parallelism * FRAGMENTS_PER_THREAD)
+                    report.add(CencEncryptor.waitFor(tasks.removeFirst()));
+            }
+            if (nextMetadata(clearReader))
+                throw new IOException("Clear '" + clearReader.getType() + "' box at offset " +
+                                      clearReader.getPosition() + " has no matching box in the encrypted file");
+            while (!tasks.isEmpty())
+                report.add(CencEncryptor.waitFor(tasks.removeFirst()));
+        }
+        finally {
+            if (pool != null)
+                pool.shutdownNow();
+        }
+
+        if (tracks == null)
+            throw new IOException("No movie box found in encrypted file");
+        return report;
+    }
+
+    // Advance to the next movie or movie fragment box
+    private static boolean nextMetadata(BoxReader reader) throws IOException {
+        while (reader.next()) {
+            if (reader.getType().equals("moov") || reader.getType().equals("moof"))
+                return true;
+        }
+        return false;
+    }
+
+    // Read the protection of every track from the encrypted movie box, and the default sample
+    // sizes of both files
+    private Map<Integer, TrackInfo> readTracks(MovieBox clear, MovieBox encrypted) throws IOException {
+        if (!encrypted.isFragmented())
+            throw new IOException("Encrypted file is not fragmented (no 'mvex' box found)");
+        Map<Integer, TrackInfo> tracks = new HashMap<Integer, TrackInfo>();
+
+        for (TrackBox trak : encrypted.getTracks()) {
+            TrackInfo track = new TrackInfo();
+            track.trackID = trak.getHeader().getTrackID();
+            track.kids = encryptedTracks.get(track.trackID);
+            TrackExtendsBox trex = encrypted.getTrackExtends(track.trackID);
+            if (trex != null)
+                track.defaultSize = trex.getDefaultSampleSize();
+            trex = clear.getTrackExtends(track.trackID);
+            if (trex != null)
+                track.clearDefaultSize = trex.getDefaultSampleSize();
+
+            // The protection scheme information of the first sample entry applies to all of them
+            Box stsd = trak.getSampleDescription();
+            if (stsd != null) {
+                ByteBuffer stsdData = ByteBuffer.wrap(stsd.getPayload());
+                stsdData.position(8);
+                if (stsdData.getInt(4) > 0)
+                    readProtection(track, Box.read(stsdData));
+            }
+
+            // Sample group descriptions that apply to every fragment
+            Box stbl = trak.getBox().find("mdia", "minf", "stbl");
+            if (stbl != null && track.scheme != null)
+                track.groups = readSampleGroupDescriptions(stbl);
+            tracks.put(track.trackID, track);
+        }
+        for (Integer trackID : encryptedTracks.keySet()) {
+            if (!tracks.containsKey(trackID))
+                throw new IOException("Track " + trackID + " of the cryptfile is not in the encrypted file");
+        }
+        return tracks;
+    }
+
+    // Read the scheme and default encryption parameters from a protected sample entry
+    private static void readProtection(TrackInfo track, Box entry) throws IOException {
+        if (!entry.getType().startsWith("enc"))
+            return;
+
+        // Protected sample entries end with a 'sinf' box.  Search the payload for it rather than
+        // parsing every type of sample entry
+        byte[] payload = entry.getPayload();
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        for (int i = 4; i + 4 <= payload.length; i++) {
+            if (payload[i] != 's' || !Box.fourCC(buf, i).equals("sinf"))
+                continue;
+            buf.position(i - 4);
+            Box sinf = Box.read(buf);
+            Box schm = sinf.getChild("schm");
+            Box tenc = sinf.find("schi", "tenc");
+            if (schm == null || tenc == null)
+                break;
+            String schemeType = Box.fourCC(ByteBuffer.wrap(schm.getPayload()), 4);
+            track.scheme = ProtectionScheme.forSchemeType(schemeType);
+            if (track.scheme == null)
+                throw new IOException("Unsupported protection scheme '" + schemeType + "' for track " + track.trackID);
+            ByteBuffer data = ByteBuffer.wrap(tenc.getPayload());
+            data.position(4);
+            track.defaults = readEncryptionInfo(data);
+            return;
+        }
+        throw new IOException("Protected sample entry for track " + track.trackID + " has no scheme information");
+    }
+
+    // Read the encryption parameters shared by track encryption boxes and 'seig' sample group
+    // entries, starting at the reserved byte
+    private static EncryptionInfo readEncryptionInfo(ByteBuffer data) {
+        EncryptionInfo info = new EncryptionInfo();
+        data.get();
+        int pattern = data.get() & 0xFF;
+        info.cryptBlocks = pattern >> 4;
+        info.skipBlocks = pattern & 0xF;
+        info.isProtected = data.get() != 0;
+        info.perSampleIVSize = data.get() & 0xFF;
+        info.kid = new byte[16];
+        data.get(info.kid);
+        if (info.isProtected && info.perSampleIVSize == 0) {
+            info.constantIV = new byte[data.get() & 0xFF];
+            data.get(info.constantIV);
+        }
+        return info;
+    }
+
+    // Read the entries of the 'seig' sample group description in a container
+    private static List<EncryptionInfo> readSampleGroupDescriptions(Box container) {
+        List<EncryptionInfo> groups = new ArrayList<EncryptionInfo>();
+        for (Box sgpd : container.getChildren("sgpd")) {
+            ByteBuffer data = ByteBuffer.wrap(sgpd.getPayload());
+            if (!Box.fourCC(data, 4).equals(SEIG))
+                continue;
+            int version = data.get(0) & 0xFF;
+            data.position(8);
+            int defaultLength = (version >= 1) ? data.getInt() : 0;
+            if (version >= 2)
+                data.getInt();
+            int count = data.getInt();
+            for (int i = 0; i < count; i++) {
+                int length = (version >= 1 && defaultLength == 0) ? data.getInt() : 0;
+                int start = data.position();
+                groups.add(readEncryptionInfo(data));
+                if (length != 0)
+                    data.position(start + length);
+            }
+        }
+        return groups;
+    }
+
+    // Read the 'seig' sample group index of each sample in a track fragment.  Returns null if
+    // the track fragment has no 'seig' sample-to-group box
+    private static long[] readSampleGroups(Box traf, int sampleCount) throws IOException {
+        for (Box sbgp : traf.getChildren("sbgp")) {
+            ByteBuffer data = ByteBuffer.wrap(sbgp.getPayload());
+            if (!Box.fourCC(data, 4).equals(SEIG))
+                continue;
+            data.position(((data.get(0) & 0xFF) >= 1) ? 12 : 8);
+            long[] groups = new long[sampleCount];
+            int entries = data.getInt();
+            int sample = 0;
+            for (int i = 0; i < entries; i++) {
+                long count = data.getInt() & 0xFFFFFFFFL;
+                long index = data.getInt() & 0xFFFFFFFFL;
+                if (sample + count > sampleCount)
+                    throw new IOException("Sample-to-group box describes more samples than the track fragment");
+                for (long j = 0; j < count; j++)
+                    groups[sample++] = index;
+            }
+            return groups;
+        }
+        return null;
+    }
+
+    // Read the next movie fragment of both files and return their samples with the encryption
+    // parameters of each
+    private static List<Sample> readFragment(BoxReader clearReader, BoxReader encReader,
+            Map<Integer, TrackInfo> tracks) throws IOException {
+        MovieFragmentBox clearMoof = new MovieFragmentBox(clearReader.readBox());
+        MovieFragmentBox encMoof = new MovieFragmentBox(encReader.readBox());
+        Map<Integer, List<long[]>> clearSamples = new HashMap<Integer, List<long[]>>();
+        long previousEnd = -1;
+        for (TrackFragmentBox traf : clearMoof.getTrackFragments()) {
+            int trackID = traf.getHeader().getTrackID();
+            TrackInfo track = tracks.get(trackID);
+            long base = traf.getHeader().getBaseDataOffset(clearReader.getPosition(), previousEnd);
+            List<long[]> locations = locateSamples(traf, base, (track == null) ? 0 : track.clearDefaultSize);
+            clearSamples.put(trackID, locations);
+            previousEnd = dataEnd(locations, base);
+        }
+
+        List<Sample> samples = new ArrayList<Sample>();
+        previousEnd = -1;
+        for (TrackFragmentBox traf : encMoof.getTrackFragments()) {
+            int trackID = traf.getHeader().getTrackID();
+            TrackInfo track = tracks.get(trackID);
+            List<long[]> clear = clearSamples.remove(trackID);
+            if (track == null)
+                throw new IOException("Track fragment found for unknown track " + trackID);
+            long base = traf.getHeader().getBaseDataOffset(encReader.getPosition(), previousEnd);
+            List<long[]> locations = locateSamples(traf, base, track.defaultSize);
+            previousEnd = dataEnd(locations, base);
+            if (clear == null || clear.size() != locations.size())
+                throw new IOException("Movie fragment at offset " + encReader.getPosition() + " has " +
+                                      locations.size() + " samples for track " + trackID + " but the clear file has " +
+                                      ((clear == null) ? 0 : clear.size()));
+
+            List<EncryptionInfo> localGroups = readSampleGroupDescriptions(traf.getBox());
+            long[] groups = readSampleGroups(traf.getBox(), locations.size());
+            ByteBuffer senc = null;
+            int sencFlags = 0;
+            if (traf.getBox().getChild("senc") != null) {
+                senc = ByteBuffer.wrap(traf.getBox().getChild("senc").getPayload());
+                sencFlags = senc.getInt() & 0xFFFFFF;
+                if (senc.getInt() != locations.size())
+                    throw new IOException("Sample encryption box for track " + trackID + " at offset " +
+                                          encReader.getPosition() + " does not match the sample count");
+            }
+            if (senc != null && senc.remaining() > 0)
+                checkAuxInfoOffset(encMoof, traf, encReader.getPosition(), base);
+
+            for (int i = 0; i < locations.size(); i++) {
+                Sample s = new Sample();
+                s.track = track;
+                s.number = ++track.sampleCount;
+                s.clearPosition = clear.get(i)[0];
+                s.clearSize = (int)clear.get(i)[1];
+                s.position = locations.get(i)[0];
+                s.size = (int)locations.get(i)[1];
+                s.info = track.defaults;
+                long group = (groups == null) ? 0 : groups[i];
+                if (group > SAMPLE_GROUP_LOCAL_INDEX && group - SAMPLE_GROUP_LOCAL_INDEX <= localGroups.size())
+                    s.info = localGroups.get((int)(group - SAMPLE_GROUP_LOCAL_INDEX - 1));
+                else if (group > 0 && group <= track.groups.size())
+                    s.info = track.groups.get((int)(group - 1));
+                else if (group != 0)
+                    throw new IOException("Invalid sample group description index " + group + " for track " + trackID);
+
+                // Per-sample IVs and subsamples
+                if (s.info != null && s.info.isProtected) {
+                    s.iv = s.info.constantIV;
+                    if (senc != null) {
+                        if (s.info.perSampleIVSize > 0) {
+                            s.iv = new byte[s.info.perSampleIVSize];
+                            senc.get(s.iv);
+                        }
+                        if ((sencFlags & SENC_USE_SUBSAMPLE_ENCRYPTION) != 0) {
+                            s.subsamples = new int[(senc.getShort() & 0xFFFF) * 2];
+                            for (int j = 0; j < s.subsamples.length; j += 2) {
+                                s.subsamples[j] = senc.getShort() & 0xFFFF;
+                                s.subsamples[j + 1] = senc.getInt();
+                            }
+                        }
+                    }
+                    if (s.iv == null)
+                        throw new IOException("No IV found for sample " + s.number + " of track " + trackID);
+                }
+                samples.add(s);
+            }
+        }
+        if (!clearSamples.isEmpty())
+            throw new IOException("Movie fragment at offset " + encReader.getPosition() + " is missing track " +
+                                  clearSamples.keySet().iterator().next());
+        return samples;
+    }
+
+    // Check that the sample auxiliary information offset of a track fragment points at the
+    // first entry in its sample encryption box, where players look for the IVs
+    private static void checkAuxInfoOffset(MovieFragmentBox moof, TrackFragmentBox traf, long moofPosition,
+            long base) throws IOException {
+        int trackID = traf.getHeader().getTrackID();
+        Box saio = traf.getBox().getChild("saio");
+        if (saio == null)
+            throw new IOException("Track fragment for track " + trackID + " at offset " + moofPosition +
+                                  " has a sample encryption box but no 'saio' box");
+
+        // Version 1 has 64-bit offsets.  Flag 1 adds the auxiliary information type
+        ByteBuffer data = ByteBuffer.wrap(saio.getPayload());
+        int versionAndFlags = data.getInt();
+        if ((versionAndFlags & 1) != 0)
+            data.position(data.position() + 8);
+        if (data.getInt() != 1)
+            throw new IOException("Sample auxiliary information offsets box for track " + trackID + " at offset " +
+                                  moofPosition + " must have exactly one entry");
+        long target = base + ((versionAndFlags >>> 24 == 0) ? (data.getInt() & 0xFFFFFFFFL) : data.getLong());
+
+        long ivs = moofPosition + moof.getBox().getOffset(traf.getBox().getChild("senc")) + Box.HEADER_SIZE + 8;
+        if (target != ivs)
+            throw new IOException("Sample auxiliary information offset for track " + trackID + " at offset " +
+                                  moofPosition + " points at " + target + " but the sample encryption entries are at " + ivs);
+    }
+
+    // Returns the file offset and size of every sample in a track fragment
+    private static List<long[]> locateSamples(TrackFragmentBox traf, long base, int trackDefaultSize) {
+        TrackFragmentHeaderBox tfhd = traf.getHeader();
+        int defaultSize = tfhd.getDefaultSampleSize(trackDefaultSize);
+
+        List<long[]> samples = new ArrayList<long[]>();
+        long dataPosition = base;
+        for (TrackRunBox trun : traf.getRuns()) {
+            if (trun.hasDataOffset())
+                dataPosition = base + trun.getDataOffset();
+            for (int size : trun.getSampleSizes(defaultSize)) {
+                samples.add(new long[] { dataPosition, size });
+                dataPosition += size;
+            }
+        }
+        return samples;
+    }
+
+    // Returns the file offset of the end of the data of a track fragment
+    private static long dataEnd(List<long[]> samples, long base) {
+        if (samples.isEmpty())
+            return base;
+        long[] last = samples.get(samples.size() - 1);
+        return last[0] + last[1];
+    }
+
+    // Decrypt the samples of a movie fragment and compare them with their clear source
+    private Report verifySamples(FileChannel clear, FileChannel encrypted, List<Sample> samples) throws IOException {
+        Report report = new Report();
+        long total = 0;
+        for (Sample s : samples)
+            total += s.size;
+        if (total > Integer.MAX_VALUE)
+            throw new IOException("Movie fragment is too large to verify: " + total);
+
+        // Read every sample of the fragment and queue the protected ones for decryption
+        ByteBuffer data = ByteBuffer.allocate((int)total);
+        Map<TrackInfo, Map<ByteBuffer, SampleCipher>> ciphers = new HashMap<TrackInfo, Map<ByteBuffer, SampleCipher>>();
+        List<SampleCipher> used = new ArrayList<SampleCipher>();
+        boolean[] failed = new boolean[samples.size()];
+        for (int i = 0; i < samples.size(); i++) {
+            Sample s = samples.get(i);
+            int offset = data.position();
+            data.limit(offset + s.size);
+            read(encrypted, data, s.position);
+            if (s.track.kids != null) {
+                String reason = null;
+                if (s.info == null || !s.info.isProtected) {
+                    report.unprotectedCount++;
+                    reason = "Sample is not protected but the cryptfile encrypts track " + s.track.trackID;
+                }
+                else if (s.track.scheme != scheme)
+                    reason = "Sample is protected with " + s.track.scheme + " but the cryptfile uses " + scheme;
+                else if (!s.track.kids.contains(ByteBuffer.wrap(s.info.kid)))
+                    reason = "KID " + KeyPair.toGUID(s.info.kid) + " is not listed for track " + s.track.trackID +
+                             " in the cryptfile";
+                if (reason != null) {
+                    report.addMismatch(new Mismatch(s, reason));
+                    failed[i] = true;
+                    continue;
+                }
+            }
+            if (s.info == null || !s.info.isProtected)
+                continue;
+            try {
+                SampleCipher cipher = cipher(ciphers, s);
+                if (cipher == null) {
+                    report.addMismatch(new Mismatch(s, "No key for KID " + KeyPair.toGUID(s.info.kid)));
+                    failed[i] = true;
+                    continue;
+                }
+                cipher.queue(s.iv, data, offset, s.size, s.subsamples);
+                if (!used.contains(cipher))
+                    used.add(cipher);
+            }
+            catch (IllegalArgumentException e) {
+                report.addMismatch(new Mismatch(s, e.getMessage()));
+                failed[i] = true;
+            }
+            catch (GeneralSecurityException e) {
+                throw new IOException("Could not decrypt sample: " + e.getMessage(), e);
+            }
+        }
+        try {
+            for (SampleCipher cipher : used)
+                cipher.flush();
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException("Could not decrypt sample: " + e.getMessage(), e);
+        }
+
+        // Compare with the clear samples
+        ByteBuffer decrypted = data.duplicate();
+        ByteBuffer source = null;
+        int offset = 0;
+        for (int i = 0; i < samples.size(); i++) {
+            Sample s = samples.get(i);
+            report.sampleCount++;
+            report.byteCount += s.size;
+            decrypted.limit(offset + s.size);
+            decrypted.position(offset);
+            offset += s.size;
+            if (failed[i])
+                continue;
+            if (s.clearSize != s.size) {
+                report.addMismatch(new Mismatch(s, "Size is " + s.size + " but clear sample size is " + s.clearSize));
+                continue;
+            }
+            if (source == null || source.capacity() < s.size)
+                source = ByteBuffer.allocate(Math.max(s.size, 64 * 1024));
+            source.clear();
+            source.limit(s.size);
+            read(clear, source, s.clearPosition);
+            source.flip();
+            if (!source.equals(decrypted))
+                report.addMismatch(new Mismatch(s, "Decrypted sample does not match clear sample at offset " +
+                                                   s.clearPosition));
+        }
+        return report;
+    }
+
+    // Returns the cipher for the track and key of a sample, creating it if needed.  Returns null
+    // if there is no key for the sample's KID
+    private SampleCipher cipher(Map<TrackInfo, Map<ByteBuffer, SampleCipher>> ciphers, Sample s)
+            throws GeneralSecurityException {
+        Map<ByteBuffer, SampleCipher> trackCiphers = ciphers.get(s.track);
+        if (trackCiphers == null) {
+            trackCiphers = new HashMap<ByteBuffer, SampleCipher>();
+            ciphers.put(s.track, trackCiphers);
+        }
+        ByteBuffer kid = ByteBuffer.wrap(s.info.kid);
+        SampleCipher cipher = trackCiphers.get(kid);
+        if (cipher == null) {
+            byte[] key = keys.get(kid);
+            if (key == null)
+                return null;
+            cipher = SampleCipher.decryptor(s.track.scheme, key, s.info.cryptBlocks, s.info.skipBlocks);
+            trackCiphers.put(kid, cipher);
+        }
+        return cipher;
+    }
+
+    // Fill the given buffer with data from the channel starting at the given file offset
+    private static void read(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of file at offset " + position);
+            position += read;
+        }
+    }
+
+    private static class Usage implements org.cablelabs.cmdline.Usage {
+        public void usage() {
+            System.out.println("Common Encryption verification tool.");
+            System.out.println("");
+            System.out.println("usage:  CencVerifier [OPTIONS] <cryptfile> <clear_file> <encrypted_file>");
+            System.out.println("");
+            System.out.println("\t<cryptfile> is the MP4Box cryptfile holding the tracks and keys used to encrypt the file.");
+            System.out.println("\tEvery sample of a track that it encrypts must be protected with its scheme and one of");
+            System.out.println("\tthe key IDs of that track.");
+            System.out.println("");
+            System.out.println("\t<clear_file> is the fragmented MP4 file that was encrypted.");
+            System.out.println("");
+            System.out.println("\t<encrypted_file> is the encrypted fragmented MP4 file to be checked.");
+            System.out.println("");
+            System.out.println("\tOPTIONS:");
+            System.out.println("");
+            System.out.println("\t-help");
+            System.out.println("\t\tDisplay this usage message.");
+            System.out.println("");
+            System.out.println("\t-threads <count>");
+            System.out.println("\t\tNumber of threads used to decrypt and compare samples.  Defaults to the number");
+            System.out.println("\t\tof processors.");
+            System.out.println("");
+            System.out.println("\tExits with status 0 if every sample matches and 1 otherwise.");
+        }
+    }
+
+    public static void main(String[] args) {
+
+        CmdLine cmdline = new CmdLine(new Usage());
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> files = new ArrayList<String>();
+
+        // Parse arguments
+        for (int i = 0; i < args.length; i++) {
+            String[] subopts;
+            if ((subopts = cmdline.checkOption("-help", args, i, 0)) != null) {
+                (new Usage()).usage();
+                System.exit(0);
+            }
+            else if ((subopts = cmdline.checkOption("-threads", args, i, 1)) != null) {
+                threads = Integer.parseInt(subopts[0]);
+                i++;
+            }
+            else if (args[i].startsWith("-")) {
+                cmdline.errorExit("Illegal argument: " + args[i]);
+            }
+            else {
+                files.add(args[i]);
+            }
+        }
+        if (files.size() != 3)
+            cmdline.errorExit("Must specify a cryptfile, a clear file and an encrypted file");
+
+        Report report = null;
+        try {
+            CencVerifier verifier = new CencVerifier(readCryptfile(new File(files.get(0))));
+            verifier.setParallelism(threads);
+            report = verifier.verify(new File(files.get(1)), new File(files.get(2)));
+        }
+        catch (IOException e) {
+            System.err.println("Verification failed: " + e.getMessage());
+            System.exit(1);
+        }
+        catch (IllegalArgumentException e) {
+            cmdline.errorExit(e.getMessage());
+        }
+
+        for (Mismatch m : report.getMismatches())
+            System.out.println(m);
+        if (report.getMismatchCount() > report.getMismatches().size())
+            System.out.println("... and " + (report.getMismatchCount() - report.getMismatches().size()) + " more");
+        System.out.println("Verified " + report.getSampleCount() + " samples (" + report.getByteCount() + " bytes): " +
+                           report.getMismatchCount() + " mismatches, " + report.getUnprotectedCount() + " unprotected");
+        System.exit(report.isValid() ? 0 : 1);
+    }
+}
@@ -0,0 +1,455 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cenc;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.cablelabs.cryptfile.CryptfileBuilder.ProtectionScheme;
+
+/**
+ * Encrypts individual samples with a single AES-128 key using one of the Common Encryption
+ * protection schemes.
+ * <p>
+ * For pattern encryption ('cbcs'), only the first <i>crypt</i> blocks of every
+ * <i>crypt</i> + <i>skip</i> blocks are encrypted.  Data is encrypted in place and the clear
+ * blocks are never touched, so their cost is only that of stepping over them.
+ * <p>
+ * JCE ciphers are created once per thread and key and reused by every sample cipher on that
+ * thread.  For AES-CTR, small samples can be queued with
+ * {@link #queue(byte[], ByteBuffer, int, int, int[])}: the counter blocks of all queued samples
+ * are encrypted with a single AES-ECB call and the resulting keystream is XORed into the
+ * samples when the batch is full or {@link #flush()} is called.  This avoids a cipher
+ * initialization for every sample, which dominates the cost of tracks with many small samples
+ * such as AAC audio.
+ * <p>
+ * A sample cipher created for decryption processes samples in exactly the same way, so every
+ * "encrypt" method decrypts instead.
+ * <p>
+ * Instances must only be used by the thread that created them, unless they are created with
+ * {@link #unshared(ProtectionScheme, byte[], int, int)}.
+ */
+class SampleCipher {
+
+    private static final int BLOCK_SIZE = 16;
+
+    // Keystream generated by a single batch
+    private static final int BATCH_BLOCKS = 4096;
+
+    // Samples with more protected bytes than this are encrypted directly rather than batched
+    private static final int MAX_BATCH_SAMPLE = 16 * 1024;
+
+    // Batches are also flushed when this many samples are queued
+    private static final int MAX_BATCH_SAMPLES = 1024;
+
+    // Maximum number of keys whose ciphers are kept by each thread
+    private static final int MAX_CACHED_KEYS = 64;
+
+    private static final String ECB = "AES/ECB/NoPadding";
+    private static final String CTR = "AES/CTR/NoPadding";
+    private static final String CBC = "AES/CBC/NoPadding";
+
+    // Ciphers for each thread, by key and transformation
+    private static final ThreadLocal<Map<ByteBuffer, Map<String, Cipher>>> CIPHERS =
+            new ThreadLocal<Map<ByteBuffer, Map<String, Cipher>>>() {
+                @Override
+                protected Map<ByteBuffer, Map<String, Cipher>> initialValue() {
+                    return new HashMap<ByteBuffer, Map<String, Cipher>>();
+                }
+            };
+
+    private ProtectionScheme scheme;
+    private SecretKeySpec key;
+    private boolean shared;
+    private Cipher cipher;
+    private int mode = Cipher.ENCRYPT_MODE;
+    private byte[] counter = new byte[BLOCK_SIZE];
+    private ByteBuffer counterBuffer = ByteBuffer.wrap(counter);
+    private int cryptBlocks;
+    private int skipBlocks;
+
+    // CTR batch state.  The counter blocks of all queued samples are generated when the
+    // samples are queued and encrypted into keystream on flush
+    private Cipher ecb;
+    private byte[] counters;
+    private ByteBuffer countersBuffer;
+    private byte[] keystream;
+    private ByteBuffer keystreamBuffer;
+    private int batchBlocks;
+    private int batchSamples;
+    private ByteBuffer[] batchData;
+    private int[] batchOffsets;
+    private int[] batchLengths;
+    private int[][] batchSubsamples;
+    private int[] batchKeystream;
+
+    /**
+     * Create a new sample cipher that encrypts every block of each protected range
+     *
+     * @param scheme the protection scheme
+     * @param key the 16-byte AES key
+     * @throws GeneralSecurityException if the JVM does not support the required cipher
+     */
+    SampleCipher(ProtectionScheme scheme, byte[] key) throws GeneralSecurityException {
+        this(scheme, key, 0, 0);
+    }
+
+    /**
+     * Create a new sample cipher
+     *
+     * @param scheme the protection scheme
+     * @param key the 16-byte AES key
+     * @param cryptBlocks the number of encrypted blocks in each repetition of the pattern, or
+     * 0 to encrypt every block
+     * @param skipBlocks the number of clear blocks in each repetition of the pattern
+     * @throws GeneralSecurityException if the JVM does not support the required cipher
+     */
+    SampleCipher(ProtectionScheme scheme, byte[] key, int cryptBlocks, int skipBlocks)
+            throws GeneralSecurityException {
+        this(scheme, key, cryptBlocks, skipBlocks, true);
+    }
+
+    private SampleCipher(ProtectionScheme scheme, byte[] key, int cryptBlocks, int skipBlocks, boolean shared)
+            throws GeneralSecurityException {
+        this.shared = shared;
+        if (cryptBlocks < 0 || skipBlocks < 0 || cryptBlocks > 15 || skipBlocks > 15)
+            throw new IllegalArgumentException("Invalid encryption pattern: " + cryptBlocks + ":" + skipBlocks);
+        if ((cryptBlocks != 0 || skipBlocks != 0) && scheme != ProtectionScheme.AES_CBCS)
+            throw new IllegalArgumentException("Pattern encryption is not supported by " + scheme);
+        this.scheme = scheme;
+        this.key = new SecretKeySpec(key, "AES");
+        this.cryptBlocks = cryptBlocks;
+        this.skipBlocks = skipBlocks;
+        switch (scheme) {
+        case AES_CBC:
+        case AES_CBCS:
+            cipher = threadCipher(CBC);
+            break;
+        case AES_CTR:
+        default:
+            cipher = threadCipher(CTR);
+            break;
+        }
+    }
+
+    /**
+     * Create a new sample cipher that decrypts samples encrypted with the given parameters
+     *
+     * @param scheme the protection scheme
+     * @param key the 16-byte AES key
+     * @param cryptBlocks the number of encrypted blocks in each repetition of the pattern, or
+     * 0 if every block is encrypted
+     * @param skipBlocks the number of clear blocks in each repetition of the pattern
+     * @return the sample cipher
+     * @throws GeneralSecurityException if the JVM does not support the required cipher
+     */
+    static SampleCipher decryptor(ProtectionScheme scheme, byte[] key, int cryptBlocks, int skipBlocks)
+            throws GeneralSecurityException {
+        SampleCipher c = new SampleCipher(scheme, key, cryptBlocks, skipBlocks);
+        c.mode = Cipher.DECRYPT_MODE;
+        return c;
+    }
+
+    /**
+     * Create a new sample cipher with JCE ciphers of its own instead of the creating thread's.
+     * It may be used by any thread, as long as only one thread uses it at a time.
+     *
+     * @param scheme the protection scheme
+     * @param key the 16-byte AES key
+     * @param cryptBlocks the number of encrypted blocks in each repetition of the pattern, or
+     * 0 to encrypt every block
+     * @param skipBlocks the number of clear blocks in each repetition of the pattern
+     * @return the sample cipher
+     * @throws GeneralSecurityException if the JVM does not support the required cipher
+     */
+    static SampleCipher unshared(ProtectionScheme scheme, byte[] key, int cryptBlocks, int skipBlocks)
+            throws GeneralSecurityException {
+        return new SampleCipher(scheme, key, cryptBlocks, skipBlocks, false);
+    }
+
+    // Returns this thread's cipher for our key and the given transformation, or a new one if
+    // this sample cipher is unshared.  ECB ciphers are returned already initialized
+    private Cipher threadCipher(String transformation) throws GeneralSecurityException {
+        if (!shared) {
+            Cipher c = Cipher.getInstance(transformation);
+            if (transformation.equals(ECB))
+                c.init(Cipher.ENCRYPT_MODE, key);
+            return c;
+        }
+        Map<ByteBuffer, Map<String, Cipher>> keys = CIPHERS.get();
+        ByteBuffer keyID = ByteBuffer.wrap(key.getEncoded());
+        Map<String, Cipher> ciphers = keys.get(keyID);
+        if (ciphers == null) {
+            if (keys.size() >= MAX_CACHED_KEYS)
+                keys.clear();
+            ciphers = new HashMap<String, Cipher>();
+            keys.put(keyID, ciphers);
+        }
+        Cipher c = ciphers.get(transformation);
+        if (c == null) {
+            c = Cipher.getInstance(transformation);
+            if (transformation.equals(ECB))
+                c.init(Cipher.ENCRYPT_MODE, key);
+            ciphers.put(transformation, c);
+        }
+        return c;
+    }
+
+    /**
+     * Encrypt the remaining bytes of the given buffer in place.  8-byte initialization vectors
+     * are padded with zeros to form the 16-byte counter block (CTR) or IV (CBC).  In CBC modes,
+     * any partial block at the end of the data is left unencrypted.
+     *
+     * @param iv the 8- or 16-byte initialization vector for this sample
+     * @param data the sample data
+     * @throws GeneralSecurityException
+     */
+    void encrypt(byte[] iv, ByteBuffer data) throws GeneralSecurityException {
+        init(iv);
+        ByteBuffer in = data.duplicate();
+        ByteBuffer out = data.duplicate();
+        encryptRange(in, out, data.position(), data.remaining());
+    }
+
+    /**
+     * Encrypt the protected ranges of a sample in place.  For 'cenc' and 'cbc1', the protected
+     * ranges are encrypted as a single continuous stream: the CTR counter or CBC chain carries
+     * over from one protected range to the next.  For 'cbcs', the IV and the pattern are reset
+     * at the start of every protected range.  In CBC modes, every protected range of a 'cbc1'
+     * sample must be a multiple of 16 bytes.
+     *
+     * @param iv the 8- or 16-byte initialization vector for this sample
+     * @param data the sample data
+     * @param subsamples interleaved (clear, protected) byte counts covering the sample, or null
+     * to encrypt the whole sample
+     * @throws GeneralSecurityException
+     */
+    void encrypt(byte[] iv, ByteBuffer data, int[] subsamples) throws GeneralSecurityException {
+        if (subsamples == null) {
+            encrypt(iv, data);
+            return;
+        }
+        checkSubsamples(data.position(), data.remaining(), subsamples);
+        init(iv);
+
+        // Two views of the sample are repositioned for each range, rather than allocating
+        // new views for every subsample
+        ByteBuffer in = data.duplicate();
+        ByteBuffer out = data.duplicate();
+        int position = data.position();
+        for (int i = 0; i < subsamples.length; i += 2) {
+            position += subsamples[i];
+            int length = subsamples[i + 1];
+            if (length == 0)
+                continue;
+            if (scheme == ProtectionScheme.AES_CBCS)
+                init(iv);
+            encryptRange(in, out, position, length);
+            position += length;
+        }
+    }
+
+    /**
+     * Queue a sample for encryption.  For AES-CTR, small samples are added to the current batch
+     * and are not encrypted until the batch is full or {@link #flush()} is called, so the sample
+     * data must remain in the buffer until then.  All other samples are encrypted immediately.
+     *
+     * @param iv the 8- or 16-byte initialization vector for this sample
+     * @param data the buffer holding the sample
+     * @param offset the index of the first byte of the sample in the buffer
+     * @param length the sample size
+     * @param subsamples interleaved (clear, protected) byte counts covering the sample, or null
+     * to encrypt the whole sample
+     * @throws GeneralSecurityException
+     */
+    void queue(byte[] iv, ByteBuffer data, int offset, int length, int[] subsamples)
+            throws GeneralSecurityException {
+        int protectedBytes = length;
+        if (subsamples != null) {
+            checkSubsamples(offset, length, subsamples);
+            protectedBytes = 0;
+            for (int i = 1; i < subsamples.length; i += 2)
+                protectedBytes += subsamples[i];
+        }
+
+        if (scheme != ProtectionScheme.AES_CTR || protectedBytes > MAX_BATCH_SAMPLE) {
+            ByteBuffer sample = data.duplicate();
+            sample.limit(offset + length);
+            sample.position(offset);
+            encrypt(iv, sample, subsamples);
+            return;
+        }
+
+        if (ecb == null) {
+            ecb = threadCipher(ECB);
+            counters = new byte[BATCH_BLOCKS * BLOCK_SIZE];
+            countersBuffer = ByteBuffer.wrap(counters);
+            keystream = new byte[BATCH_BLOCKS * BLOCK_SIZE];
+            keystreamBuffer = ByteBuffer.wrap(keystream);
+            batchData = new ByteBuffer[MAX_BATCH_SAMPLES];
+            batchOffsets = new int[MAX_BATCH_SAMPLES];
+            batchLengths = new int[MAX_BATCH_SAMPLES];
+            batchSubsamples = new int[MAX_BATCH_SAMPLES][];
+            batchKeystream = new int[MAX_BATCH_SAMPLES];
+        }
+        int blocks = (int)blockCount(protectedBytes);
+        if (batchBlocks + blocks > BATCH_BLOCKS || batchSamples == MAX_BATCH_SAMPLES)
+            flush();
+
+        // Counter blocks for this sample: the padded IV followed by its 128-bit increments
+        Arrays.fill(counter, (byte)0);
+        System.arraycopy(iv, 0, counter, 0, iv.length);
+        long high = counterBuffer.getLong(0);
+        long low = counterBuffer.getLong(8);
+        int index = batchBlocks * BLOCK_SIZE;
+        for (int b = 0; b < blocks; b++, index += BLOCK_SIZE) {
+            countersBuffer.putLong(index, high);
+            countersBuffer.putLong(index + 8, low);
+            if (++low == 0)
+                high++;
+        }
+
+        batchData[batchSamples] = data;
+        batchOffsets[batchSamples] = offset;
+        batchLengths[batchSamples] = length;
+        batchSubsamples[batchSamples] = subsamples;
+        batchKeystream[batchSamples] = batchBlocks * BLOCK_SIZE;
+        batchSamples++;
+        batchBlocks += blocks;
+    }
+
+    /**
+     * Encrypt all queued samples
+     *
+     * @throws GeneralSecurityException
+     */
+    void flush() throws GeneralSecurityException {
+        if (batchSamples == 0)
+            return;
+
+        ecb.doFinal(counters, 0, batchBlocks * BLOCK_SIZE, keystream, 0);
+        for (int i = 0; i < batchSamples; i++) {
+            ByteBuffer data = batchData[i];
+            int position = batchOffsets[i];
+            int ks = batchKeystream[i];
+            int[] subsamples = batchSubsamples[i];
+            if (subsamples == null) {
+                xor(data, position, batchLengths[i], ks);
+            }
+            else {
+                for (int j = 0; j < subsamples.length; j += 2) {
+                    position += subsamples[j];
+                    xor(data, position, subsamples[j + 1], ks);
+                    position += subsamples[j + 1];
+                    ks += subsamples[j + 1];
+                }
+            }
+            batchData[i] = null;
+            batchSubsamples[i] = null;
+        }
+        batchSamples = 0;
+        batchBlocks = 0;
+    }
+
+    // XOR keystream into the data, 8 bytes at a time where possible
+    private void xor(ByteBuffer data, int position, int length, int ks) {
+        int end = position + length;
+        for (; position + 8 <= end; position += 8, ks += 8)
+            data.putLong(position, data.getLong(position) ^ keystreamBuffer.getLong(ks));
+        for (; position < end; position++, ks++)
+            data.put(position, (byte)(data.get(position) ^ keystream[ks]));
+    }
+
+    // Make sure the subsamples fit within the sample
+    private void checkSubsamples(int offset, int length, int[] subsamples) {
+        long total = 0;
+        for (int i = 0; i < subsamples.length; i += 2) {
+            total += subsamples[i] + subsamples[i + 1];
+            if (scheme == ProtectionScheme.AES_CBC && subsamples[i + 1] % BLOCK_SIZE != 0)
+                throw new IllegalArgumentException("Protected range is not a multiple of the AES block size: " +
+                                                   subsamples[i + 1]);
+        }
+        if (total > length)
+            throw new IllegalArgumentException("Subsamples exceed sample size");
+    }
+
+    // Encrypt a single protected range, applying the pattern if there is one.  Any partial
+    // block at the end of the range is left unencrypted in CBC modes.
+    private void encryptRange(ByteBuffer in, ByteBuffer out, int position, int length)
+            throws GeneralSecurityException {
+        if (scheme != ProtectionScheme.AES_CTR)
+            length -= length % BLOCK_SIZE;
+
+        if (cryptBlocks == 0) {
+            update(in, out, position, length);
+            return;
+        }
+
+        int cryptBytes = cryptBlocks * BLOCK_SIZE;
+        int stride = (cryptBlocks + skipBlocks) * BLOCK_SIZE;
+        int end = position + length;
+        for (; position < end; position += stride)
+            update(in, out, position, Math.min(cryptBytes, end - position));
+    }
+
+    // Encrypt bytes in place, continuing the current CTR counter or CBC chain
+    private void update(ByteBuffer in, ByteBuffer out, int position, int length)
+            throws GeneralSecurityException {
+        if (length == 0)
+            return;
+        in.limit(position + length);
+        in.position(position);
+        out.limit(position + length);
+        out.position(position);
+        cipher.update(in, out);
+    }
+
+    // Initialize the cipher for a new sample
+    private void init(byte[] iv) throws GeneralSecurityException {
+        Arrays.fill(counter, (byte)0);
+        System.arraycopy(iv, 0, counter, 0, iv.length);
+        cipher.init((scheme == ProtectionScheme.AES_CTR) ? Cipher.ENCRYPT_MODE : mode, key,
+                    new IvParameterSpec(counter));
+    }
+
+    /**
+     * Returns the number of AES blocks needed to process a sample of the given size
+     *
+     * @param size the sample size
+     * @return the number of 16-byte blocks
+     */
+    static long blockCount(long size) {
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+}
@@ -0,0 +1,295 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cmdline;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Runs a command line tool once for each asset listed in a manifest file, all within a
+ * single JVM.  Assets are processed by a pool of worker threads, so XML factories, crypto
+ * providers and network connections are set up once and shared by every asset rather than
+ * once per process.
+ * <p>
+ * Each line of the manifest holds the tool's arguments for one asset, either separated by
+ * whitespace (arguments containing spaces may be enclosed in double quotes) or as a JSON
+ * array of strings.  Blank lines and lines starting with '#' are ignored.
+ * <p>
+ * Anything an asset prints is collected and written out as a single block once the asset
+ * has finished, so the output of assets running in parallel is never interleaved.  A failed
+ * asset is reported and the remaining assets are still processed.
+ */
+public class Batch {
+
+    /**
+     * A tool run for a single asset
+     */
+    public interface Job {
+
+        /**
+         * Process one asset.  Errors must be thrown rather than exiting the JVM.
+         *
+         * @param args the tool arguments for the asset
+         * @throws Exception if the asset could not be processed
+         */
+        public void run(String[] args) throws Exception;
+    }
+
+    // An asset from the manifest and the line it was found on
+    private static class Asset {
+        int line;
+        String[] args;
+    }
+
+    private int workers;
+
+    /**
+     * Create a batch that uses the given number of worker threads
+     *
+     * @param workers the number of assets to process at the same time
+     */
+    public Batch(int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("Batch worker count must be at least 1");
+        this.workers = workers;
+    }
+
+    /**
+     * Run a batch from the sub-options of a tool's "-batch" option and exit the JVM.  The
+     * sub-options are the manifest file and an optional worker count, which defaults to the
+     * number of available processors.  The exit status is 0 if all assets succeeded.
+     *
+     * @param subopts the "-batch" sub-options
+     * @param job the tool run for each asset
+     */
+    public static void runAndExit(String[] subopts, Job job) {
+        int failed = 0;
+        try {
+            int workers = Runtime.getRuntime().availableProcessors();
+            if (subopts.length > 1)
+                workers = Integer.parseInt(subopts[1]);
+            failed = new Batch(workers).run(new File(subopts[0]), job);
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Invalid batch worker count: " + subopts[1]);
+            System.exit(1);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        catch (IOException e) {
+            System.err.println("Could not read batch manifest: " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit((failed == 0) ? 0 : 1);
+    }
+
+    /**
+     * Process every asset in the manifest.  Output from the assets is written to
+     * <code>System.out</code> followed by a summary line on <code>System.err</code>.
+     *
+     * @param manifest the manifest file
+     * @param job the tool run for each asset
+     * @return the number of assets that failed
+     * @throws IOException if the manifest could not be read
+     */
+    public int run(File manifest, final Job job) throws IOException {
+        List<Asset> assets = readManifest(manifest);
+
+        final PrintStream console = System.out;
+        final PrintStream consoleErr = System.err;
+        final ThreadOutput output = new ThreadOutput(console);
+        PrintStream routed = new PrintStream(output, true);
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(workers, Math.max(assets.size(), 1)));
+        System.setOut(routed);
+        System.setErr(routed);
+        int failed = 0;
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (final Asset asset : assets) {
+                results.add(pool.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        return runAsset(asset, job, output, console);
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                try {
+                    if (!result.get())
+                        failed++;
+                }
+                catch (ExecutionException e) {
+                    failed++;
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Batch interrupted");
+                }
+            }
+        }
+        finally {
+            pool.shutdownNow();
+            System.setOut(console);
+            System.setErr(consoleErr);
+        }
+
+        consoleErr.println("Batch complete: " + (assets.size() - failed) + " of " +
+                           assets.size() + " assets succeeded");
+        return failed;
+    }
+
+    // Run a single asset with its output captured, then write the captured output
+    private static boolean runAsset(Asset asset, Job job, ThreadOutput output, PrintStream console) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream err = new PrintStream(buffer, true);
+        boolean success = true;
+        output.capture(buffer);
+        try {
+            job.run(asset.args);
+        }
+        catch (Throwable t) {
+            success = false;
+            err.println("Error: " + ((t.getMessage() != null) ? t.getMessage() : t.toString()));
+        }
+        finally {
+            output.capture(null);
+        }
+        synchronized (console) {
+            console.println("[line " + asset.line + "] " + (success ? "OK" : "FAILED"));
+            console.write(buffer.toByteArray(), 0, buffer.size());
+            console.flush();
+        }
+        return success;
+    }
+
+    // Read all assets from the manifest file
+    private static List<Asset> readManifest(File manifest) throws IOException {
+        List<Asset> assets = new ArrayList<Asset>();
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+        try {
+            String line;
+            int lineNum = 0;
+            while ((line = br.readLine()) != null) {
+                lineNum++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+
+                Asset asset = new Asset();
+                asset.line = lineNum;
+                try {
+                    asset.args = parseArgs(line);
+                }
+                catch (IllegalArgumentException e) {
+                    throw new IOException(e.getMessage() + " on line " + lineNum + " of " + manifest);
+                }
+                for (String arg : asset.args) {
+                    if (arg.equals("-help") || arg.equals("-batch") || arg.equals("-server"))
+                        throw new IOException("Invalid argument on line " + lineNum + " of " + manifest + ": " + arg);
+                }
+                assets.add(asset);
+            }
+        }
+        finally {
+            br.close();
+        }
+        return assets;
+    }
+
+    /**
+     * Parse a list of tool arguments, given either as a JSON array of strings or separated
+     * by whitespace
+     *
+     * @param line the arguments
+     * @return the parsed arguments
+     * @throws IllegalArgumentException if the arguments are not valid
+     */
+    static String[] parseArgs(String line) {
+        if (!line.startsWith("["))
+            return splitArgs(line);
+        String[] args;
+        try {
+            args = new Gson().fromJson(line, String[].class);
+        }
+        catch (JsonParseException e) {
+            throw new IllegalArgumentException("Invalid JSON argument list");
+        }
+        for (String arg : args) {
+            if (arg == null)
+                throw new IllegalArgumentException("Invalid JSON argument list");
+        }
+        return args;
+    }
+
+    // Split a line into whitespace separated arguments.  Double quotes group characters
+    // (including whitespace) into a single argument
+    private static String[] splitArgs(String line) {
+        List<String> args = new ArrayList<String>();
+        StringBuilder arg = null;
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                if (arg == null)
+                    arg = new StringBuilder();
+            }
+            else if (!quoted && Character.isWhitespace(c)) {
+                if (arg != null)
+                    args.add(arg.toString());
+                arg = null;
+            }
+            else {
+                if (arg == null)
+                    arg = new StringBuilder();
+                arg.append(c);
+            }
+        }
+        if (quoted)
+            throw new IllegalArgumentException("Unterminated quote");
+        if (arg != null)
+            args.add(arg.toString());
+        return args.toArray(new String[args.size()]);
+    }
+}
@@ -8,11 +8,19 @@ package org.cablelabs.cmdline;
 public class CmdLine {
     
     private Usage usage;
+    private boolean exitOnError = true;
     
     public CmdLine(Usage usage) {
         this.usage = usage;
     }
     
+    // When exitOnError is false, errors are thrown as IllegalArgumentException instead of
+    // printing the usage and exiting, so that one bad entry does not end a batch run
+    public CmdLine(Usage usage, boolean exitOnError) {
+        this.usage = usage;
+        this.exitOnError = exitOnError;
+    }
+    
     private void invalidOption(String option) {
         errorExit("Invalid argument specification for " + option);
     }
@@ -44,6 +52,8 @@ public class CmdLine {
     }
     
     public void errorExit(String errorString) {
+        if (!exitOnError)
+            throw new IllegalArgumentException(errorString);
         usage.usage();
         System.err.println(errorString);
         System.exit(1);
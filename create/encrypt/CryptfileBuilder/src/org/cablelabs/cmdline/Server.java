@@ -0,0 +1,298 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cmdline;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.DRMInfoPSSH;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs a cryptfile generation tool as a long-running HTTP server, so that cryptfiles can be
+ * generated in the request path of a just-in-time packager without starting a new process
+ * for each one.
+ * <p>
+ * Each request is a POST whose body holds the tool's arguments, in the same form as a line
+ * of a batch manifest (separated by whitespace or as a JSON array of strings).  The
+ * response is either the cryptfile (<code>POST /cryptfile</code>) or the binary PSSH boxes
+ * of all of its DRMs, one after the other (<code>POST /pssh</code>).  Invalid arguments
+ * result in a 400 response with the error message as the body.
+ * <p>
+ * Requests are handled by a fixed number of worker threads.  When all workers are busy
+ * and the queue is full, new connections are not accepted until a worker becomes free.
+ * Connections are kept alive between requests.  Anything the tool prints while handling a
+ * request is discarded.
+ * <p>
+ * Arguments may name files on the server (key files, property files), so the server listens
+ * on the loopback interface unless another address is given and should only be made
+ * reachable by trusted clients.
+ */
+public class Server {
+
+    /**
+     * A tool run for a single request
+     */
+    public interface Generator {
+
+        /**
+         * Generate a cryptfile.  Errors must be thrown rather than exiting the JVM.
+         *
+         * @param args the tool arguments
+         * @return the cryptfile
+         * @throws IllegalArgumentException if the arguments are not valid
+         * @throws Exception if the cryptfile could not be generated
+         */
+        public CryptfileBuilder generate(String[] args) throws Exception;
+    }
+
+    // Options that write files or control the process, which clients may not use
+    private static final List<String> REJECTED_OPTIONS = Arrays.asList(
+        "-help", "-h", "-batch", "-server", "-out", "-encrypt", "-encryptInPlace", "-cache"
+    );
+
+    private static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+    private static final int MAX_REQUEST_SIZE = 64 * 1024;
+
+    // Number of requests waiting for a worker, per worker
+    private static final int QUEUE_SIZE_PER_WORKER = 16;
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private Generator generator;
+    private HttpServer server;
+    private ThreadPoolExecutor executor;
+    private ThreadOutput output;
+    private PrintStream console;
+
+    /**
+     * Create a server.  The server does not accept requests until it is started.
+     *
+     * @param address the address to listen on
+     * @param workers the number of requests handled at the same time
+     * @param generator the tool run for each request
+     * @throws IOException if the server could not listen on the address
+     */
+    public Server(InetSocketAddress address, int workers, Generator generator) throws IOException {
+        if (workers < 1)
+            throw new IllegalArgumentException("Server worker count must be at least 1");
+        this.generator = generator;
+
+        // When the queue is full the HTTP dispatcher thread runs the request itself, which
+        // stops it from accepting more connections until the request is complete
+        executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                                          new ArrayBlockingQueue<Runnable>(workers * QUEUE_SIZE_PER_WORKER),
+                                          new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.prestartAllCoreThreads();
+
+        // Responses are written as separate header and body packets.  Without TCP_NODELAY,
+        // delayed acknowledgements hold back the body on a kept-alive connection
+        if (System.getProperty(NODELAY_PROPERTY) == null)
+            System.setProperty(NODELAY_PROPERTY, "true");
+        server = HttpServer.create(address, 0);
+        server.setExecutor(executor);
+        server.createContext("/cryptfile", new Handler(false));
+        server.createContext("/pssh", new Handler(true));
+    }
+
+    /**
+     * Start a server from the sub-options of a tool's "-server" option.  The sub-options are
+     * the address to listen on, "[&lt;host&gt;:]&lt;port&gt;", and an optional worker count
+     * which defaults to the number of available processors.  Exits the JVM if the server
+     * could not be started.
+     *
+     * @param subopts the "-server" sub-options
+     * @param generator the tool run for each request
+     */
+    public static void start(String[] subopts, Generator generator) {
+        try {
+            String host = null;
+            String port = subopts[0];
+            int colon = port.lastIndexOf(':');
+            if (colon != -1) {
+                host = port.substring(0, colon);
+                port = port.substring(colon + 1);
+            }
+            int workers = (subopts.length > 1) ? Integer.parseInt(subopts[1]) :
+                                                  Runtime.getRuntime().availableProcessors();
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(host), Integer.parseInt(port));
+
+            new Server(address, workers, generator).start();
+            System.out.println("Listening on " + address + " with " + workers + " workers");
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Invalid server port or worker count: " + e.getMessage());
+            System.exit(1);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        catch (IOException e) {
+            System.err.println("Could not start server: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Start accepting requests.  Output printed by the tool while handling requests is
+     * discarded from now on.
+     */
+    public void start() {
+        console = System.out;
+        output = new ThreadOutput(console);
+        PrintStream routed = new PrintStream(output, true);
+        System.setOut(routed);
+        System.setErr(routed);
+        server.start();
+    }
+
+    /**
+     * Stop accepting requests and wait for the current requests to complete
+     *
+     * @param delay the maximum time to wait, in seconds
+     */
+    public void stop(int delay) {
+        server.stop(delay);
+        executor.shutdown();
+    }
+
+    private class Handler implements HttpHandler {
+
+        private boolean pssh;
+
+        Handler(boolean pssh) {
+            this.pssh = pssh;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            output.capture(DISCARD);
+            try {
+                respond(exchange, pssh);
+            }
+            finally {
+                output.capture(null);
+                exchange.close();
+            }
+        }
+    }
+
+    // Generate the cryptfile for a request and send the response
+    private void respond(HttpExchange exchange, boolean pssh) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            sendError(exchange, 405, "Only POST requests are supported");
+            return;
+        }
+
+        byte[] body = readBody(exchange.getRequestBody());
+        if (body == null) {
+            sendError(exchange, 413, "Request is larger than " + MAX_REQUEST_SIZE + " bytes");
+            return;
+        }
+
+        CryptfileBuilder builder;
+        try {
+            String[] args = Batch.parseArgs(new String(body, "UTF-8").trim());
+            for (String arg : args) {
+                if (REJECTED_OPTIONS.contains(arg))
+                    throw new IllegalArgumentException("Option not allowed: " + arg);
+            }
+            builder = generator.generate(args);
+        }
+        catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+            return;
+        }
+        catch (Exception e) {
+            console.println("Error generating cryptfile: " + e);
+            sendError(exchange, 500, "Error generating cryptfile: " + e.getMessage());
+            return;
+        }
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        if (pssh) {
+            for (DRMInfoPSSH p : builder.getPSSH())
+                response.write(p.generatePSSH());
+            send(exchange, 200, "application/octet-stream", response.toByteArray());
+        }
+        else {
+            builder.writeCryptfile(response);
+            send(exchange, 200, "application/xml; charset=UTF-8", response.toByteArray());
+        }
+    }
+
+    // Read the request body, or return null if it is too large
+    private static byte[] readBody(InputStream is) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = is.read(buf)) != -1) {
+            if (body.size() + n > MAX_REQUEST_SIZE)
+                return null;
+            body.write(buf, 0, n);
+        }
+        return body.toByteArray();
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, "text/plain; charset=UTF-8", (message + "\n").getBytes("UTF-8"));
+    }
+
+    // The response length is always sent, so that the connection can be kept alive
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, (body.length > 0) ? body.length : -1);
+        OutputStream os = exchange.getResponseBody();
+        os.write(body);
+        os.close();
+    }
+}
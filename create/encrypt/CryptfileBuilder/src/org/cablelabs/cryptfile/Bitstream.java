@@ -26,6 +26,20 @@
 
 package org.cablelabs.cryptfile;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
@@ -39,8 +53,12 @@ import org.w3c.dom.Node;
  * To use, construct a default Bitstream, then use one of the setup* methods to set
  * data of a particular type.  You can re-use a single instance of this object
  * multiple times to generate multiple XML elements.
+ * 
+ * A Bitstream can also be written in binary form with {@link #write(ByteBuffer)}, which
+ * produces the same bytes that MP4Box assembles from the XML element.  Only fields that
+ * are a whole number of bytes wide can be written in binary form.
  */
-public class Bitstream implements MP4BoxXML {
+public class Bitstream implements MP4BoxXML, MP4BoxXMLStream {
     
     private BSType type;
     private int bits;
@@ -52,6 +70,10 @@ public class Bitstream implements MP4BoxXML {
     private int offset;
     private int length;
     
+    // Mapped file range and its digest, computed when first requested
+    private ByteBuffer mapped;
+    private byte[] digest;
+    
     // All String values
     private String string;
     
@@ -69,7 +91,7 @@ public class Bitstream implements MP4BoxXML {
         DATA
     }
     
-    private static final String ELEMENT = "BS";
+    static final String ELEMENT = "BS";
     private static final String ATTR_BITS = "bits";
     private static final String ATTR_VALUE = "value";
     private static final String ATTR_ENDIAN = "endian";
@@ -78,10 +100,12 @@ public class Bitstream implements MP4BoxXML {
     private static final String ATTR_FILE_OFFSET = "dataOffset";
     private static final String ATTR_FILE_LENGTH = "dataLength";
     private static final String ATTR_FOURCC = "fcc";
-    private static final String ATTR_ID128 = "ID128";
+    static final String ATTR_ID128 = "ID128";
     private static final String ATTR_DATA64 = "data64";
     private static final String ATTR_DATA = "data";
     
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
     private void setupIntegerInternal(BSType type, int value, int bits) {
         this.type = type;
         this.value = value;
@@ -122,9 +146,100 @@ public class Bitstream implements MP4BoxXML {
         string = file;
         this.offset = offset;
         this.length = length;
+        mapped = null;
+        digest = null;
         bits = 0;
     }
     
+    /**
+     * Contents of a file stored in the bitstream, checked and memory-mapped now rather than
+     * read when the bitstream is written.  The cryptfile element is the same as for
+     * {@link #setupFile(String, int, int)} with the actual length of the range, and the
+     * binary form is copied from the mapping so large files are never read onto the heap.
+     * The mapping is released once the bitstream is set up again and garbage collected.
+     * 
+     * @param file the file name
+     * @param offset the offset into the file (0 for start of file)
+     * @param length the length of data to write starting at the given offset (-1
+     * to include all data to the end of the file)
+     * @throws IOException if the file could not be opened or mapped
+     * @throws IllegalArgumentException if the range is not within the file
+     */
+    public void setupMappedFile(String file, int offset, int length) throws IOException {
+        mapFile(file, offset, length, 0);
+    }
+    
+    /**
+     * Contents of a file preceded by an integer value indicating the length of the data,
+     * checked and memory-mapped now as with {@link #setupMappedFile(String, int, int)}
+     * 
+     * @param file the file name
+     * @param offset the offset into the file (0 for start of file)
+     * @param length the length of data to write starting at the given offset (-1
+     * to include all data to the end of the file)
+     * @param bits the width of the length field in bits
+     * @throws IOException if the file could not be opened or mapped
+     * @throws IllegalArgumentException if the range is not within the file or its length is
+     * too long for the given bit width
+     */
+    public void setupMappedFile(String file, int offset, int length, int bits) throws IOException {
+        mapFile(file, offset, length, bits);
+    }
+    
+    // Check and map a file range, then set up the bitstream.  Nothing is changed if the range
+    // or its length field width is invalid.  A width of 0 means no length field
+    private void mapFile(String file, int offset, int length, int bits) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel fc = fis.getChannel();
+            long size = fc.size();
+            if (offset < 0 || offset > size)
+                throw new IllegalArgumentException("Offset " + offset + " is outside of file " + file +
+                                                   " (size = " + size + ")");
+            if (length == -1)
+                length = (int)Math.min(size - offset, Integer.MAX_VALUE);
+            if (length < 0 || offset + (long)length > size)
+                throw new IllegalArgumentException("Range " + offset + "+" + length + " is outside of file " +
+                                                   file + " (size = " + size + ")");
+            if (bits > 0 && length > (Math.pow(2, bits) - 1))
+                throw new IllegalArgumentException("File data length is too long for given bit width");
+            
+            // The mapping stays valid after the channel is closed
+            ByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            setupFile(file, offset, length);
+            mapped = buf;
+            this.bits = bits;
+        }
+        finally {
+            fis.close();
+        }
+    }
+    
+    /**
+     * Returns the SHA-256 digest of the file data of a bitstream set up with
+     * {@link #setupMappedFile(String, int, int)}, for use in cache keys.  The digest is
+     * computed from the mapping the first time it is requested.
+     * 
+     * @return the digest
+     * @throws IllegalStateException if the bitstream is not a mapped file
+     */
+    public byte[] getFileDigest() {
+        if (type != BSType.FILE || mapped == null)
+            throw new IllegalStateException("Bitstream is not a mapped file");
+        if (digest == null) {
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+            md.update(mapped.duplicate());
+            digest = md.digest();
+        }
+        return digest.clone();
+    }
+    
     /**
      * UTF-8 encoded string value stored in the bitstream
      * 
@@ -252,48 +367,348 @@ public class Bitstream implements MP4BoxXML {
         this.bits = bits;
     }
     
-    /*
-     * (non-Javadoc)
-     * @see org.cablelabs.cryptfile.MP4BoxXML#generateXML(org.w3c.dom.Document)
+    /**
+     * Returns the number of bytes written by {@link #write(ByteBuffer)}
+     * 
+     * @return the size of the binary form in bytes
      */
-    @Override
-    public Node generateXML(Document d) {
+    public int getSize() {
+        if (bits % 8 != 0)
+            throw new IllegalArgumentException("Bit width is not a whole number of bytes: bits = " + bits);
+        
+        switch (type) {
+        case VALUE:
+        case VALUE_LE:
+            return bits / 8;
+        case FILE:
+            return bits / 8 + (int)fileLength();
+        case STRING:
+            return bits / 8 + string.getBytes(UTF_8).length;
+        case FOURCC:
+            return 4;
+        case ID128:
+            return 16;
+        case DATA64:
+        case DATA:
+            return bits / 8 + data.length;
+        default:
+            return 0;
+        }
+    }
+    
+    /**
+     * Write the binary form of this bitstream.  Integers are written in big-endian order
+     * unless set up as little-endian.  Strings, data and files are preceded by their
+     * length if a length field width was given.
+     * 
+     * @param buf the buffer that will receive {@link #getSize()} bytes
+     * @throws IOException if the contents of a file could not be read
+     */
+    public void write(ByteBuffer buf) throws IOException {
+        if (bits % 8 != 0)
+            throw new IllegalArgumentException("Bit width is not a whole number of bytes: bits = " + bits);
+        
+        switch (type) {
+        case VALUE:
+            putInteger(buf, value, bits / 8, false);
+            break;
+        case VALUE_LE:
+            putInteger(buf, value, bits / 8, true);
+            break;
+        case FILE:
+            writeFile(buf);
+            break;
+        case STRING:
+            byte[] bytes = string.getBytes(UTF_8);
+            putInteger(buf, bytes.length, bits / 8, false);
+            buf.put(bytes);
+            break;
+        case FOURCC:
+            for (int i = 0; i < 4; i++)
+                buf.put((byte)string.charAt(i));
+            break;
+        case ID128:
+            buf.put(data);
+            break;
+        case DATA64:
+        case DATA:
+            putInteger(buf, data.length, bits / 8, false);
+            buf.put(data);
+            break;
+        default:
+            break;
+        }
+    }
+    
+    // Write an integer value into the given number of bytes, 0-padded
+    private static void putInteger(ByteBuffer buf, int value, int bytes, boolean littleEndian) {
+        for (int i = 0; i < bytes; i++) {
+            int shift = 8 * (littleEndian ? i : bytes - 1 - i);
+            buf.put((shift < 32) ? (byte)(value >>> shift) : 0);
+        }
+    }
+    
+    // Returns the number of bytes of the file to be written
+    private long fileLength() {
+        if (mapped != null)
+            return mapped.capacity();
+        return (length == -1) ? new File(string).length() - offset : length;
+    }
+    
+    // Write the length field and contents of a file
+    private void writeFile(ByteBuffer buf) throws IOException {
+        int fileLength = (int)fileLength();
+        putInteger(buf, fileLength, bits / 8, false);
+        
+        if (mapped != null) {
+            buf.put(mapped.duplicate());
+            return;
+        }
+        
+        FileInputStream fis = new FileInputStream(string);
+        try {
+            FileChannel fc = fis.getChannel();
+            ByteBuffer dst = buf.slice();
+            dst.limit(fileLength);
+            while (dst.hasRemaining()) {
+                if (fc.read(dst, offset + dst.position()) < 0)
+                    throw new IOException("Unexpected end of file: " + string);
+            }
+            buf.position(buf.position() + fileLength);
+        }
+        finally {
+            fis.close();
+        }
+    }
+    
+    // Attribute lookup shared by the DOM and stream readers.  Returns null if the
+    // attribute is not present
+    private interface AttributeSource {
+        String get(String name);
+    }
+    
+    /**
+     * Create a bitstream from a BS element as generated by {@link #generateXML(Document)}
+     * 
+     * @param e the BS element
+     * @return the bitstream
+     * @throws IllegalArgumentException if the element is not a valid BS element
+     */
+    public static Bitstream fromXML(final Element e) {
+        if (!ELEMENT.equals(e.getNodeName()))
+            throw new IllegalArgumentException("Not a bitstream element: " + e.getNodeName());
+        
+        return fromAttributes(new AttributeSource() {
+            public String get(String name) {
+                return e.hasAttribute(name) ? e.getAttribute(name) : null;
+            }
+        });
+    }
+    
+    /**
+     * Read a bitstream from a BS element.  The reader must be positioned at the start of
+     * the element and is left at its end.
+     * 
+     * @param r the XML stream reader
+     * @return the bitstream
+     * @throws XMLStreamException if the element could not be read
+     * @throws IllegalArgumentException if the element is not a valid BS element
+     */
+    public static Bitstream readXML(final XMLStreamReader r) throws XMLStreamException {
+        if (!ELEMENT.equals(r.getLocalName()))
+            throw new IllegalArgumentException("Not a bitstream element: " + r.getLocalName());
         
-        Element e = d.createElement(ELEMENT);
+        Bitstream b = fromAttributes(new AttributeSource() {
+            public String get(String name) {
+                return r.getAttributeValue(null, name);
+            }
+        });
+        if (r.nextTag() != XMLStreamConstants.END_ELEMENT)
+            throw new IllegalArgumentException("Unexpected element in bitstream: " + r.getLocalName());
+        return b;
+    }
+    
+    // Create a bitstream from the attributes of a BS element
+    private static Bitstream fromAttributes(AttributeSource attrs) {
+        Bitstream b = new Bitstream();
+        String value;
+        if ((value = attrs.get(ATTR_ID128)) != null) {
+            b.setupID128(decodeHex(value));
+        }
+        else if ((value = attrs.get(ATTR_FOURCC)) != null) {
+            b.setupFourCC(value.toCharArray());
+        }
+        else if ((value = attrs.get(ATTR_DATA64)) != null) {
+            b.setupDataB64(Base64.decodeBase64(value));
+        }
+        else if ((value = attrs.get(ATTR_DATA)) != null) {
+            b.setupData(decodeHex(value));
+        }
+        else if ((value = attrs.get(ATTR_STRING)) != null) {
+            b.setupString(value);
+        }
+        else if ((value = attrs.get(ATTR_FILE)) != null) {
+            String offset = attrs.get(ATTR_FILE_OFFSET);
+            String length = attrs.get(ATTR_FILE_LENGTH);
+            b.setupFile(value,
+                        (offset != null) ? Integer.parseInt(offset) : 0,
+                        (length != null) ? Integer.parseInt(length) : -1);
+        }
+        else if ((value = attrs.get(ATTR_VALUE)) != null) {
+            b.setupIntegerInternal("little".equals(attrs.get(ATTR_ENDIAN)) ? BSType.VALUE_LE : BSType.VALUE,
+                                   Integer.parseInt(value), 0);
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported bitstream element");
+        }
+        if ((value = attrs.get(ATTR_BITS)) != null)
+            b.bits = Integer.parseInt(value);
+        return b;
+    }
+    
+    /**
+     * Decode hexadecimal data with an optional leading "0x"
+     * 
+     * @param hex the hexadecimal string
+     * @return the data
+     * @throws IllegalArgumentException if the string is not valid hexadecimal
+     */
+    static byte[] decodeHex(String hex) {
+        int start = hex.startsWith("0x") ? 2 : 0;
+        byte[] data = new byte[(hex.length() - start) / 2];
+        KeyPair.decodeHex(hex, start, hex.length(), data, 0);
+        return data;
+    }
+    
+    // Returns the value of a 128-bit bitstream, or null if this is not one
+    byte[] getID128() {
+        return (type == BSType.ID128) ? data : null;
+    }
+    
+    // Returns the value of a big-endian integer bitstream, or null if this is not one
+    Integer getInteger() {
+        return (type == BSType.VALUE) ? value : null;
+    }
+    
+    // Attribute output shared by the DOM and stream writers.  Binary values are passed as
+    // bytes so that writers able to encode them directly don't need a string for each one
+    private interface AttributeSink {
+        void put(String name, String value) throws XMLStreamException;
+        void put(String name, int value) throws XMLStreamException;
+        void putHex(String name, byte[] value) throws XMLStreamException;
+        void putBase64(String name, byte[] value) throws XMLStreamException;
+    }
+    
+    // Sink for writers that only accept string values
+    private static abstract class StringAttributeSink implements AttributeSink {
+        public void put(String name, int value) throws XMLStreamException {
+            put(name, Integer.toString(value));
+        }
+        public void putHex(String name, byte[] value) throws XMLStreamException {
+            put(name, Hex.encodeHexString(value));
+        }
+        public void putBase64(String name, byte[] value) throws XMLStreamException {
+            put(name, Base64.encodeBase64String(value));
+        }
+    }
+    
+    // Write the attributes of the element
+    private void writeAttributes(AttributeSink attrs) throws XMLStreamException {
         if (bits != 0)
-            e.setAttribute(ATTR_BITS, Integer.toString(bits));
+            attrs.put(ATTR_BITS, bits);
         
         switch (type) {
         case VALUE_LE:
-            e.setAttribute(ATTR_ENDIAN, "little");
+            attrs.put(ATTR_ENDIAN, "little");
             // fall through
         case VALUE:
-            e.setAttribute(ATTR_VALUE, Integer.toString(value));
+            attrs.put(ATTR_VALUE, value);
             break;
         case FILE:
-            e.setAttribute(ATTR_FILE, string);
-            e.setAttribute(ATTR_FILE_OFFSET, Integer.toString(offset));
-            e.setAttribute(ATTR_FILE_LENGTH, Integer.toString(length));
+            attrs.put(ATTR_FILE, string);
+            attrs.put(ATTR_FILE_OFFSET, offset);
+            attrs.put(ATTR_FILE_LENGTH, length);
             break;
         case STRING:
-            e.setAttribute(ATTR_STRING, string);
+            attrs.put(ATTR_STRING, string);
             break;
         case FOURCC:
-            e.setAttribute(ATTR_FOURCC, string);
+            attrs.put(ATTR_FOURCC, string);
             break;
         case ID128:
-            e.setAttribute(ATTR_ID128, Hex.encodeHexString(data));
+            attrs.putHex(ATTR_ID128, data);
             break;
         case DATA64:
-            e.setAttribute(ATTR_DATA64, Base64.encodeBase64String(data));
+            attrs.putBase64(ATTR_DATA64, data);
             break;
         case DATA:
-            e.setAttribute(ATTR_DATA, Hex.encodeHexString(data));
+            attrs.putHex(ATTR_DATA, data);
             break;
         default:
             break;
         }
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#generateXML(org.w3c.dom.Document)
+     */
+    @Override
+    public Node generateXML(Document d) {
+        
+        final Element e = d.createElement(ELEMENT);
+        try {
+            writeAttributes(new StringAttributeSink() {
+                public void put(String name, String value) {
+                    e.setAttribute(name, value);
+                }
+            });
+        }
+        catch (XMLStreamException ex) {
+            // Not thrown when setting DOM attributes
+            throw new IllegalStateException(ex);
+        }
         
         return e;
     }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXMLStream#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(final XMLStreamWriter w) throws XMLStreamException {
+        
+        w.writeEmptyElement(ELEMENT);
+        if (w instanceof FormattedXMLStreamWriter) {
+            writeAttributes(new FormattedAttributeSink((FormattedXMLStreamWriter)w));
+        }
+        else {
+            writeAttributes(new StringAttributeSink() {
+                public void put(String name, String value) throws XMLStreamException {
+                    w.writeAttribute(name, value);
+                }
+            });
+        }
+    }
+    
+    // Sink that has the cryptfile writer encode values straight into its output buffer
+    private static class FormattedAttributeSink implements AttributeSink {
+        private FormattedXMLStreamWriter w;
+        FormattedAttributeSink(FormattedXMLStreamWriter w) {
+            this.w = w;
+        }
+        public void put(String name, String value) throws XMLStreamException {
+            w.writeAttribute(name, value);
+        }
+        public void put(String name, int value) throws XMLStreamException {
+            w.writeAttribute(name, value);
+        }
+        public void putHex(String name, byte[] value) throws XMLStreamException {
+            w.writeHexAttribute(name, null, value);
+        }
+        public void putBase64(String name, byte[] value) throws XMLStreamException {
+            w.writeBase64Attribute(name, value);
+        }
+    }
 }
@@ -0,0 +1,173 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * DRMInfo element whose PSSH data is a list of raw bitstreams, as read back from an
+ * existing cryptfile.  The PSSH data is not interpreted, so any DRM system can be
+ * represented.
+ */
+public class BitstreamPSSH extends DRMInfoPSSH implements MP4BoxXMLStream {
+
+    private List<Bitstream> bitstreams;
+
+    /**
+     * Create a new DRMInfo element (PSSH version 0)
+     *
+     * @param systemID the unique identifier registered to a particular DRM system
+     * @param bitstreams the bitstreams that make up the PSSH data
+     */
+    public BitstreamPSSH(byte[] systemID, List<Bitstream> bitstreams) {
+        super(systemID);
+        this.bitstreams = new ArrayList<Bitstream>(bitstreams);
+    }
+
+    /**
+     * Create a new DRMInfo element (PSSH version 1+)
+     *
+     * @param systemID the unique identifier registered to a particular DRM system
+     * @param psshVersion pssh version
+     * @param keyIDs an array of 16-byte key ID values
+     * @param bitstreams the bitstreams that make up the PSSH data
+     */
+    public BitstreamPSSH(byte[] systemID, int psshVersion, byte[][] keyIDs, List<Bitstream> bitstreams) {
+        super(systemID, psshVersion, keyIDs);
+        this.bitstreams = new ArrayList<Bitstream>(bitstreams);
+    }
+
+    /**
+     * Returns the bitstreams that make up the PSSH data
+     *
+     * @return the bitstreams
+     */
+    public List<Bitstream> getBitstreams() {
+        return new ArrayList<Bitstream>(bitstreams);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#generatePSSHData(java.io.DataOutputStream)
+     */
+    @Override
+    protected void generatePSSHData(DataOutputStream dos) throws IOException {
+        writeBitstreams(dos, bitstreams);
+    }
+
+    /**
+     * Returns a ContentProtection element carrying the complete PSSH box.  Any DRM-specific
+     * elements that the original DRMInfo would have added are not available.
+     *
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#generateContentProtection(org.w3c.dom.Document)
+     */
+    @Override
+    public Element generateContentProtection(Document d) throws IOException {
+        Element e = super.generateContentProtection(d);
+        e.appendChild(generateCENCContentProtectionData(d));
+        return e;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#generateXML(org.w3c.dom.Document)
+     */
+    @Override
+    public Node generateXML(Document d) {
+        Element e = generateDRMInfo(d);
+        for (Bitstream b : bitstreams) {
+            e.appendChild(b.generateXML(d));
+        }
+        return e;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXMLStream#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        writeDRMInfo(w);
+        for (Bitstream b : bitstreams) {
+            b.writeXML(w);
+        }
+        w.writeEndElement();
+    }
+
+    /**
+     * Read a DRMInfo element of type "pssh".  The reader must be positioned at the start of
+     * the element and is left at its end.
+     *
+     * @param r the XML stream reader
+     * @return the DRMInfo
+     * @throws XMLStreamException if the element could not be read
+     * @throws IllegalArgumentException if the element is not a valid DRMInfo element
+     */
+    static BitstreamPSSH readXML(XMLStreamReader r) throws XMLStreamException {
+        if (!DRM_INFO_ELEMENT.equals(r.getLocalName()))
+            throw new IllegalArgumentException("Not a DRMInfo element: " + r.getLocalName());
+        if (!"pssh".equals(r.getAttributeValue(null, "type")))
+            throw new IllegalArgumentException("Unsupported DRMInfo type: " + r.getAttributeValue(null, "type"));
+        String value = r.getAttributeValue(null, "version");
+        int psshVersion = (value != null) ? Integer.parseInt(value) : 0;
+
+        List<Bitstream> bitstreams = new ArrayList<Bitstream>();
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT)
+            bitstreams.add(Bitstream.readXML(r));
+
+        // The system ID comes first, followed by the key IDs for version 1+
+        byte[] systemID = bitstreams.isEmpty() ? null : bitstreams.get(0).getID128();
+        if (systemID == null)
+            throw new IllegalArgumentException("DRMInfo does not start with a system ID");
+        if (psshVersion < 1)
+            return new BitstreamPSSH(systemID, bitstreams.subList(1, bitstreams.size()));
+
+        Integer keyIDCount = (bitstreams.size() > 1) ? bitstreams.get(1).getInteger() : null;
+        if (keyIDCount == null || keyIDCount < 0 || bitstreams.size() < 2 + keyIDCount)
+            throw new IllegalArgumentException("DRMInfo does not contain a valid key ID list");
+        byte[][] keyIDs = new byte[keyIDCount][];
+        for (int i = 0; i < keyIDs.length; i++) {
+            keyIDs[i] = bitstreams.get(2 + i).getID128();
+            if (keyIDs[i] == null)
+                throw new IllegalArgumentException("DRMInfo key ID " + i + " is not a 128-bit value");
+        }
+        return new BitstreamPSSH(systemID, psshVersion, keyIDs,
+                                 bitstreams.subList(2 + keyIDs.length, bitstreams.size()));
+    }
+}
@@ -26,6 +26,11 @@
 
 package org.cablelabs.cryptfile;
 
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.apache.commons.codec.binary.Hex;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -34,7 +39,7 @@ import org.w3c.dom.Node;
 /**
  * Defines an encyption key as used in the MP4Box crypt files
  */
-public class CryptKey implements MP4BoxXML {
+public class CryptKey implements MP4BoxXML, MP4BoxXMLStream {
     
     private KeyPair keypair;
     
@@ -76,4 +81,45 @@ public class CryptKey implements MP4BoxXML {
         e.setAttribute(ATTR_KEY, "0x" + Hex.encodeHexString(keypair.getKey()));
         return e;
     }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXMLStream#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        w.writeEmptyElement(ELEMENT);
+        if (w instanceof FormattedXMLStreamWriter) {
+            FormattedXMLStreamWriter fw = (FormattedXMLStreamWriter)w;
+            fw.writeHexAttribute(ATTR_KEYID, "0x", keypair.getID());
+            fw.writeHexAttribute(ATTR_KEY, "0x", keypair.getKey());
+        }
+        else {
+            w.writeAttribute(ATTR_KEYID, "0x" + Hex.encodeHexString(keypair.getID()));
+            w.writeAttribute(ATTR_KEY, "0x" + Hex.encodeHexString(keypair.getKey()));
+        }
+    }
+    
+    /**
+     * Read a key from a key element.  The reader must be positioned at the start of the
+     * element and is left at its end.
+     * 
+     * @param r the XML stream reader
+     * @return the key
+     * @throws XMLStreamException if the element could not be read
+     * @throws IllegalArgumentException if the element is not a valid key element
+     */
+    static CryptKey readXML(XMLStreamReader r) throws XMLStreamException {
+        if (!ELEMENT.equals(r.getLocalName()))
+            throw new IllegalArgumentException("Not a key element: " + r.getLocalName());
+        
+        String keyID = r.getAttributeValue(null, ATTR_KEYID);
+        String key = r.getAttributeValue(null, ATTR_KEY);
+        if (keyID == null || key == null)
+            throw new IllegalArgumentException("Key element must have both " + ATTR_KEYID + " and " + ATTR_KEY);
+        if (r.nextTag() != XMLStreamConstants.END_ELEMENT)
+            throw new IllegalArgumentException("Unexpected element in key: " + r.getLocalName());
+        
+        return new CryptKey(new KeyPair(Bitstream.decodeHex(keyID), Bitstream.decodeHex(key)));
+    }
 }
@@ -28,7 +28,11 @@ package org.cablelabs.cryptfile;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.security.SecureRandom;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 import org.apache.commons.codec.binary.Hex;
 import org.w3c.dom.Document;
@@ -39,23 +43,30 @@ import org.w3c.dom.Node;
  * Defines a single track within an ISOBMFF file which may or may not
  * be specified for encryption
  */
-public class CryptTrack implements MP4BoxXML {
+public class CryptTrack implements MP4BoxXML, MP4BoxXMLStream {
     
     private int trackID;
     private boolean isEncrypted = false;
     private int ivSize = 0;
     private byte[] iv;
+    private boolean constantIV = false;
     
     private List<CryptKey> keys;
     private int keyRoll = -1;
+    private int cryptByteBlock = 0;
+    private int skipByteBlock = 0;
     
-    private static final String ELEMENT = "CrypTrack";
-    private static final String ATTR_TRACK_ID = "trackID";
+    static final String ELEMENT = "CrypTrack";
+    static final String ATTR_TRACK_ID = "trackID";
     private static final String ATTR_IS_ENCRYPTED = "isEncrypted";
     private static final String ATTR_IV_SIZE = "IV_size";
     private static final String ATTR_FIRST_IV = "first_IV";
+    private static final String ATTR_CONSTANT_IV_SIZE = "constant_IV_size";
+    private static final String ATTR_CONSTANT_IV = "constant_IV";
     private static final String ATTR_SAI_BOX = "saiSavedBox";
     private static final String ATTR_KEY_ROLL = "keyRoll";
+    static final String ATTR_CRYPT_BYTE_BLOCK = "crypt_byte_block";
+    static final String ATTR_SKIP_BYTE_BLOCK = "skip_byte_block";
     
     /**
      * 8-byte (64-bit) initialization vector
@@ -82,9 +93,7 @@ public class CryptTrack implements MP4BoxXML {
         
         // Generate random IV or use the one provided
         if (iv == null) {
-            this.iv = new byte[ivSize];
-            SecureRandom sr = new SecureRandom();
-            sr.nextBytes(this.iv);
+            this.iv = KeyGenerator.getDefault().generateIV(ivSize);
         }
         else {
             this.iv = iv;
@@ -151,6 +160,48 @@ public class CryptTrack implements MP4BoxXML {
             this.keyRoll = keyRoll;
     }
     
+    /**
+     * Create a new track encrypted with a single key, where every sample is encrypted with
+     * the same constant initialization vector.  Constant IVs are used by the 'cbcs' scheme.
+     * 
+     * @param trackID the track ID found in the ISOBMFF track header
+     * @param ivSize the length of the initialization vector (either IV_SIZE_8 or IV_SIZE_16).
+     * Constant IVs are only used by 'cbcs', which requires IV_SIZE_16
+     * @param iv the constant initialization vector, or null if you want a random IV of the
+     * given IV length generated for you
+     * @param key the key that will encrypt the track
+     * @param constantIV true if the IV should be used for every sample, false if it is
+     * only the IV of the first sample
+     */
+    public CryptTrack(int trackID, int ivSize, byte[] iv, CryptKey key, boolean constantIV) {
+        this(trackID, ivSize, iv, key);
+        if (constantIV && ivSize != IV_SIZE_16)
+            throw new IllegalArgumentException("Constant IVs must be " + IV_SIZE_16 + " bytes: " + ivSize);
+        this.constantIV = constantIV;
+    }
+    
+    /**
+     * Create a new track encrypted with rolling keys, where every sample is encrypted with
+     * the same constant initialization vector.  Constant IVs are used by the 'cbcs' scheme.
+     * 
+     * @param trackID the track ID found in the ISOBMFF track header
+     * @param ivSize the length of the initialization vector (either IV_SIZE_8 or IV_SIZE_16).
+     * Constant IVs are only used by 'cbcs', which requires IV_SIZE_16
+     * @param iv the constant initialization vector, or null if you want a random IV of the
+     * given IV length generated for you
+     * @param key the keys that will encrypt the track
+     * @param keyRoll the number of consecutive samples that will be encrypted with a
+     * particular key.  If key list contains only one key, this parameter is ignored
+     * @param constantIV true if the IV should be used for every sample, false if it is
+     * only the IV of the first sample
+     */
+    public CryptTrack(int trackID, int ivSize, byte[] iv, List<CryptKey> keys, int keyRoll, boolean constantIV) {
+        this(trackID, ivSize, iv, keys, keyRoll);
+        if (constantIV && ivSize != IV_SIZE_16)
+            throw new IllegalArgumentException("Constant IVs must be " + IV_SIZE_16 + " bytes: " + ivSize);
+        this.constantIV = constantIV;
+    }
+    
     /**
      * Add a new encryption key to this track
      * 
@@ -168,6 +219,169 @@ public class CryptTrack implements MP4BoxXML {
     public List<CryptKey> getKeys() {
         return new ArrayList<CryptKey>(keys);
     }
+    
+    /**
+     * Returns the number of keys associated with this track
+     * 
+     * @return the number of keys
+     */
+    public int getKeyCount() {
+        return keys.size();
+    }
+    
+    /**
+     * Returns one of the keys associated with this track.  Unlike {@link #getKeys()},
+     * the key list is not copied.
+     * 
+     * @param index the index of the key, in the order the keys were added
+     * @return the key
+     */
+    public CryptKey getKey(int index) {
+        return keys.get(index);
+    }
+    
+    /**
+     * Returns the track ID found in the ISOBMFF track header
+     * 
+     * @return the track ID
+     */
+    public int getTrackID() {
+        return trackID;
+    }
+    
+    /**
+     * Returns whether or not this track is encrypted
+     * 
+     * @return true if the track is encrypted, false otherwise
+     */
+    public boolean isEncrypted() {
+        return isEncrypted;
+    }
+    
+    /**
+     * Returns the length of the initialization vector (either IV_SIZE_8 or IV_SIZE_16)
+     * 
+     * @return the IV size
+     */
+    public int getIVSize() {
+        return ivSize;
+    }
+    
+    /**
+     * Returns the initialization vector used for the first sample of the track, or for
+     * every sample if this track uses a constant IV
+     * 
+     * @return the first IV
+     */
+    public byte[] getIV() {
+        return iv;
+    }
+    
+    /**
+     * Returns whether or not every sample of this track is encrypted with the same IV.
+     * Constant IVs are signalled in the track encryption box rather than with each sample
+     * 
+     * @return true if this track uses a constant IV, false otherwise
+     */
+    public boolean isConstantIV() {
+        return constantIV;
+    }
+    
+    /**
+     * Returns the number of consecutive samples encrypted with each key
+     * 
+     * @return the key roll sample count, or -1 if this track does not use rolling keys
+     */
+    public int getKeyRoll() {
+        return keyRoll;
+    }
+
+    /**
+     * Set the encryption pattern of this track.  Only 'cbcs' uses patterns, and only for
+     * video tracks: other tracks encrypt every block and have no pattern.
+     * 
+     * @param cryptByteBlock the number of encrypted 16-byte blocks in each repetition of
+     * the pattern, or 0 for no pattern
+     * @param skipByteBlock the number of clear 16-byte blocks in each repetition of the
+     * pattern, or 0 for no pattern
+     */
+    public void setPattern(int cryptByteBlock, int skipByteBlock) {
+        if (cryptByteBlock < 0 || skipByteBlock < 0 || cryptByteBlock > 15 || skipByteBlock > 15 ||
+                (cryptByteBlock == 0 && skipByteBlock != 0))
+            throw new IllegalArgumentException("Invalid encryption pattern: " + cryptByteBlock + ":" + skipByteBlock);
+        if (cryptByteBlock != 0 && !isEncrypted)
+            throw new IllegalArgumentException("Track " + trackID + " is not encrypted, so it can not have a pattern");
+        this.cryptByteBlock = cryptByteBlock;
+        this.skipByteBlock = skipByteBlock;
+    }
+    
+    /**
+     * Returns whether or not this track is encrypted with a pattern of encrypted and clear
+     * blocks
+     * 
+     * @return true if this track has an encryption pattern, false if every block is encrypted
+     */
+    public boolean hasPattern() {
+        return cryptByteBlock != 0;
+    }
+    
+    /**
+     * Returns the number of encrypted 16-byte blocks in each repetition of the encryption
+     * pattern
+     * 
+     * @return the crypt byte block count, or 0 if this track has no pattern
+     */
+    public int getCryptByteBlock() {
+        return cryptByteBlock;
+    }
+    
+    /**
+     * Returns the number of clear 16-byte blocks in each repetition of the encryption
+     * pattern
+     * 
+     * @return the skip byte block count, or 0 if this track has no pattern
+     */
+    public int getSkipByteBlock() {
+        return skipByteBlock;
+    }
+
+    // Returns the attributes of the element as alternating names and values
+    private String[] attributes() {
+        List<String> attrs = new ArrayList<String>(12);
+        attrs.add(ATTR_TRACK_ID);
+        attrs.add(Integer.toString(trackID));
+        attrs.add(ATTR_IS_ENCRYPTED);
+        attrs.add(isEncrypted ? "1" : "0");
+        if (isEncrypted) {
+            if (constantIV) {
+                attrs.add(ATTR_IV_SIZE);
+                attrs.add("0");
+                attrs.add(ATTR_CONSTANT_IV_SIZE);
+                attrs.add(Integer.toString(ivSize));
+                attrs.add(ATTR_CONSTANT_IV);
+                attrs.add("0x" + Hex.encodeHexString(iv));
+            }
+            else {
+                attrs.add(ATTR_IV_SIZE);
+                attrs.add(Integer.toString(ivSize));
+                attrs.add(ATTR_FIRST_IV);
+                attrs.add("0x" + Hex.encodeHexString(iv));
+            }
+            attrs.add(ATTR_SAI_BOX);
+            attrs.add("senc");
+            if (keyRoll != -1) {
+                attrs.add(ATTR_KEY_ROLL);
+                attrs.add("roll=" + Integer.toString(keyRoll));
+            }
+            if (hasPattern()) {
+                attrs.add(ATTR_CRYPT_BYTE_BLOCK);
+                attrs.add(Integer.toString(cryptByteBlock));
+                attrs.add(ATTR_SKIP_BYTE_BLOCK);
+                attrs.add(Integer.toString(skipByteBlock));
+            }
+        }
+        return attrs.toArray(new String[attrs.size()]);
+    }
 
     /* (non-Javadoc)
      * @see org.cablelabs.cryptfile.MP4BoxXML#generateXML(org.w3c.dom.Document)
@@ -175,20 +389,101 @@ public class CryptTrack implements MP4BoxXML {
     @Override
     public Node generateXML(Document d) {
         Element e = d.createElement(ELEMENT);
-        e.setAttribute(ATTR_TRACK_ID, Integer.toString(trackID));
-        e.setAttribute(ATTR_IS_ENCRYPTED, (isEncrypted ? "1" : "0"));
-        if (isEncrypted) {
-            e.setAttribute(ATTR_IV_SIZE, Integer.toString(ivSize));
-            e.setAttribute(ATTR_FIRST_IV, "0x" + Hex.encodeHexString(iv));
-            e.setAttribute(ATTR_SAI_BOX, "senc");
-            if (keyRoll != -1)
-                e.setAttribute(ATTR_KEY_ROLL, "roll=" + Integer.toString(keyRoll));
-        }
+        String[] attrs = attributes();
+        for (int i = 0; i < attrs.length; i += 2)
+            e.setAttribute(attrs[i], attrs[i + 1]);
         
-        for (CryptKey key : keys) {
-            e.appendChild(key.generateXML(d));
+        if (keys != null) {
+            for (CryptKey key : keys) {
+                e.appendChild(key.generateXML(d));
+            }
         }
         
         return e;
     }
+
+    /* (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXMLStream#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        w.writeStartElement(ELEMENT);
+        String[] attrs = attributes();
+        for (int i = 0; i < attrs.length; i += 2)
+            w.writeAttribute(attrs[i], attrs[i + 1]);
+        
+        if (keys != null) {
+            for (CryptKey key : keys) {
+                key.writeXML(w);
+            }
+        }
+        
+        w.writeEndElement();
+    }
+    
+    /**
+     * Read a track from a CrypTrack element.  The reader must be positioned at the start of
+     * the element and is left at its end.
+     * 
+     * @param r the XML stream reader
+     * @return the track
+     * @throws XMLStreamException if the element could not be read
+     * @throws IllegalArgumentException if the element is not a valid CrypTrack element
+     */
+    static CryptTrack readXML(XMLStreamReader r) throws XMLStreamException {
+        if (!ELEMENT.equals(r.getLocalName()))
+            throw new IllegalArgumentException("Not a track element: " + r.getLocalName());
+        
+        String trackID = r.getAttributeValue(null, ATTR_TRACK_ID);
+        if (trackID == null)
+            throw new IllegalArgumentException("Track element has no " + ATTR_TRACK_ID);
+        boolean encrypted = "1".equals(r.getAttributeValue(null, ATTR_IS_ENCRYPTED));
+        
+        int ivSize = 0;
+        byte[] iv = null;
+        boolean constantIV = false;
+        int keyRoll = -1;
+        int cryptByteBlock = 0;
+        int skipByteBlock = 0;
+        if (encrypted) {
+            String value = r.getAttributeValue(null, ATTR_IV_SIZE);
+            ivSize = (value != null) ? Integer.parseInt(value) : 0;
+            if (ivSize == 0) {
+                constantIV = true;
+                value = r.getAttributeValue(null, ATTR_CONSTANT_IV_SIZE);
+                ivSize = (value != null) ? Integer.parseInt(value) : 0;
+                value = r.getAttributeValue(null, ATTR_CONSTANT_IV);
+            }
+            else {
+                value = r.getAttributeValue(null, ATTR_FIRST_IV);
+            }
+            if (value == null)
+                throw new IllegalArgumentException("Encrypted track " + trackID + " has no initialization vector");
+            iv = Bitstream.decodeHex(value);
+            
+            value = r.getAttributeValue(null, ATTR_KEY_ROLL);
+            if (value != null) {
+                if (!value.startsWith("roll="))
+                    throw new IllegalArgumentException("Unsupported key roll: " + value);
+                keyRoll = Integer.parseInt(value.substring(5));
+            }
+            
+            value = r.getAttributeValue(null, ATTR_CRYPT_BYTE_BLOCK);
+            if (value != null)
+                cryptByteBlock = Integer.parseInt(value);
+            value = r.getAttributeValue(null, ATTR_SKIP_BYTE_BLOCK);
+            if (value != null)
+                skipByteBlock = Integer.parseInt(value);
+        }
+        
+        List<CryptKey> keys = new ArrayList<CryptKey>();
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT)
+            keys.add(CryptKey.readXML(r));
+        
+        if (!encrypted)
+            return new CryptTrack(Integer.parseInt(trackID), ivSize);
+        CryptTrack track = new CryptTrack(Integer.parseInt(trackID), ivSize, iv, keys, keyRoll, constantIV);
+        track.setPattern(cryptByteBlock, skipByteBlock);
+        return track;
+    }
 }
@@ -26,22 +26,24 @@
 
 package org.cablelabs.cryptfile;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
 
 /**
  * This class is used to generate "cryptfiles" for MP4Box media encryption
@@ -52,25 +54,100 @@ public class CryptfileBuilder {
     private List<DRMInfoPSSH> pssh;
     private List<CryptTrack> tracks;
     
-    private static final String ELEMENT = "GPACDRM";
-    private static final String ATTR_TYPE = "type";
+    static final String ELEMENT = "GPACDRM";
+    static final String ATTR_TYPE = "type";
 
     /**
      * Possible encryption schemes under Common Encryption
      */
     public enum ProtectionScheme {
-        AES_CTR("AES-CTR"),
-        AES_CBC("AES-CBC");
+        AES_CTR("AES-CTR", "cenc", 0, 0),
+        AES_CBC("AES-CBC", "cbc1", 0, 0),
+        AES_CBCS("AES-CBC-PATTERN", "cbcs", 1, 9);
         
         private String str;
+        private String schemeType;
+        private int cryptByteBlock;
+        private int skipByteBlock;
         
-        ProtectionScheme(String str) {
+        ProtectionScheme(String str, String schemeType, int cryptByteBlock, int skipByteBlock) {
             this.str = str;
+            this.schemeType = schemeType;
+            this.cryptByteBlock = cryptByteBlock;
+            this.skipByteBlock = skipByteBlock;
         }
         
         public String toString() {
             return str;
         }
+        
+        /**
+         * Returns the scheme type signalled in the ISOBMFF 'schm' box
+         * 
+         * @return the four character scheme type
+         */
+        public String getSchemeType() {
+            return schemeType;
+        }
+        
+        /**
+         * Returns whether or not this scheme encrypts video with a pattern of encrypted
+         * and clear blocks.  The pattern is set on each video track with
+         * {@link CryptTrack#setPattern(int, int)}
+         * 
+         * @return true if this is a pattern encryption scheme
+         */
+        public boolean isPattern() {
+            return cryptByteBlock != 0;
+        }
+        
+        /**
+         * Returns the number of encrypted 16-byte blocks in each repetition of the
+         * encryption pattern used for video tracks
+         * 
+         * @return the crypt byte block count, or 0 if this scheme does not use a pattern
+         */
+        public int getCryptByteBlock() {
+            return cryptByteBlock;
+        }
+        
+        /**
+         * Returns the number of clear 16-byte blocks in each repetition of the encryption
+         * pattern used for video tracks
+         * 
+         * @return the skip byte block count, or 0 if this scheme does not use a pattern
+         */
+        public int getSkipByteBlock() {
+            return skipByteBlock;
+        }
+        
+        /**
+         * Returns the scheme with the given 'schm' scheme type
+         * 
+         * @param schemeType the four character scheme type
+         * @return the scheme, or null if no scheme has the given type
+         */
+        public static ProtectionScheme forSchemeType(String schemeType) {
+            for (ProtectionScheme s : values()) {
+                if (s.schemeType.equals(schemeType))
+                    return s;
+            }
+            return null;
+        }
+        
+        /**
+         * Returns the scheme with the given name, as used in the cryptfile
+         * 
+         * @param str the scheme name
+         * @return the scheme, or null if no scheme has the given name
+         */
+        public static ProtectionScheme forName(String str) {
+            for (ProtectionScheme s : values()) {
+                if (s.str.equals(str))
+                    return s;
+            }
+            return null;
+        }
     }
     
     /**
@@ -133,12 +210,79 @@ public class CryptfileBuilder {
         this.pssh.addAll(pssh);
     }
     
+    /**
+     * Apply a set of changes.  Replaced tracks and DRMInfo elements keep their position,
+     * and new ones are added after the existing ones.
+     * 
+     * @param delta the changes
+     */
+    public void apply(CryptfileDelta delta) {
+        List<DRMInfoPSSH> newPSSH = new ArrayList<DRMInfoPSSH>(pssh.size() + delta.pssh.size());
+        Set<String> replaced = new HashSet<String>();
+        for (DRMInfoPSSH p : pssh) {
+            String id = KeyPair.toGUID(p.getSystemID());
+            if (!delta.pssh.containsKey(id))
+                newPSSH.add(p);
+            else if (replaced.add(id) && delta.pssh.get(id) != null)
+                newPSSH.add(delta.pssh.get(id));
+        }
+        for (Map.Entry<String, DRMInfoPSSH> e : delta.pssh.entrySet()) {
+            if (!replaced.contains(e.getKey()) && e.getValue() != null)
+                newPSSH.add(e.getValue());
+        }
+        
+        List<CryptTrack> newTracks = new ArrayList<CryptTrack>(tracks.size() + delta.tracks.size());
+        Set<Integer> replacedTracks = new HashSet<Integer>();
+        for (CryptTrack t : tracks) {
+            Integer id = t.getTrackID();
+            if (!delta.tracks.containsKey(id))
+                newTracks.add(t);
+            else if (replacedTracks.add(id) && delta.tracks.get(id) != null)
+                newTracks.add(delta.tracks.get(id));
+        }
+        for (Map.Entry<Integer, CryptTrack> e : delta.tracks.entrySet()) {
+            if (!replacedTracks.contains(e.getKey()) && e.getValue() != null)
+                newTracks.add(e.getValue());
+        }
+        
+        pssh = newPSSH;
+        tracks = newTracks;
+    }
+    
+    /**
+     * Returns the encryption scheme
+     * 
+     * @return the protection scheme
+     */
+    public ProtectionScheme getScheme() {
+        return scheme;
+    }
+    
+    /**
+     * Returns the track list
+     * 
+     * @return the tracks
+     */
+    public List<CryptTrack> getTracks() {
+        return new ArrayList<CryptTrack>(tracks);
+    }
+    
+    /**
+     * Returns the PSSH list
+     * 
+     * @return the PSSH
+     */
+    public List<DRMInfoPSSH> getPSSH() {
+        return new ArrayList<DRMInfoPSSH>(pssh);
+    }
+    
     /**
      * Build the cryptfile document
      * 
      * @return the XML document
+     * @throws IOException if the document could not be created
      */
-    public Document buildCryptfile() {
+    public Document buildCryptfile() throws IOException {
         
         // Create our root node
         Document d = newDocument();
@@ -160,54 +304,134 @@ public class CryptfileBuilder {
     }
     
     /**
-     * Creates a new XML document
+     * Write the cryptfile directly to the given stream without building a DOM.  The output
+     * is identical to that of {@link #writeXML(Document, OutputStream)} for the document built
+     * by {@link #buildCryptfile()}, but only a single element is held in memory at a time.
+     * DRMInfo elements that do not implement {@link MP4BoxXMLStream} are generated with the
+     * DOM one at a time and then written to the stream.
      * 
-     * @return the document
+     * @param os the stream to write the cryptfile
+     * @throws IOException if the cryptfile could not be written
      */
-    public static Document newDocument() {
-        
-        // Create a new document
-        DocumentBuilder builder = null;
+    public void writeCryptfile(OutputStream os) throws IOException {
         try {
-            builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            XMLStreamWriter w = XMLContext.getDefault().createXMLStreamWriter(os);
+            w.writeStartElement(ELEMENT);
+            w.writeAttribute(ATTR_TYPE, "CENC " + scheme.toString());
+            
+            Document d = null;
+            for (DRMInfoPSSH p : pssh) {
+                if (p instanceof MP4BoxXMLStream) {
+                    ((MP4BoxXMLStream)p).writeXML(w);
+                }
+                else {
+                    if (d == null)
+                        d = newDocument();
+                    writeNode(w, p.generateXML(d));
+                }
+            }
+            for (CryptTrack t : tracks) {
+                t.writeXML(w);
+            }
+            
+            w.writeEndDocument();
+            w.flush();
         }
-        catch (ParserConfigurationException ex) {
-            System.out.println("Error creating XML DocumentBuilder: " + ex.getMessage());
-            System.exit(1);
+        catch (XMLStreamException ex) {
+            throw new IOException("Error writing cryptfile: " + ex.getMessage(), ex);
         }
-        return builder.newDocument();
     }
     
     /**
-     * Writes an XML document in properly formatted style with indentation
+     * Read a cryptfile written by {@link #writeCryptfile(OutputStream)} or
+     * {@link #writeXML(Document, OutputStream)}.  The document is read as a stream without
+     * building a DOM.  DRMInfo elements are read as {@link BitstreamPSSH}s, since the
+     * cryptfile does not identify the classes that wrote them.
      * 
-     * @param d the XML document to write
-     * @param os the stream to write the document
+     * @param is the stream containing the cryptfile
+     * @return a builder holding the tracks and DRMInfo elements of the cryptfile
+     * @throws IOException if the cryptfile could not be read or is not valid
      */
-    public static void writeXML(Document d, OutputStream os) {
-        
-        // Write the document to the desired output
-        Transformer tf = null;
+    public static CryptfileBuilder readCryptfile(InputStream is) throws IOException {
+        XMLStreamReader r = XMLContext.getDefault().createXMLStreamReader(is);
         try {
-            tf = TransformerFactory.newInstance().newTransformer();
-            tf.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-            tf.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            tf.setOutputProperty(OutputKeys.INDENT, "yes");
-            tf.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            r.nextTag();
+            if (!ELEMENT.equals(r.getLocalName()))
+                throw new IllegalArgumentException("Not a cryptfile: " + r.getLocalName());
+            CryptfileBuilder builder = new CryptfileBuilder(schemeFromType(r.getAttributeValue(null, ATTR_TYPE)));
+            while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if (DRMInfoPSSH.DRM_INFO_ELEMENT.equals(r.getLocalName()))
+                    builder.addPSSH(BitstreamPSSH.readXML(r));
+                else
+                    builder.addTrack(CryptTrack.readXML(r));
+            }
+            return builder;
         }
-        catch (Exception ex) {
-            System.out.println("Error creating XML Transformer: " + ex.getMessage());
-            System.exit(1);;
+        catch (XMLStreamException ex) {
+            throw new IOException("Error reading cryptfile: " + ex.getMessage(), ex);
         }
-        
-        DOMSource source = new DOMSource(d);
-        StreamResult result = new StreamResult(os);
-        try {
-            tf.transform(source, result);
+        catch (IllegalArgumentException ex) {
+            throw new IOException("Invalid cryptfile at line " + r.getLocation().getLineNumber() +
+                                  ": " + ex.getMessage(), ex);
         }
-        catch (TransformerException ex) {
-            System.out.println("Error performing XML transform: " + ex.getMessage());
-            System.exit(1);;
+        finally {
+            try {
+                r.close();
+            }
+            catch (XMLStreamException ex) {
+                // Nothing more to read
+            }
         }
     }
+    
+    // Returns the protection scheme named by the type attribute of a cryptfile
+    static ProtectionScheme schemeFromType(String type) {
+        ProtectionScheme scheme = (type != null && type.startsWith("CENC ")) ?
+                ProtectionScheme.forName(type.substring(5)) : null;
+        if (scheme == null)
+            throw new IllegalArgumentException("Unsupported cryptfile type: " + type);
+        return scheme;
+    }
+    
+    // Write a DOM element and its children to an XML stream
+    private static void writeNode(XMLStreamWriter w, Node n) throws XMLStreamException {
+        switch (n.getNodeType()) {
+        case Node.ELEMENT_NODE:
+            w.writeStartElement(n.getNodeName());
+            NamedNodeMap attrs = n.getAttributes();
+            for (int i = 0; i < attrs.getLength(); i++)
+                w.writeAttribute(attrs.item(i).getNodeName(), attrs.item(i).getNodeValue());
+            for (Node child = n.getFirstChild(); child != null; child = child.getNextSibling())
+                writeNode(w, child);
+            w.writeEndElement();
+            break;
+        case Node.TEXT_NODE:
+            w.writeCharacters(n.getNodeValue());
+            break;
+        default:
+            break;
+        }
+    }
+    
+    /**
+     * Creates a new XML document using the shared {@link XMLContext}
+     * 
+     * @return the document
+     * @throws IOException if no document builder could be created
+     */
+    public static Document newDocument() throws IOException {
+        return XMLContext.getDefault().newDocument();
+    }
+    
+    /**
+     * Writes an XML document in properly formatted style with indentation using the
+     * shared {@link XMLContext}
+     * 
+     * @param d the XML document to write
+     * @param os the stream to write the document
+     * @throws IOException if the document could not be written
+     */
+    public static void writeXML(Document d, OutputStream os) throws IOException {
+        XMLContext.getDefault().writeXML(d, os);
+    }
 }
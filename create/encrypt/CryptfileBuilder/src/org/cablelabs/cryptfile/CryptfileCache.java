@@ -0,0 +1,281 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * On-disk cache of generated cryptfiles.  Entries are keyed by a hash of the request that
+ * produced them, so building the same asset again returns the original cryptfile (with the
+ * same keys and IVs) without generating new keys or contacting a key server.
+ * <p>
+ * Entries are written to a temporary file and renamed into place, so a reader never sees a
+ * partially written cryptfile, and any number of threads or processes may share a cache
+ * directory.  Reading an entry marks it as recently used.  Once the total size of the cache
+ * exceeds its limit, the least recently used entries are removed.
+ */
+public class CryptfileCache {
+
+    // Changing the way requests are hashed must change this, so old entries are never reused
+    private static final String KEY_VERSION = "1";
+
+    private static final String ENTRY_SUFFIX = ".xml";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Temporary files older than this were left behind by a failed write
+    private static final long STALE_TEMP_AGE = 60 * 60 * 1000;
+
+    // Options common to the CryptfileGen tools that only affect where output goes and
+    // the number of sub-option arguments that follow each one
+    private static final String[] OUTPUT_OPTIONS = {
+        "-out", "-encrypt", "-encryptInPlace", "-threads", "-cache", "-cp"
+    };
+    private static final int[] OUTPUT_OPTION_ARGS = {
+        1, 1, 1, 1, 1, 0
+    };
+
+    private File dir;
+    private long maxSize;
+
+    private static final Comparator<File> LEAST_RECENTLY_USED = new Comparator<File>() {
+        public int compare(File a, File b) {
+            long diff = a.lastModified() - b.lastModified();
+            return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+        }
+    };
+
+    /**
+     * Create a cache in the given directory.  The directory is created if necessary.
+     *
+     * @param dir the cache directory
+     * @param maxSize the maximum total size of the cache entries, in bytes
+     * @throws IOException if the cache directory could not be created
+     */
+    public CryptfileCache(File dir, long maxSize) throws IOException {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Cache size must be greater than 0");
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+            throw new IOException("Could not create cache directory " + dir);
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cache key for a run of a cryptfile generation tool.  The key is a SHA-256
+     * hash of the tool name and its arguments, leaving out the options that only control
+     * where output is written.  Key files named in track arguments ("...:@&lt;file&gt;")
+     * and any other input files given are hashed by their contents, so editing one of them
+     * changes the key.
+     *
+     * @param tool the name of the tool
+     * @param args the tool's command line arguments
+     * @param inputFiles other files that the tool reads its settings from
+     * @return the cache key
+     * @throws IOException if an input file could not be read
+     */
+    public static String requestKey(String tool, String[] args, File... inputFiles) throws IOException {
+        MessageDigest md = newDigest();
+        update(md, KEY_VERSION);
+        update(md, tool);
+        for (int i = 0; i < args.length; i++) {
+            int skip = Arrays.asList(OUTPUT_OPTIONS).indexOf(args[i]);
+            if (skip != -1) {
+                i += OUTPUT_OPTION_ARGS[skip];
+                continue;
+            }
+            update(md, args[i]);
+
+            // Track arguments may name a file holding the keys
+            int at = args[i].indexOf(":@");
+            if (!args[i].startsWith("-") && at != -1)
+                updateFile(md, new File(args[i].substring(at + 2)));
+        }
+        for (File f : inputFiles)
+            updateFile(md, f);
+        return Hex.encodeHexString(md.digest());
+    }
+
+    /**
+     * Returns the cryptfile stored under the given key
+     *
+     * @param key the cache key
+     * @return the cryptfile or null if the key is not in the cache
+     */
+    public CryptfileBuilder get(String key) {
+        File entry = entryFile(key);
+        CryptfileBuilder builder = null;
+        try {
+            InputStream is = new FileInputStream(entry);
+            try {
+                builder = CryptfileBuilder.readCryptfile(is);
+            }
+            finally {
+                is.close();
+            }
+        }
+        catch (IOException e) {
+            // Missing (or evicted) entries are a miss.  So are unreadable ones, which are
+            // replaced by the next put
+            return null;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        return builder;
+    }
+
+    /**
+     * Stores a cryptfile under the given key, replacing any existing entry, then removes
+     * least recently used entries until the cache is within its size limit
+     *
+     * @param key the cache key
+     * @param builder the cryptfile
+     * @throws IOException if the entry could not be written
+     */
+    public void put(String key, CryptfileBuilder builder) throws IOException {
+        File entry = entryFile(key);
+        File temp = File.createTempFile(key, TEMP_SUFFIX, dir);
+        try {
+            FileOutputStream fos = new FileOutputStream(temp);
+            try {
+                builder.writeCryptfile(fos);
+                fos.getFD().sync();
+            }
+            finally {
+                fos.close();
+            }
+
+            // Rename is atomic, except on platforms that refuse to replace an existing file
+            if (!temp.renameTo(entry)) {
+                entry.delete();
+                if (!temp.renameTo(entry))
+                    throw new IOException("Could not rename " + temp + " to " + entry);
+            }
+        }
+        finally {
+            temp.delete();
+        }
+        evict(entry);
+    }
+
+    // Remove least recently used entries until the cache fits within its size limit.  The
+    // entry that was just written is never removed
+    private void evict(File keep) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+
+        long now = System.currentTimeMillis();
+        long size = 0;
+        List<File> entries = new ArrayList<File>();
+        for (File f : files) {
+            if (f.getName().endsWith(ENTRY_SUFFIX)) {
+                entries.add(f);
+                size += f.length();
+            }
+            else if (f.getName().endsWith(TEMP_SUFFIX) && now - f.lastModified() > STALE_TEMP_AGE) {
+                f.delete();
+            }
+        }
+        if (size <= maxSize)
+            return;
+
+        Collections.sort(entries, LEAST_RECENTLY_USED);
+        for (File f : entries) {
+            if (size <= maxSize)
+                break;
+            if (f.equals(keep))
+                continue;
+            long length = f.length();
+            if (f.delete())
+                size -= length;
+        }
+    }
+
+    private File entryFile(String key) {
+        if (!key.matches("[0-9a-f]+"))
+            throw new IllegalArgumentException("Invalid cache key: " + key);
+        return new File(dir, key + ENTRY_SUFFIX);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // Each value is length-prefixed so that different argument lists never hash the same
+    private static void update(MessageDigest md, String value) {
+        byte[] bytes;
+        try {
+            bytes = value.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        update(md, bytes, bytes.length);
+    }
+
+    private static void update(MessageDigest md, byte[] bytes, int length) {
+        md.update((byte)(length >>> 24));
+        md.update((byte)(length >>> 16));
+        md.update((byte)(length >>> 8));
+        md.update((byte)length);
+        md.update(bytes, 0, length);
+    }
+
+    private static void updateFile(MessageDigest md, File f) throws IOException {
+        InputStream is = new FileInputStream(f);
+        try {
+            MessageDigest fileMD = newDigest();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) != -1)
+                fileMD.update(buf, 0, n);
+            byte[] digest = fileMD.digest();
+            update(md, digest, digest.length);
+        }
+        finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,448 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cablelabs.cryptfile.CryptfileBuilder.ProtectionScheme;
+
+/**
+ * A set of changes to a cryptfile: tracks and DRMInfo elements to add, replace or remove.
+ * Tracks are identified by their track ID and DRMInfo elements by their system ID.
+ * <p>
+ * A delta can be applied to a {@link CryptfileBuilder} or to a cryptfile that has already
+ * been written.  In the second case only the changed elements are generated.  Every other
+ * element is copied from the original document byte for byte, so rolling the key of one
+ * track costs the same however many tracks and keys the asset has.  The result is the same
+ * as reading the cryptfile, applying the delta to the builder and writing it again.
+ * <p>
+ * Replaced elements keep their position.  New DRMInfo elements are added after the existing
+ * ones and new tracks after the existing tracks, in the order they were added to the delta.
+ */
+public class CryptfileDelta {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Changes in the order they were made, keyed by track ID or system ID GUID.  A null
+    // value removes the element
+    Map<Integer, CryptTrack> tracks = new LinkedHashMap<Integer, CryptTrack>();
+    Map<String, DRMInfoPSSH> pssh = new LinkedHashMap<String, DRMInfoPSSH>();
+
+    /**
+     * Add a track, or replace the track with the same track ID
+     *
+     * @param track the track
+     */
+    public void putTrack(CryptTrack track) {
+        tracks.put(track.getTrackID(), track);
+    }
+
+    /**
+     * Remove the track with the given track ID
+     *
+     * @param trackID the track ID
+     */
+    public void removeTrack(int trackID) {
+        tracks.put(trackID, null);
+    }
+
+    /**
+     * Add a DRMInfo element, or replace the DRMInfo element with the same system ID
+     *
+     * @param p the DRMInfo element
+     */
+    public void putPSSH(DRMInfoPSSH p) {
+        pssh.put(KeyPair.toGUID(p.getSystemID()), p);
+    }
+
+    /**
+     * Remove the DRMInfo element with the given system ID
+     *
+     * @param systemID the 16-byte system ID
+     */
+    public void removePSSH(byte[] systemID) {
+        pssh.put(KeyPair.toGUID(systemID), null);
+    }
+
+    /**
+     * Returns whether or not this delta changes anything
+     *
+     * @return true if there are no changes, false otherwise
+     */
+    public boolean isEmpty() {
+        return tracks.isEmpty() && pssh.isEmpty();
+    }
+
+    // A top-level element of a cryptfile and the lines that hold it
+    private static class Child {
+        boolean track;
+        Object id;
+        int firstLine;
+        int lastLine;
+    }
+
+    // The lines of a cryptfile and the top-level elements found in them.  Lines are numbered
+    // from 1.  Only the markup written by this library is examined, which is ASCII
+    private static class Layout {
+        byte[] doc;
+        int[] lineStart;
+        ProtectionScheme scheme;
+        int rootEndLine;
+        List<Child> children = new ArrayList<Child>();
+
+        Layout(byte[] doc) {
+            this.doc = doc;
+            int lines = 1;
+            for (byte b : doc) {
+                if (b == '\n')
+                    lines++;
+            }
+            lineStart = new int[lines + 1];
+            int line = 1;
+            for (int i = 0; i < doc.length; i++) {
+                if (doc[i] == '\n')
+                    lineStart[line++] = i + 1;
+            }
+            lineStart[lines] = doc.length;
+        }
+
+        int lineCount() {
+            return lineStart.length - 1;
+        }
+
+        // Returns the byte offset of the start of the given line
+        int offset(int line) {
+            return lineStart[line - 1];
+        }
+
+        // Returns the offset of the first character of the line that is not whitespace, or
+        // -1 if the line is blank
+        int first(int line) {
+            for (int i = offset(line); i < offset(line + 1); i++) {
+                if (!Character.isWhitespace(doc[i]))
+                    return i;
+            }
+            return -1;
+        }
+
+        // Returns the offset after the last character of the line that is not whitespace
+        int end(int line) {
+            int i = offset(line + 1);
+            while (i > offset(line) && Character.isWhitespace(doc[i - 1]))
+                i--;
+            return i;
+        }
+
+        boolean matches(int pos, String s) {
+            if (pos < 0 || pos + s.length() > doc.length)
+                return false;
+            for (int i = 0; i < s.length(); i++) {
+                if (doc[pos + i] != s.charAt(i))
+                    return false;
+            }
+            return true;
+        }
+
+        boolean startsWith(int line, String s) {
+            return matches(first(line), s);
+        }
+
+        boolean endsWith(int line, String s) {
+            int start = end(line) - s.length();
+            return start >= offset(line) && matches(start, s);
+        }
+
+        // Returns whether the line holds exactly the given text, apart from whitespace
+        boolean isLine(int line, String s) {
+            return startsWith(line, s) && end(line) - first(line) == s.length();
+        }
+
+        // Returns whether the line starts with a start tag of the given element
+        boolean isStartTag(int line, String name) {
+            int pos = first(line);
+            if (!matches(pos, "<" + name) || pos + name.length() + 1 >= doc.length)
+                return false;
+            byte next = doc[pos + name.length() + 1];
+            return next == ' ' || next == '>' || next == '/';
+        }
+
+        // Returns whether the last tag on the line is an end tag
+        boolean endsWithEndTag(int line) {
+            for (int i = end(line) - 1; i > offset(line); i--) {
+                if (doc[i] == '<')
+                    return doc[i + 1] == '/';
+            }
+            return false;
+        }
+
+        // Returns the number of tags that start on the line
+        int tags(int line) {
+            int count = 0;
+            for (int i = offset(line); i < offset(line + 1); i++) {
+                if (doc[i] == '<')
+                    count++;
+            }
+            return count;
+        }
+
+        // Returns the value of an attribute on the line, or null if it is not there.  Quotes
+        // are always escaped in attribute values, so the name cannot be matched in a value
+        String attribute(int line, String name) {
+            String prefix = " " + name + "=\"";
+            for (int i = offset(line); i < end(line); i++) {
+                if (matches(i, prefix)) {
+                    int start = i + prefix.length();
+                    for (int j = start; j < end(line); j++) {
+                        if (doc[j] == '"')
+                            return new String(doc, start, j - start, UTF_8);
+                    }
+                    return null;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Apply this delta to a cryptfile that has already been written.  Unchanged elements are
+     * copied from the original, and only added and replaced elements are generated.
+     * Cryptfiles that were not written by this library (with elements sharing lines) are
+     * read completely and written again instead.
+     *
+     * @param is the stream containing the original cryptfile
+     * @param os the stream to write the updated cryptfile
+     * @throws IOException if the cryptfile could not be read or written, or is not valid
+     */
+    public void apply(InputStream is, OutputStream os) throws IOException {
+        byte[] doc = readAll(is);
+        Layout layout = scan(doc);
+        if (layout == null) {
+            CryptfileBuilder builder = CryptfileBuilder.readCryptfile(new ByteArrayInputStream(doc));
+            builder.apply(this);
+            builder.writeCryptfile(os);
+            return;
+        }
+
+        // Generate the new elements in a document of their own, then find them in it
+        CryptfileBuilder builder = new CryptfileBuilder(layout.scheme);
+        for (DRMInfoPSSH p : pssh.values()) {
+            if (p != null)
+                builder.addPSSH(p);
+        }
+        for (CryptTrack t : tracks.values()) {
+            if (t != null)
+                builder.addTrack(t);
+        }
+        ByteArrayOutputStream generated = new ByteArrayOutputStream();
+        builder.writeCryptfile(generated);
+        Layout changed = scan(generated.toByteArray());
+        if (changed == null)
+            throw new IOException("Could not locate generated cryptfile elements");
+        Map<Object, Child> replacements = new HashMap<Object, Child>();
+        for (Child c : changed.children)
+            replacements.put(c.id, c);
+
+        // Root start tag and anything before the first element
+        List<Child> children = layout.children;
+        int firstLine = children.isEmpty() ? layout.rootEndLine : children.get(0).firstLine;
+        os.write(doc, 0, layout.offset(firstLine));
+
+        // New DRMInfo elements follow the last existing one, and new tracks the last element
+        int lastPSSH = -1;
+        for (int i = 0; i < children.size(); i++) {
+            if (!children.get(i).track)
+                lastPSSH = i;
+        }
+        if (lastPSSH == -1)
+            writeAdded(os, changed, pssh, replacements);
+
+        for (int i = 0; i < children.size(); i++) {
+            Child c = children.get(i);
+            Map<?, ?> changes = c.track ? tracks : pssh;
+            if (!changes.containsKey(c.id)) {
+                write(os, layout, c);
+            }
+            else {
+                // Removed, or replaced in the position of its first occurrence
+                Child r = replacements.remove(c.id);
+                if (r != null)
+                    write(os, changed, r);
+            }
+            if (i == lastPSSH)
+                writeAdded(os, changed, pssh, replacements);
+        }
+        writeAdded(os, changed, tracks, replacements);
+
+        // Root end tag and anything after it
+        int end = children.isEmpty() ? layout.rootEndLine : children.get(children.size() - 1).lastLine + 1;
+        os.write(doc, layout.offset(end), doc.length - layout.offset(end));
+    }
+
+    // Write the generated elements for the given changes that did not replace an element
+    private static void writeAdded(OutputStream os, Layout changed, Map<?, ?> changes,
+                                   Map<Object, Child> replacements) throws IOException {
+        for (Object id : changes.keySet()) {
+            Child r = replacements.remove(id);
+            if (r != null)
+                write(os, changed, r);
+        }
+    }
+
+    private static void write(OutputStream os, Layout layout, Child c) throws IOException {
+        int start = layout.offset(c.firstLine);
+        os.write(layout.doc, start, layout.offset(c.lastLine + 1) - start);
+    }
+
+    // Find the top-level elements of a cryptfile without parsing it.  Returns null unless
+    // every element starts on a line of its own, each line holds a single tag or an element
+    // with text, and no DRMInfo element follows a track.  Any other cryptfile (or one that
+    // is not valid) is left to the XML reader
+    private static Layout scan(byte[] doc) {
+        Layout layout = new Layout(doc);
+        int lines = layout.lineCount();
+
+        // Root start tag, after an optional XML declaration
+        int line = 1;
+        while (line < lines && layout.first(line) == -1)
+            line++;
+        if (layout.startsWith(line, "<?xml") && layout.endsWith(line, "?>")) {
+            line++;
+            while (line < lines && layout.first(line) == -1)
+                line++;
+        }
+        if (line > lines || !layout.isStartTag(line, CryptfileBuilder.ELEMENT) ||
+                layout.tags(line) != 1 || layout.endsWith(line, "/>") || !layout.endsWith(line, ">"))
+            return null;
+        try {
+            layout.scheme = CryptfileBuilder.schemeFromType(layout.attribute(line, CryptfileBuilder.ATTR_TYPE));
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        Child c = null;
+        String name = null;
+        int depth = 0;
+        for (line++; line <= lines; line++) {
+            if (layout.first(line) == -1)
+                continue;
+            int tags = layout.tags(line);
+            boolean endTag = layout.startsWith(line, "</");
+            boolean empty = layout.endsWith(line, "/>");
+            if (tags == 0 || !layout.startsWith(line, "<") || !layout.endsWith(line, ">"))
+                return null;
+
+            if (depth == 0) {
+                // End of the root element, or the start of the next top-level element
+                if (endTag) {
+                    if (!layout.isLine(line, "</" + CryptfileBuilder.ELEMENT + ">"))
+                        return null;
+                    layout.rootEndLine = line;
+                    return layout;
+                }
+                if (tags != 1)
+                    return null;
+                c = new Child();
+                c.firstLine = line;
+                if (layout.isStartTag(line, DRMInfoPSSH.DRM_INFO_ELEMENT) && !empty) {
+                    List<Child> children = layout.children;
+                    if (!children.isEmpty() && children.get(children.size() - 1).track)
+                        return null;
+                    name = DRMInfoPSSH.DRM_INFO_ELEMENT;
+                }
+                else if (layout.isStartTag(line, CryptTrack.ELEMENT)) {
+                    c.track = true;
+                    try {
+                        c.id = Integer.valueOf(layout.attribute(line, CryptTrack.ATTR_TRACK_ID));
+                    }
+                    catch (NumberFormatException e) {
+                        return null;
+                    }
+                    name = CryptTrack.ELEMENT;
+                }
+                else {
+                    return null;
+                }
+                if (empty) {
+                    c.lastLine = line;
+                    layout.children.add(c);
+                }
+                else {
+                    depth = 1;
+                }
+                continue;
+            }
+
+            // Inside a top-level element
+            if (tags == 1 && endTag)
+                depth--;
+            else if (tags == 1 && !empty)
+                depth++;
+            else if (tags != 1 && (tags > 2 || endTag || !layout.endsWithEndTag(line)))
+                return null;
+
+            // The system ID is the first child of a DRMInfo element
+            if (!c.track && c.id == null) {
+                if (!layout.isStartTag(line, Bitstream.ELEMENT) || tags != 1 || !empty)
+                    return null;
+                try {
+                    c.id = KeyPair.toGUID(Bitstream.decodeHex(layout.attribute(line, Bitstream.ATTR_ID128)));
+                }
+                catch (RuntimeException e) {
+                    return null;
+                }
+            }
+
+            if (depth == 0) {
+                if (!layout.isLine(line, "</" + name + ">") || c.id == null)
+                    return null;
+                c.lastLine = line;
+                layout.children.add(c);
+            }
+        }
+        return null;
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = is.read(buf)) != -1)
+            bytes.write(buf, 0, n);
+        return bytes.toByteArray();
+    }
+}
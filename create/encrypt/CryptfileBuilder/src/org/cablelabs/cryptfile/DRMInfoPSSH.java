@@ -29,15 +29,26 @@ package org.cablelabs.cryptfile;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 import org.apache.commons.codec.binary.Base64;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 /**
  * Base class for creating DRM-specific <i>DRMInfo</i> elements for use in the 
- * MP4Box cryptfile
+ * MP4Box cryptfile.
+ * 
+ * Subclasses that also implement {@link MP4BoxXMLStream} can be written to a cryptfile
+ * without building a DOM.  They should start their element with
+ * {@link #writeDRMInfo(XMLStreamWriter)}, write the same children as
+ * {@link #generateXML(Document)}, then end the element.
  */
 public abstract class DRMInfoPSSH implements MP4BoxXML {
     
@@ -46,7 +57,7 @@ public abstract class DRMInfoPSSH implements MP4BoxXML {
     
     protected static final String CENC_PSSH_ELEMENT = "cenc:pssh";
     
-    private static final String DRM_INFO_ELEMENT = "DRMInfo";
+    static final String DRM_INFO_ELEMENT = "DRMInfo";
     private static final String ATTR_TYPE = "type";
     private static final String ATTR_VERSION = "version";
     
@@ -101,19 +112,17 @@ public abstract class DRMInfoPSSH implements MP4BoxXML {
         this.systemID = systemID;
         this.psshVersion = psshVersion;
 
-        // Remove any duplicate keyIDs
-        HashSet<String> hs = new HashSet<String>();
-        for (byte[] keyID : keyIDs) {
-            String guid = KeyPair.toGUID(keyID);
-            if (!hs.contains(guid)) {
-                hs.add(guid);
-            }
-        }
-        this.keyIDs = new byte[hs.size()][];
-        int i = 0;
-        for (String s : hs) {
-            this.keyIDs[i++] = KeyPair.parseGUID(s);
-        }
+        // Remove any duplicate keyIDs, keeping the order of the others
+        this.keyIDs = KeyPair.uniqueKeyIDs(keyIDs);
+    }
+    
+    /**
+     * Returns the system ID of this DRMInfo
+     * 
+     * @return the 16-byte system ID
+     */
+    public byte[] getSystemID() {
+        return systemID;
     }
     
     /**
@@ -141,6 +150,18 @@ public abstract class DRMInfoPSSH implements MP4BoxXML {
     protected Element generateCENCContentProtectionData(Document d) throws IOException {
         
         Element psshElem = d.createElement(CENC_PSSH_ELEMENT);
+        psshElem.setTextContent(Base64.encodeBase64String(generatePSSH()));
+        return psshElem;
+    }
+    
+    /**
+     * Generates the complete binary PSSH box (header included) for direct insertion into
+     * an ISOBMFF file
+     * 
+     * @return the PSSH box
+     * @throws IOException
+     */
+    public byte[] generatePSSH() throws IOException {
         
         ByteArrayOutputStream psshBytes = new ByteArrayOutputStream();
         DataOutputStream pssh = new DataOutputStream(psshBytes);
@@ -184,21 +205,56 @@ public abstract class DRMInfoPSSH implements MP4BoxXML {
         psshByteArray[2] = (byte)((size >>  8) & 0xFF);
         psshByteArray[3] = (byte)((size      ) & 0xFF);
         
-        psshElem.setTextContent(Base64.encodeBase64String(psshByteArray));
-        
-        return psshElem;
+        return psshByteArray;
     }
     
     /**
      * Child classes who provide PSSH in base64 as their content protection
      * data should write their PSSH data here starting after
-     * the "DataSize" field
+     * the "DataSize" field.
+     * 
+     * The default implementation writes the binary form of the Bitstream elements
+     * generated by {@link #generateXML(Document)} that follow the system ID and key IDs,
+     * so the PSSH box always matches the one MP4Box would build from the cryptfile.
      * 
      * @param dos output stream for writing PSSH data
      * @throws IOException
      */
     protected void generatePSSHData(DataOutputStream dos) throws IOException {
-        throw new UnsupportedOperationException();
+        Element e = (Element)generateXML(XMLContext.getDefault().newDocument());
+        
+        // Skip the system ID and key ID bitstreams written by generateDRMInfo()
+        int skip = (psshVersion >= 1) ? 2 + keyIDs.length : 1;
+        
+        List<Bitstream> bitstreams = new ArrayList<Bitstream>();
+        for (Node n = e.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n.getNodeType() != Node.ELEMENT_NODE)
+                continue;
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            bitstreams.add(Bitstream.fromXML((Element)n));
+        }
+        
+        writeBitstreams(dos, bitstreams);
+    }
+    
+    /**
+     * Write the binary form of a list of bitstreams
+     * 
+     * @param dos the output stream
+     * @param bitstreams the bitstreams
+     * @throws IOException
+     */
+    static void writeBitstreams(DataOutputStream dos, List<Bitstream> bitstreams) throws IOException {
+        int size = 0;
+        for (Bitstream b : bitstreams)
+            size += b.getSize();
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (Bitstream b : bitstreams)
+            b.write(buf);
+        dos.write(buf.array());
     }
     
     /**
@@ -217,11 +273,9 @@ public abstract class DRMInfoPSSH implements MP4BoxXML {
        e.appendChild(b.generateXML(d));
        
        if (psshVersion >= 1) {
-           b = new Bitstream();
            b.setupInteger(keyIDs.length, 32);
            e.appendChild(b.generateXML(d));
            for (int i = 0; i < keyIDs.length; i++) {
-               b = new Bitstream();
                b.setupID128(keyIDs[i]);
                e.appendChild(b.generateXML(d));
            }
@@ -229,4 +283,30 @@ public abstract class DRMInfoPSSH implements MP4BoxXML {
        
        return e;
     }
+    
+    /**
+     * Starts the base DRMInfo element and writes its system ID child element.  The element
+     * is left open so that child classes can add their own children
+     * 
+     * @param w the XML stream writer
+     * @throws XMLStreamException
+     */
+    protected void writeDRMInfo(XMLStreamWriter w) throws XMLStreamException {
+        w.writeStartElement(DRM_INFO_ELEMENT);
+        w.writeAttribute(ATTR_TYPE, "pssh");
+        w.writeAttribute(ATTR_VERSION, "" + psshVersion);
+        
+        Bitstream b = new Bitstream();
+        b.setupID128(systemID);
+        b.writeXML(w);
+        
+        if (psshVersion >= 1) {
+            b.setupInteger(keyIDs.length, 32);
+            b.writeXML(w);
+            for (int i = 0; i < keyIDs.length; i++) {
+                b.setupID128(keyIDs[i]);
+                b.writeXML(w);
+            }
+        }
+    }
 }
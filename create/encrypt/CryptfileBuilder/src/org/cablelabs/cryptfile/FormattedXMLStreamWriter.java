@@ -0,0 +1,572 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * XML stream writer that formats its output the same way as the DOM serialization in
+ * {@link CryptfileBuilder#writeXML}: each element starts on its own line, indented by two
+ * spaces per level, elements without content are written as empty elements, and attributes
+ * are written in name order as the DOM stores them.
+ * <p>
+ * The markup is buffered and written directly to a character stream, which is only flushed
+ * by {@link #flush()} and {@link #close()}.  Attributes are held in reusable
+ * buffers until their start tag is complete, and binary and integer attribute values can be
+ * encoded straight into those buffers with {@link #writeHexAttribute},
+ * {@link #writeBase64Attribute} and {@link #writeAttribute(String, int)}, so writing an
+ * element does not create any strings.
+ * <p>
+ * Namespaces are not tracked.  Prefixed names are written as given.
+ */
+class FormattedXMLStreamWriter implements XMLStreamWriter {
+
+    private static final String INDENT = "  ";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final char[] BASE64_DIGITS =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // Output is collected here and written to the stream in large blocks
+    private Writer out;
+    private char[] buf = new char[BUFFER_SIZE];
+    private int bufLength = 0;
+
+    private int depth = 0;
+
+    // Names of the open elements, for writing their end tags
+    private String[] openElements = new String[16];
+
+    // The current start tag is held until we know whether the element has content
+    private String pendingElement;
+
+    // Attributes of the current start tag.  Values are stored one after the other in a single
+    // buffer, and written in the order given by attrOrder
+    private int attrCount = 0;
+    private String[] attrNames = new String[8];
+    private int[] attrStart = new int[8];
+    private int[] attrLength = new int[8];
+    private int[] attrOrder = new int[8];
+    private char[] attrValues = new char[256];
+    private int attrValuesLength = 0;
+
+    // Whether the current start tag came from writeEmptyElement and must be closed by the next event
+    private boolean pendingEmpty = false;
+
+    // Whether or not the current element has child elements or text
+    private boolean hasChildren = false;
+    private boolean hasText = false;
+
+    private NamespaceContext namespaceContext;
+
+    /**
+     * Create a formatting writer around the given character stream
+     *
+     * @param out the character stream
+     */
+    FormattedXMLStreamWriter(Writer out) {
+        this.out = out;
+    }
+
+    // Write the pending start tag, as an empty element if requested
+    private void writePending(boolean empty) throws XMLStreamException {
+        if (pendingElement == null)
+            return;
+        try {
+            write('<');
+            write(pendingElement);
+
+            // Insertion sort by name.  There are only ever a handful of attributes
+            for (int i = 0; i < attrCount; i++) {
+                int j = i;
+                while (j > 0 && attrNames[attrOrder[j - 1]].compareTo(attrNames[i]) > 0) {
+                    attrOrder[j] = attrOrder[j - 1];
+                    j--;
+                }
+                attrOrder[j] = i;
+            }
+            for (int i = 0; i < attrCount; i++) {
+                int a = attrOrder[i];
+                write(' ');
+                write(attrNames[a]);
+                write("=\"");
+                writeEscaped(attrValues, attrStart[a], attrLength[a], true);
+                write('"');
+            }
+            write(empty ? "/>" : ">");
+        }
+        catch (IOException e) {
+            throw new XMLStreamException(e);
+        }
+        pendingElement = null;
+        attrCount = 0;
+        attrValuesLength = 0;
+    }
+
+    // Close an element started with writeEmptyElement once its attributes have been written
+    private void closeEmpty() throws XMLStreamException {
+        if (pendingEmpty) {
+            pendingEmpty = false;
+            writeEndElement();
+        }
+    }
+
+    // Start a new line at the current depth
+    private void newLine() throws XMLStreamException {
+        try {
+            write('\n');
+            for (int i = 0; i < depth; i++)
+                write(INDENT);
+        }
+        catch (IOException e) {
+            throw new XMLStreamException(e);
+        }
+    }
+
+    // Write a character with the characters that are special in XML escaped.  Carriage returns,
+    // and tabs and line feeds in attribute values, are escaped so that parsers do not normalize
+    // them away
+    private void writeEscaped(char c, boolean attribute) throws IOException {
+        switch (c) {
+        case '&':
+            write("&amp;");
+            break;
+        case '<':
+            write("&lt;");
+            break;
+        case '>':
+            write("&gt;");
+            break;
+        case '"':
+            write(attribute ? "&quot;" : "\"");
+            break;
+        case '\n':
+            write(attribute ? "&#10;" : "\n");
+            break;
+        case '\r':
+            write("&#13;");
+            break;
+        case '\t':
+            write(attribute ? "&#9;" : "\t");
+            break;
+        default:
+            write(c);
+            break;
+        }
+    }
+
+    private void writeEscaped(char[] text, int start, int len, boolean attribute) throws IOException {
+        for (int i = start; i < start + len; i++)
+            writeEscaped(text[i], attribute);
+    }
+
+    private void writeEscaped(String text, boolean attribute) throws IOException {
+        for (int i = 0; i < text.length(); i++)
+            writeEscaped(text.charAt(i), attribute);
+    }
+
+    private void write(char c) throws IOException {
+        if (bufLength == buf.length)
+            drain();
+        buf[bufLength++] = c;
+    }
+
+    private void write(String str) throws IOException {
+        int len = str.length();
+        if (len > buf.length - bufLength) {
+            drain();
+            if (len > buf.length) {
+                out.write(str);
+                return;
+            }
+        }
+        str.getChars(0, len, buf, bufLength);
+        bufLength += len;
+    }
+
+    // Write the buffered output to the stream
+    private void drain() throws IOException {
+        out.write(buf, 0, bufLength);
+        bufLength = 0;
+    }
+
+    // Start a new attribute of the pending start tag with room for a value of the given
+    // length.  Returns the offset of the value in attrValues
+    private int addAttribute(String localName, int maxLength) throws XMLStreamException {
+        if (pendingElement == null)
+            throw new XMLStreamException("Attribute '" + localName + "' written outside of a start tag");
+        if (attrCount == attrNames.length) {
+            attrNames = copyOf(attrNames, attrCount * 2);
+            attrStart = copyOf(attrStart, attrCount * 2);
+            attrLength = copyOf(attrLength, attrCount * 2);
+            attrOrder = new int[attrCount * 2];
+        }
+        if (attrValuesLength + maxLength > attrValues.length) {
+            char[] values = new char[Math.max(attrValues.length * 2, attrValuesLength + maxLength)];
+            System.arraycopy(attrValues, 0, values, 0, attrValuesLength);
+            attrValues = values;
+        }
+        attrNames[attrCount] = localName;
+        attrStart[attrCount] = attrValuesLength;
+        return attrValuesLength;
+    }
+
+    // Complete the attribute started by addAttribute
+    private void endAttribute(int end) {
+        attrLength[attrCount] = end - attrStart[attrCount];
+        attrValuesLength = end;
+        attrCount++;
+    }
+
+    private static String[] copyOf(String[] a, int length) {
+        String[] copy = new String[length];
+        System.arraycopy(a, 0, copy, 0, a.length);
+        return copy;
+    }
+
+    private static int[] copyOf(int[] a, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(a, 0, copy, 0, a.length);
+        return copy;
+    }
+
+    /**
+     * Write an attribute with a decimal integer value
+     *
+     * @param localName the attribute name
+     * @param value the value
+     * @throws XMLStreamException
+     */
+    void writeAttribute(String localName, int value) throws XMLStreamException {
+        int pos = addAttribute(localName, 11);
+        long v = value;
+        if (v < 0) {
+            attrValues[pos++] = '-';
+            v = -v;
+        }
+        int digits = 1;
+        for (long t = v; t >= 10; t /= 10)
+            digits++;
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            attrValues[i] = (char)('0' + (v % 10));
+            v /= 10;
+        }
+        endAttribute(pos + digits);
+    }
+
+    /**
+     * Write an attribute with binary data as its value, in lowercase hexadecimal
+     *
+     * @param localName the attribute name
+     * @param prefix written before the hexadecimal digits (such as "0x"), or null
+     * @param data the data
+     * @throws XMLStreamException
+     */
+    void writeHexAttribute(String localName, String prefix, byte[] data) throws XMLStreamException {
+        int prefixLength = (prefix != null) ? prefix.length() : 0;
+        int pos = addAttribute(localName, prefixLength + data.length * 2);
+        if (prefixLength > 0) {
+            prefix.getChars(0, prefixLength, attrValues, pos);
+            pos += prefixLength;
+        }
+        for (byte b : data) {
+            attrValues[pos++] = HEX_DIGITS[(b >> 4) & 0xf];
+            attrValues[pos++] = HEX_DIGITS[b & 0xf];
+        }
+        endAttribute(pos);
+    }
+
+    /**
+     * Write an attribute with binary data as its value, in padded base64
+     *
+     * @param localName the attribute name
+     * @param data the data
+     * @throws XMLStreamException
+     */
+    void writeBase64Attribute(String localName, byte[] data) throws XMLStreamException {
+        int pos = addAttribute(localName, (data.length + 2) / 3 * 4);
+        int i = 0;
+        for (; i + 2 < data.length; i += 3) {
+            int bits = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8) | (data[i + 2] & 0xff);
+            attrValues[pos++] = BASE64_DIGITS[(bits >> 18) & 0x3f];
+            attrValues[pos++] = BASE64_DIGITS[(bits >> 12) & 0x3f];
+            attrValues[pos++] = BASE64_DIGITS[(bits >> 6) & 0x3f];
+            attrValues[pos++] = BASE64_DIGITS[bits & 0x3f];
+        }
+        int remaining = data.length - i;
+        if (remaining > 0) {
+            int bits = (data[i] & 0xff) << 16;
+            if (remaining == 2)
+                bits |= (data[i + 1] & 0xff) << 8;
+            attrValues[pos++] = BASE64_DIGITS[(bits >> 18) & 0x3f];
+            attrValues[pos++] = BASE64_DIGITS[(bits >> 12) & 0x3f];
+            attrValues[pos++] = (remaining == 2) ? BASE64_DIGITS[(bits >> 6) & 0x3f] : '=';
+            attrValues[pos++] = '=';
+        }
+        endAttribute(pos);
+    }
+
+    @Override
+    public void writeStartElement(String localName) throws XMLStreamException {
+        closeEmpty();
+        writePending(false);
+        if (depth > 0)
+            newLine();
+        if (depth == openElements.length)
+            openElements = copyOf(openElements, depth * 2);
+        openElements[depth] = localName;
+        pendingElement = localName;
+        hasChildren = false;
+        hasText = false;
+        depth++;
+    }
+
+    @Override
+    public void writeStartElement(String namespaceURI, String localName) throws XMLStreamException {
+        writeStartElement(localName);
+    }
+
+    @Override
+    public void writeStartElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+        writeStartElement(prefix.isEmpty() ? localName : prefix + ":" + localName);
+    }
+
+    @Override
+    public void writeEmptyElement(String localName) throws XMLStreamException {
+        writeStartElement(localName);
+        pendingEmpty = true;
+    }
+
+    @Override
+    public void writeEmptyElement(String namespaceURI, String localName) throws XMLStreamException {
+        writeEmptyElement(localName);
+    }
+
+    @Override
+    public void writeEmptyElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+        writeEmptyElement(prefix.isEmpty() ? localName : prefix + ":" + localName);
+    }
+
+    @Override
+    public void writeEndElement() throws XMLStreamException {
+        closeEmpty();
+        if (depth == 0)
+            throw new XMLStreamException("No element to end");
+        depth--;
+        if (pendingElement != null) {
+            writePending(true);
+        }
+        else {
+            if (hasChildren && !hasText)
+                newLine();
+            try {
+                write("</");
+                write(openElements[depth]);
+                write('>');
+            }
+            catch (IOException e) {
+                throw new XMLStreamException(e);
+            }
+        }
+        openElements[depth] = null;
+        hasChildren = true;
+        hasText = false;
+    }
+
+    @Override
+    public void writeEndDocument() throws XMLStreamException {
+        closeEmpty();
+        writePending(false);
+        while (depth > 0)
+            writeEndElement();
+        writeRaw("\n");
+    }
+
+    @Override
+    public void close() throws XMLStreamException {
+        flush();
+    }
+
+    @Override
+    public void flush() throws XMLStreamException {
+        try {
+            drain();
+            out.flush();
+        }
+        catch (IOException e) {
+            throw new XMLStreamException(e);
+        }
+    }
+
+    @Override
+    public void writeAttribute(String localName, String value) throws XMLStreamException {
+        int pos = addAttribute(localName, value.length());
+        value.getChars(0, value.length(), attrValues, pos);
+        endAttribute(pos + value.length());
+    }
+
+    @Override
+    public void writeAttribute(String prefix, String namespaceURI, String localName, String value)
+            throws XMLStreamException {
+        writeAttribute(prefix.isEmpty() ? localName : prefix + ":" + localName, value);
+    }
+
+    @Override
+    public void writeAttribute(String namespaceURI, String localName, String value) throws XMLStreamException {
+        writeAttribute(localName, value);
+    }
+
+    @Override
+    public void writeNamespace(String prefix, String namespaceURI) throws XMLStreamException {
+        writeAttribute((prefix.isEmpty() || prefix.equals("xmlns")) ? "xmlns" : "xmlns:" + prefix, namespaceURI);
+    }
+
+    @Override
+    public void writeDefaultNamespace(String namespaceURI) throws XMLStreamException {
+        writeAttribute("xmlns", namespaceURI);
+    }
+
+    // Write markup that needs no escaping, after completing any pending start tag
+    private void writeRaw(String markup) throws XMLStreamException {
+        closeEmpty();
+        writePending(false);
+        try {
+            write(markup);
+        }
+        catch (IOException e) {
+            throw new XMLStreamException(e);
+        }
+    }
+
+    @Override
+    public void writeComment(String data) throws XMLStreamException {
+        writeRaw("<!--" + data + "-->");
+    }
+
+    @Override
+    public void writeProcessingInstruction(String target) throws XMLStreamException {
+        writeRaw("<?" + target + "?>");
+    }
+
+    @Override
+    public void writeProcessingInstruction(String target, String data) throws XMLStreamException {
+        writeRaw("<?" + target + " " + data + "?>");
+    }
+
+    @Override
+    public void writeCData(String data) throws XMLStreamException {
+        writeRaw("<![CDATA[" + data + "]]>");
+        hasText = true;
+    }
+
+    @Override
+    public void writeDTD(String dtd) throws XMLStreamException {
+        writeRaw(dtd);
+    }
+
+    @Override
+    public void writeEntityRef(String name) throws XMLStreamException {
+        writeRaw("&" + name + ";");
+        hasText = true;
+    }
+
+    @Override
+    public void writeStartDocument() throws XMLStreamException {
+        writeRaw("<?xml version=\"1.0\"?>");
+    }
+
+    @Override
+    public void writeStartDocument(String version) throws XMLStreamException {
+        writeRaw("<?xml version=\"" + version + "\"?>");
+    }
+
+    @Override
+    public void writeStartDocument(String encoding, String version) throws XMLStreamException {
+        writeRaw("<?xml version=\"" + version + "\" encoding=\"" + encoding + "\"?>");
+    }
+
+    @Override
+    public void writeCharacters(String text) throws XMLStreamException {
+        closeEmpty();
+        writePending(false);
+        hasText = true;
+        try {
+            writeEscaped(text, false);
+        }
+        catch (IOException e) {
+            throw new XMLStreamException(e);
+        }
+    }
+
+    @Override
+    public void writeCharacters(char[] text, int start, int len) throws XMLStreamException {
+        closeEmpty();
+        writePending(false);
+        hasText = true;
+        try {
+            writeEscaped(text, start, len, false);
+        }
+        catch (IOException e) {
+            throw new XMLStreamException(e);
+        }
+    }
+
+    @Override
+    public String getPrefix(String uri) throws XMLStreamException {
+        return (namespaceContext != null) ? namespaceContext.getPrefix(uri) : null;
+    }
+
+    @Override
+    public void setPrefix(String prefix, String uri) throws XMLStreamException {
+    }
+
+    @Override
+    public void setDefaultNamespace(String uri) throws XMLStreamException {
+    }
+
+    @Override
+    public void setNamespaceContext(NamespaceContext context) throws XMLStreamException {
+        namespaceContext = context;
+    }
+
+    @Override
+    public NamespaceContext getNamespaceContext() {
+        return namespaceContext;
+    }
+
+    @Override
+    public Object getProperty(String name) throws IllegalArgumentException {
+        throw new IllegalArgumentException("Property not supported: " + name);
+    }
+}
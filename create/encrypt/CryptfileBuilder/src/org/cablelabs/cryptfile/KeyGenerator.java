@@ -0,0 +1,321 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Generates random keys, key IDs and initialization vectors.
+ * <p>
+ * Random bytes come from an AES-128 counter mode generator.  Each thread has its own
+ * generator, seeded from a <code>SecureRandom</code>, so threads never wait for each other
+ * and the (slow) seeding happens once per thread rather than once per key.  After every
+ * buffer of output the generator is rekeyed from its own output, so earlier output cannot be
+ * recovered from its state.  It is reseeded from the <code>SecureRandom</code> after every
+ * gigabyte of output or ten minutes, whichever comes first.
+ * <p>
+ * A deterministic generator, which produces the same output for the same seed, can be
+ * created for testing with {@link #deterministic(byte[])}.  Setting the
+ * "org.cablelabs.cryptfile.KeyGenerator.seed" system property makes the default generator a
+ * deterministic one, so that tools produce reproducible cryptfiles.  Never use a
+ * deterministic generator for real content.
+ * <p>
+ * Other sources of random bytes can be plugged in by extending this class and overriding
+ * {@link #nextBytes(byte[], int, int)}, then passing an instance to
+ * {@link #setDefault(KeyGenerator)}.
+ */
+public class KeyGenerator {
+
+    /**
+     * The system property that selects a deterministic default generator.  Its value is the
+     * seed.
+     */
+    public static final String SEED_PROPERTY = "org.cablelabs.cryptfile.KeyGenerator.seed";
+
+    private static final int STATE_SIZE = 32; // AES-128 key and counter
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final long RESEED_BYTES = 1L << 30;
+    private static final long RESEED_NANOS = 10 * 60 * 1000000000L;
+
+    private static volatile KeyGenerator defaultGenerator;
+
+    // A single counter mode generator
+    private static class Engine {
+
+        private Cipher aes;
+        private SecureRandom entropy;
+        private byte[] buf = new byte[BUFFER_SIZE + STATE_SIZE];
+        private int pos = BUFFER_SIZE;
+        private long generated;
+        private long seeded;
+
+        // The entropy source is null for a deterministic generator, which is never reseeded
+        Engine(byte[] seed, SecureRandom entropy) {
+            try {
+                aes = Cipher.getInstance("AES/CTR/NoPadding");
+            }
+            catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES/CTR is not available", e);
+            }
+            this.entropy = entropy;
+            this.seeded = System.nanoTime();
+            rekey(seed);
+        }
+
+        void nextBytes(byte[] dst, int offset, int length) {
+            while (length > 0) {
+                if (pos == BUFFER_SIZE)
+                    refill();
+                int n = Math.min(length, BUFFER_SIZE - pos);
+                System.arraycopy(buf, pos, dst, offset, n);
+                Arrays.fill(buf, pos, pos + n, (byte)0);
+                pos += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        // Generate a buffer of output plus the state for the next buffer
+        private void refill() {
+            Arrays.fill(buf, (byte)0);
+            try {
+                aes.update(buf, 0, buf.length, buf, 0);
+            }
+            catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Could not generate random bytes", e);
+            }
+            byte[] state = Arrays.copyOfRange(buf, BUFFER_SIZE, buf.length);
+            generated += buf.length;
+            if (entropy != null && (generated >= RESEED_BYTES || System.nanoTime() - seeded >= RESEED_NANOS)) {
+                byte[] fresh = new byte[STATE_SIZE];
+                entropy.nextBytes(fresh);
+                for (int i = 0; i < STATE_SIZE; i++)
+                    state[i] ^= fresh[i];
+                generated = 0;
+                seeded = System.nanoTime();
+            }
+            rekey(state);
+            pos = 0;
+        }
+
+        private void rekey(byte[] state) {
+            try {
+                aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(state, 0, 16, "AES"),
+                         new IvParameterSpec(state, 16, 16));
+            }
+            catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Could not seed random generator", e);
+            }
+            Arrays.fill(state, (byte)0);
+        }
+    }
+
+    private ThreadLocal<Engine> engines;
+    private Engine shared;
+
+    /**
+     * Create a generator seeded from a new <code>SecureRandom</code>
+     */
+    public KeyGenerator() {
+        this(new SecureRandom());
+    }
+
+    /**
+     * Create a generator seeded from the given source
+     *
+     * @param entropy the source of seeds for each thread's generator
+     */
+    public KeyGenerator(final SecureRandom entropy) {
+        engines = new ThreadLocal<Engine>() {
+            @Override
+            protected Engine initialValue() {
+                byte[] seed = new byte[STATE_SIZE];
+                entropy.nextBytes(seed);
+                return new Engine(seed, entropy);
+            }
+        };
+    }
+
+    // Create a deterministic generator
+    private KeyGenerator(byte[] seed) {
+        try {
+            shared = new Engine(MessageDigest.getInstance("SHA-256").digest(seed), null);
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Create a deterministic generator for testing.  The same seed always produces the same
+     * output, as long as the generator is called in the same order.  The generator is shared
+     * by all threads.
+     *
+     * @param seed the seed
+     * @return the generator
+     */
+    public static KeyGenerator deterministic(byte[] seed) {
+        return new KeyGenerator(seed.clone());
+    }
+
+    /**
+     * Returns the generator used for keys and IVs that are not given by the user
+     *
+     * @return the default generator
+     */
+    public static KeyGenerator getDefault() {
+        KeyGenerator generator = defaultGenerator;
+        if (generator == null) {
+            synchronized (KeyGenerator.class) {
+                generator = defaultGenerator;
+                if (generator == null) {
+                    String seed = System.getProperty(SEED_PROPERTY);
+                    try {
+                        generator = (seed != null) ? deterministic(seed.getBytes("UTF-8")) : new KeyGenerator();
+                    }
+                    catch (UnsupportedEncodingException e) {
+                        throw new IllegalStateException("UTF-8 is not available", e);
+                    }
+                    defaultGenerator = generator;
+                }
+            }
+        }
+        return generator;
+    }
+
+    /**
+     * Replace the default generator
+     *
+     * @param generator the new default generator, or null to create a new one from the
+     * system properties the next time it is needed
+     */
+    public static void setDefault(KeyGenerator generator) {
+        defaultGenerator = generator;
+    }
+
+    /**
+     * Fill part of an array with random bytes.  All other methods get their random bytes from
+     * this one.
+     *
+     * @param dst the array
+     * @param offset the position of the first byte to fill
+     * @param length the number of bytes to fill
+     */
+    public void nextBytes(byte[] dst, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > dst.length)
+            throw new IndexOutOfBoundsException("Invalid range " + offset + "+" + length + " of " + dst.length + " bytes");
+        if (shared != null) {
+            synchronized (shared) {
+                shared.nextBytes(dst, offset, length);
+            }
+        }
+        else {
+            engines.get().nextBytes(dst, offset, length);
+        }
+    }
+
+    /**
+     * Returns a random 16-byte AES-128 key
+     *
+     * @return the key
+     */
+    public byte[] generateKey() {
+        byte[] key = new byte[KeyPair.AES_128_KEYSIZE];
+        nextBytes(key, 0, key.length);
+        return key;
+    }
+
+    /**
+     * Returns a random initialization vector
+     *
+     * @param size the IV size in bytes
+     * @return the IV
+     */
+    public byte[] generateIV(int size) {
+        byte[] iv = new byte[size];
+        nextBytes(iv, 0, size);
+        return iv;
+    }
+
+    /**
+     * Returns a key pair with a random key ID and key
+     *
+     * @return the key pair
+     */
+    public KeyPair generateKeyPair() {
+        return generateKeyPairs(1)[0];
+    }
+
+    /**
+     * Returns key pairs with random key IDs and keys.  The random bytes for all key pairs are
+     * generated at once.
+     *
+     * @param count the number of key pairs
+     * @return the key pairs
+     */
+    public KeyPair[] generateKeyPairs(int count) {
+        int recordSize = KeyPair.GUID_SIZE + KeyPair.AES_128_KEYSIZE;
+        byte[] data = new byte[count * recordSize];
+        nextBytes(data, 0, data.length);
+        KeyPair[] keys = new KeyPair[count];
+        for (int i = 0, pos = 0; i < count; i++, pos += recordSize) {
+            keys[i] = new KeyPair(Arrays.copyOfRange(data, pos, pos + KeyPair.GUID_SIZE),
+                                  Arrays.copyOfRange(data, pos + KeyPair.GUID_SIZE, pos + recordSize));
+        }
+        Arrays.fill(data, (byte)0);
+        return keys;
+    }
+
+    /**
+     * Add key pairs with random key IDs and keys to a key store, without creating a key pair
+     * object for each one.  Key IDs are unique within the store.
+     *
+     * @param store the key store
+     * @param count the number of key pairs to add
+     */
+    public void generateKeyPairs(KeyPairStore store, int count) {
+        byte[] keyID = new byte[KeyPair.GUID_SIZE];
+        byte[] key = new byte[KeyPair.AES_128_KEYSIZE];
+        int target = store.size() + count;
+        while (store.size() < target) {
+            nextBytes(keyID, 0, keyID.length);
+            if (store.contains(keyID))
+                continue;
+            nextBytes(key, 0, key.length);
+            store.put(keyID, key);
+        }
+        Arrays.fill(key, (byte)0);
+    }
+}
@@ -26,13 +26,10 @@
 
 package org.cablelabs.cryptfile;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Random;
-
-import org.apache.commons.codec.DecoderException;
-import org.apache.commons.codec.binary.Hex;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * This class represents a 16-byte encryption key ID and a 16-byte AES-128 encryption
@@ -47,6 +44,29 @@ public class KeyPair {
     protected static final int AES_128_KEYSIZE = 16;
     protected static final int GUID_SIZE       = 16;
     
+    /**
+     * The number of characters in a GUID string (xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx)
+     */
+    public static final int GUID_STRING_LENGTH = 36;
+    
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    
+    // The value of each hexadecimal digit indexed by character, or -1 for other characters
+    private static final byte[] HEX_VALUES = new byte[128];
+    static {
+        Arrays.fill(HEX_VALUES, (byte)-1);
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUES[Character.forDigit(i, 16)] = (byte)i;
+            HEX_VALUES[Character.toUpperCase(Character.forDigit(i, 16))] = (byte)i;
+        }
+    }
+    
+    // Whether each character of a GUID string is a dash
+    private static final boolean[] GUID_DASHES = new boolean[GUID_STRING_LENGTH];
+    static {
+        GUID_DASHES[8] = GUID_DASHES[13] = GUID_DASHES[18] = GUID_DASHES[23] = true;
+    }
+    
     /**
      * Convert a string GUID into a byte array
      * 
@@ -54,28 +74,34 @@ public class KeyPair {
      * @return the 16-byte equivalant of the given GUID
      */
     public static byte[] parseGUID(String guid) {
-        String[] parts = guid.split("-");
-        if (parts.length != 5 || parts[0].length() != 8 || parts[1].length() != 4 ||
-                parts[2].length() != 4 || parts[3].length() != 4 || parts[4].length() != 12)
+        byte[] data = new byte[GUID_SIZE];
+        parseGUID(guid, data, 0);
+        return data;
+    }
+    
+    /**
+     * Convert a string GUID into 16 bytes of the given array
+     * 
+     * @param guid the string GUID in the form (xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx)
+     * @param dst the array to write the GUID into
+     * @param offset the position in the array of the first byte of the GUID
+     */
+    public static void parseGUID(CharSequence guid, byte[] dst, int offset) {
+        if (guid.length() != GUID_STRING_LENGTH)
             throw new IllegalArgumentException("Invalid GUID: " + guid);
-        
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(GUID_SIZE);
-        byte[] val;
-        
-        try {
-            for (int i = 0; i < 5; i++) {
-                val = Hex.decodeHex(parts[i].toCharArray());
-                baos.write(val);
+        for (int i = 0; i < GUID_STRING_LENGTH; ) {
+            if (GUID_DASHES[i]) {
+                if (guid.charAt(i) != '-')
+                    throw new IllegalArgumentException("Invalid GUID: " + guid);
+                i++;
+                continue;
             }
+            int hi = hexValue(guid.charAt(i++));
+            int lo = hexValue(guid.charAt(i++));
+            if (hi < 0 || lo < 0)
+                throw new IllegalArgumentException("Invalid GUID: " + guid);
+            dst[offset++] = (byte)((hi << 4) | lo);
         }
-        catch (DecoderException e) {
-            throw new IllegalArgumentException("Invalid GUID: " + guid);
-        }
-        catch (IOException e) {
-            throw new IllegalArgumentException("Problem writing to ByteArrayOutputStream");
-        }
-        
-        return baos.toByteArray();
     }
     
     /**
@@ -88,33 +114,104 @@ public class KeyPair {
         if (data.length != GUID_SIZE)
             throw new IllegalArgumentException("Invalid data! -- must be 16-bytes to create GUID");
         
-        String retVal = "";
-        int byteIndex = 0;
-        for (int i = 0; i < 4; i++, byteIndex++)
-            retVal += String.format("%02x", data[byteIndex]);
-        retVal += "-";
-        for (int i = 0; i < 2; i++, byteIndex++)
-            retVal += String.format("%02x", data[byteIndex]);
-        retVal += "-";
-        for (int i = 0; i < 2; i++, byteIndex++)
-            retVal += String.format("%02x", data[byteIndex]);
-        retVal += "-";
-        for (int i = 0; i < 2; i++, byteIndex++)
-            retVal += String.format("%02x", data[byteIndex]);
-        retVal += "-";
-        for (int i = 0; i < 6; i++, byteIndex++)
-            retVal += String.format("%02x", data[byteIndex]);
-        
-        return retVal;
+        char[] guid = new char[GUID_STRING_LENGTH];
+        toGUID(data, 0, guid, 0);
+        return new String(guid);
+    }
+    
+    /**
+     * Write 16 bytes of an array as a GUID of the form xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx
+     * 
+     * @param data the array holding the value to convert
+     * @param offset the position in the array of the first byte of the value
+     * @param dst the array to write the 36 characters of the GUID into
+     * @param dstOffset the position in the character array of the first character
+     */
+    public static void toGUID(byte[] data, int offset, char[] dst, int dstOffset) {
+        for (int i = 0; i < GUID_STRING_LENGTH; ) {
+            if (GUID_DASHES[i]) {
+                dst[dstOffset + i++] = '-';
+                continue;
+            }
+            int b = data[offset++];
+            dst[dstOffset + i++] = HEX_DIGITS[(b >> 4) & 0xf];
+            dst[dstOffset + i++] = HEX_DIGITS[b & 0xf];
+        }
+    }
+    
+    /**
+     * Write bytes of an array as lowercase hexadecimal, two characters per byte
+     * 
+     * @param data the array holding the bytes
+     * @param offset the position in the array of the first byte
+     * @param length the number of bytes
+     * @param dst the array to write the characters into
+     * @param dstOffset the position in the character array of the first character
+     */
+    public static void encodeHex(byte[] data, int offset, int length, char[] dst, int dstOffset) {
+        for (int i = 0; i < length; i++) {
+            int b = data[offset + i];
+            dst[dstOffset++] = HEX_DIGITS[(b >> 4) & 0xf];
+            dst[dstOffset++] = HEX_DIGITS[b & 0xf];
+        }
+    }
+    
+    /**
+     * Decode hexadecimal characters (upper or lowercase) into an array, one byte for every
+     * two characters
+     * 
+     * @param hex the characters to decode
+     * @param start the index of the first character
+     * @param end the index after the last character
+     * @param dst the array to write the bytes into
+     * @param offset the position in the array of the first byte
+     * @throws IllegalArgumentException if the characters are not valid hexadecimal
+     */
+    public static void decodeHex(CharSequence hex, int start, int end, byte[] dst, int offset) {
+        if (((end - start) & 1) != 0)
+            throw new IllegalArgumentException("Invalid hexadecimal data: odd number of characters");
+        for (int i = start; i < end; i += 2) {
+            int hi = hexValue(hex.charAt(i));
+            int lo = hexValue(hex.charAt(i + 1));
+            if (hi < 0 || lo < 0)
+                throw new IllegalArgumentException("Invalid hexadecimal data: illegal character at index " + ((hi < 0) ? i : i + 1));
+            dst[offset++] = (byte)((hi << 4) | lo);
+        }
+    }
+    
+    /**
+     * Remove duplicate key IDs, keeping the first of each in its original order.  Key IDs
+     * are compared by value.
+     * 
+     * @param keyIDs 16-byte key IDs
+     * @return copies of the unique key IDs
+     */
+    public static byte[][] uniqueKeyIDs(byte[][] keyIDs) {
+        Set<ByteBuffer> seen = new HashSet<ByteBuffer>(keyIDs.length * 2);
+        byte[][] unique = new byte[keyIDs.length][];
+        int count = 0;
+        for (byte[] keyID : keyIDs) {
+            if (keyID.length != GUID_SIZE)
+                throw new IllegalArgumentException("Invalid key ID size: " + keyID.length);
+            if (seen.add(ByteBuffer.wrap(keyID)))
+                unique[count++] = keyID.clone();
+        }
+        return (count == unique.length) ? unique : Arrays.copyOf(unique, count);
+    }
+    
+    private static int hexValue(char c) {
+        return (c < HEX_VALUES.length) ? HEX_VALUES[c] : -1;
     }
     
     private static byte[] parseHexKey(String hexKey) {
+        byte[] key = new byte[hexKey.length() / 2];
         try {
-            return Hex.decodeHex(hexKey.toCharArray());
+            decodeHex(hexKey, 0, hexKey.length(), key, 0);
         }
-        catch (DecoderException e) {
+        catch (IllegalArgumentException e) {
             throw new IllegalArgumentException("Invalid hex key value: " + e.getMessage());
         }
+        return key;
     }
     
     /**
@@ -139,12 +236,7 @@ public class KeyPair {
      * @return a random key pair
      */
     public static KeyPair random() {
-        Random r = new Random();
-        byte[] key = new byte[16];
-        r.nextBytes(key);
-        byte[] keyID = new byte[16];
-        r.nextBytes(keyID);
-        return new KeyPair(keyID, key);
+        return KeyGenerator.getDefault().generateKeyPair();
     }
     
     /**
@@ -189,8 +281,10 @@ public class KeyPair {
      * @param copy the key to copy
      */
     public KeyPair(KeyPair copy) {
-        this.key = Arrays.copyOf(copy.key, copy.key.length);
-        this.keyID = Arrays.copyOf(copy.keyID, copy.keyID.length);
+        byte[] copyKey = copy.getKey();
+        byte[] copyKeyID = copy.getID();
+        this.key = Arrays.copyOf(copyKey, copyKey.length);
+        this.keyID = Arrays.copyOf(copyKeyID, copyKeyID.length);
     }
     
     /**
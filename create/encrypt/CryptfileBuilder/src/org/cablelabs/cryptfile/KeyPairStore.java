@@ -0,0 +1,286 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A compact store for large numbers of key ID/key pairs, such as the keys of a channel
+ * that rotates keys on every segment.  Each pair is kept as a fixed 32-byte record (the
+ * 16-byte key ID followed by the 16-byte key) in a direct buffer outside of the Java heap,
+ * and the records are indexed by key ID with an open-addressing hash table of longs.  The
+ * garbage collector therefore sees two objects no matter how many keys are stored.
+ * <p>
+ * Keys are read back as {@link KeyPair} views, which may be used anywhere a key pair is
+ * accepted.  A view holds only its record index; the key ID and key arrays are copied out
+ * of the store each time they are requested, so a view reflects later changes to its key.
+ * <p>
+ * This class is not thread-safe.  Keys may be read from several threads at the same time
+ * as long as no thread is adding keys.
+ */
+public class KeyPairStore {
+
+    /**
+     * The size of a single key ID/key record in bytes
+     */
+    public static final int RECORD_SIZE = KeyPair.GUID_SIZE + KeyPair.AES_128_KEYSIZE;
+
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE / RECORD_SIZE;
+    private static final int MIN_CAPACITY = 16;
+
+    // Each table slot holds the upper 32 bits of the key ID hash and the record index plus
+    // one, so that most probes are resolved without reading the records.  Zero is empty
+    private long[] table;
+    private ByteBuffer records;
+    private int size;
+
+    /**
+     * A key pair backed by a record in this store
+     */
+    private class View extends KeyPair {
+
+        private int index;
+
+        View(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public byte[] getID() {
+            return read(index * RECORD_SIZE, KeyPair.GUID_SIZE);
+        }
+
+        @Override
+        public byte[] getKey() {
+            return read(index * RECORD_SIZE + KeyPair.GUID_SIZE, KeyPair.AES_128_KEYSIZE);
+        }
+    }
+
+    /**
+     * Create an empty store
+     *
+     * @param capacity the number of keys to allocate space for.  The store grows when
+     * more keys are added
+     */
+    public KeyPairStore(int capacity) {
+        if (capacity < 0 || capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("Invalid key store capacity: " + capacity);
+        capacity = Math.max(capacity, MIN_CAPACITY);
+        records = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+        table = new long[tableSize(capacity)];
+    }
+
+    /**
+     * Returns the number of keys in this store
+     *
+     * @return the number of keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Add a key to this store.  If the store already holds a key with the same key ID, its
+     * key value is replaced.
+     *
+     * @param keyID the 16-byte key ID
+     * @param key the 16-byte key
+     * @return the index of the key in this store
+     */
+    public int put(byte[] keyID, byte[] key) {
+        if (keyID == null || keyID.length != KeyPair.GUID_SIZE)
+            throw new IllegalArgumentException("Invalid key ID size: " + ((keyID == null) ? 0 : keyID.length));
+        if (key == null || key.length != KeyPair.AES_128_KEYSIZE)
+            throw new IllegalArgumentException("Invalid AES-128 key size: " + ((key == null) ? 0 : key.length));
+
+        long hi = getLong(keyID, 0);
+        long lo = getLong(keyID, 8);
+        int index = find(hi, lo);
+        if (index == -1) {
+            if (size == MAX_CAPACITY)
+                throw new IllegalStateException("Key store is full");
+            if (size * RECORD_SIZE == records.capacity())
+                growRecords();
+            if (tableSize(size + 1) > table.length)
+                growTable();
+
+            index = size++;
+            records.putLong(index * RECORD_SIZE, hi);
+            records.putLong(index * RECORD_SIZE + 8, lo);
+            insert(hash(hi, lo), index);
+        }
+        int offset = index * RECORD_SIZE + KeyPair.GUID_SIZE;
+        for (int i = 0; i < KeyPair.AES_128_KEYSIZE; i++)
+            records.put(offset + i, key[i]);
+        return index;
+    }
+
+    /**
+     * Add a key to this store.  If the store already holds a key with the same key ID, its
+     * key value is replaced.
+     *
+     * @param keypair the key
+     * @return the index of the key in this store
+     */
+    public int put(KeyPair keypair) {
+        return put(keypair.getID(), keypair.getKey());
+    }
+
+    /**
+     * Returns the index of the key with the given key ID
+     *
+     * @param keyID the 16-byte key ID
+     * @return the index of the key, or -1 if this store does not hold the key ID
+     */
+    public int indexOf(byte[] keyID) {
+        if (keyID == null || keyID.length != KeyPair.GUID_SIZE)
+            return -1;
+        return find(getLong(keyID, 0), getLong(keyID, 8));
+    }
+
+    /**
+     * Returns whether this store holds a key with the given key ID
+     *
+     * @param keyID the 16-byte key ID
+     * @return true if the key ID is found, false otherwise
+     */
+    public boolean contains(byte[] keyID) {
+        return indexOf(keyID) != -1;
+    }
+
+    /**
+     * Returns the key with the given key ID
+     *
+     * @param keyID the 16-byte key ID
+     * @return a view of the key, or null if this store does not hold the key ID
+     */
+    public KeyPair get(byte[] keyID) {
+        int index = indexOf(keyID);
+        return (index == -1) ? null : new View(index);
+    }
+
+    /**
+     * Returns the key at the given index.  Keys are indexed in the order they were first
+     * added.
+     *
+     * @param index the index of the key
+     * @return a view of the key
+     */
+    public KeyPair get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Invalid key index: " + index);
+        return new View(index);
+    }
+
+    /**
+     * Copy the key at the given index into a byte array, without creating a view
+     *
+     * @param index the index of the key
+     * @param dst the array to copy the 16-byte key into
+     * @param offset the position in the array of the first byte of the key
+     */
+    public void getKey(int index, byte[] dst, int offset) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Invalid key index: " + index);
+        int pos = index * RECORD_SIZE + KeyPair.GUID_SIZE;
+        for (int i = 0; i < KeyPair.AES_128_KEYSIZE; i++)
+            dst[offset + i] = records.get(pos + i);
+    }
+
+    // Find the record index of a key ID, given as two big-endian longs
+    private int find(long hi, long lo) {
+        long hash = hash(hi, lo);
+        long tag = hash & 0xffffffff00000000L;
+        int mask = table.length - 1;
+        for (int slot = (int)hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            long entry = table[slot];
+            if ((entry & 0xffffffff00000000L) != tag)
+                continue;
+            int index = (int)entry - 1;
+            if (records.getLong(index * RECORD_SIZE) == hi && records.getLong(index * RECORD_SIZE + 8) == lo)
+                return index;
+        }
+        return -1;
+    }
+
+    // Add a record index to the table.  The table must have a free slot
+    private void insert(long hash, int index) {
+        int mask = table.length - 1;
+        int slot = (int)hash & mask;
+        while (table[slot] != 0)
+            slot = (slot + 1) & mask;
+        table[slot] = (hash & 0xffffffff00000000L) | (index + 1);
+    }
+
+    private void growRecords() {
+        int capacity = (int)Math.min((long)size * 2, MAX_CAPACITY);
+        ByteBuffer grown = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+        ByteBuffer src = records.duplicate();
+        src.clear();
+        grown.put(src);
+        records = grown;
+    }
+
+    private void growTable() {
+        table = new long[table.length * 2];
+        for (int i = 0; i < size; i++) {
+            long hi = records.getLong(i * RECORD_SIZE);
+            long lo = records.getLong(i * RECORD_SIZE + 8);
+            insert(hash(hi, lo), i);
+        }
+    }
+
+    private byte[] read(int offset, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = records.get(offset + i);
+        return data;
+    }
+
+    // The table is kept at most half full
+    private static int tableSize(int keys) {
+        return Integer.highestOneBit(Math.max(keys, 1) * 2 - 1) * 2;
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (data[offset + i] & 0xff);
+        return value;
+    }
+
+    // Key IDs are often sequential or share a prefix, so both halves are mixed into the hash
+    private static long hash(long hi, long lo) {
+        long h = hi * 0x9e3779b97f4a7c15L ^ lo;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
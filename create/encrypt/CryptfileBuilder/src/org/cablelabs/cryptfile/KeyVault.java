@@ -0,0 +1,744 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.codec.binary.Hex;
+import org.cablelabs.cmdline.CmdLine;
+
+/**
+ * A persistent file of key ID/key pairs, so that keys generated or derived by one tool can be
+ * looked up by other tools (or a license server) without parsing text key files.
+ * <p>
+ * The file is a 64-byte header followed by segments of key records.  Each segment holds a
+ * record count, a CRC-32 of its records and the 32-byte records themselves (key ID followed
+ * by key), sorted by key ID.  The committed part of the file is memory-mapped and a key is
+ * found with a binary search of each segment.  All values are big-endian.
+ * <p>
+ * Keys are only ever appended.  Keys added with {@link #put(KeyPair)} are held in memory
+ * until {@link #commit()} writes them as a new segment.  The header holds two commit slots,
+ * each with a generation number, the committed file length, the key count and a CRC-32.  A
+ * commit writes and syncs the segment, then overwrites the older slot.  If a commit is cut
+ * short, the other slot still describes a complete vault and the partial segment is ignored.
+ * Commits from other processes are picked up by {@link #refresh()}.
+ * <p>
+ * Each commit adds a segment, so vaults that are committed to often should be compacted
+ * with {@link #compact()} from time to time.  A vault may hold up to 2GB of records.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class KeyVault implements Closeable {
+
+    private static final int MAGIC = 0x434c4b56; // "CLKV"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_OFFSET = 8;
+    private static final int SLOT_SIZE = 24;
+    private static final int SLOT_CRC_SIZE = 20;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = KeyPairStore.RECORD_SIZE;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    // Key IDs are ordered as unsigned bytes, which is also the order of the big-endian
+    // longs used to compare records in the file
+    private static final Comparator<byte[]> KEY_ID_ORDER = new Comparator<byte[]>() {
+        public int compare(byte[] a, byte[] b) {
+            for (int i = 0; i < a.length; i++) {
+                int diff = (a[i] & 0xff) - (b[i] & 0xff);
+                if (diff != 0)
+                    return diff;
+            }
+            return 0;
+        }
+    };
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private File file;
+    private boolean readOnly;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+
+    // The committed state of the vault
+    private long generation;
+    private long length;
+    private int count;
+    private ByteBuffer data;
+    private List<Integer> segments;
+
+    private Map<byte[], byte[]> pending = new TreeMap<byte[], byte[]>(KEY_ID_ORDER);
+
+    /**
+     * Open a key vault.  A vault opened for writing is created if it does not exist.
+     *
+     * @param file the vault file
+     * @param readOnly true if keys will only be read from the vault
+     * @throws IOException if the vault could not be opened or is not a valid vault
+     */
+    public KeyVault(File file, boolean readOnly) throws IOException {
+        this.file = file;
+        this.readOnly = readOnly;
+        open();
+    }
+
+    /**
+     * Returns whether a file is a key vault
+     *
+     * @param file the file
+     * @return true if the file starts with a key vault header, false otherwise
+     */
+    public static boolean isKeyVault(File file) {
+        try {
+            RandomAccessFile f = new RandomAccessFile(file, "r");
+            try {
+                return f.length() >= HEADER_SIZE && f.readInt() == MAGIC;
+            }
+            finally {
+                f.close();
+            }
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of keys in this vault, including keys that are not yet committed
+     *
+     * @return the number of keys
+     */
+    public int size() {
+        return count + pending.size();
+    }
+
+    /**
+     * Returns the key with the given key ID
+     *
+     * @param keyID the 16-byte key ID
+     * @return the key, or null if the vault does not hold the key ID
+     */
+    public KeyPair get(byte[] keyID) {
+        if (keyID == null || keyID.length != KeyPair.GUID_SIZE)
+            return null;
+        byte[] key = pending.get(keyID);
+        key = (key != null) ? key.clone() : find(keyID);
+        return (key == null) ? null : new KeyPair(keyID.clone(), key);
+    }
+
+    /**
+     * Returns whether this vault holds a key with the given key ID
+     *
+     * @param keyID the 16-byte key ID
+     * @return true if the key ID is found, false otherwise
+     */
+    public boolean contains(byte[] keyID) {
+        return get(keyID) != null;
+    }
+
+    /**
+     * Returns all committed keys in key ID order
+     *
+     * @return the keys
+     */
+    public List<KeyPair> getKeyPairs() {
+        final List<KeyPair> keys = new ArrayList<KeyPair>(count);
+        forEachRecord(new RecordVisitor() {
+            public void visit(ByteBuffer records, int offset) {
+                keys.add(new KeyPair(read(records, offset, KeyPair.GUID_SIZE),
+                                     read(records, offset + KeyPair.GUID_SIZE, KeyPair.AES_128_KEYSIZE)));
+            }
+        });
+        return keys;
+    }
+
+    /**
+     * Add a key to this vault.  The key is not written to the vault file until the next
+     * commit.  Adding a key that the vault already holds has no effect.
+     *
+     * @param keypair the key
+     * @throws IllegalArgumentException if the vault holds a different key with the same key ID
+     */
+    public void put(KeyPair keypair) {
+        if (readOnly)
+            throw new IllegalStateException("Key vault is read-only: " + file);
+        byte[] keyID = keypair.getID();
+        byte[] key = keypair.getKey();
+        if (keyID == null || keyID.length != KeyPair.GUID_SIZE)
+            throw new IllegalArgumentException("Invalid key ID size: " + ((keyID == null) ? 0 : keyID.length));
+        KeyPair existing = get(keyID);
+        if (existing != null) {
+            if (!Arrays.equals(existing.getKey(), key))
+                throw new IllegalArgumentException("Key vault already holds a different key for " + KeyPair.toGUID(keyID));
+            return;
+        }
+        pending.put(keyID.clone(), key.clone());
+    }
+
+    /**
+     * Write the keys added since the last commit to the vault file.  Once this returns, the
+     * keys survive a crash of the process or the system.
+     *
+     * @throws IOException if the keys could not be written
+     * @throws IllegalArgumentException if another process committed a different key for
+     * one of the key IDs
+     */
+    public void commit() throws IOException {
+        if (pending.isEmpty())
+            return;
+        FileLock lock = channel.lock();
+        try {
+            // Another process may have committed since this vault was last read
+            load();
+            for (Map.Entry<byte[], byte[]> e : new ArrayList<Map.Entry<byte[], byte[]>>(pending.entrySet())) {
+                byte[] key = find(e.getKey());
+                if (key == null)
+                    continue;
+                if (!Arrays.equals(key, e.getValue()))
+                    throw new IllegalArgumentException("Key vault already holds a different key for " +
+                                                       KeyPair.toGUID(e.getKey()));
+                pending.remove(e.getKey());
+            }
+            if (pending.isEmpty())
+                return;
+
+            long segmentSize = SEGMENT_HEADER_SIZE + (long)pending.size() * RECORD_SIZE;
+            if (length + segmentSize > Integer.MAX_VALUE)
+                throw new IOException("Key vault is full: " + file);
+            ByteBuffer segment = ByteBuffer.allocate((int)segmentSize);
+            segment.position(SEGMENT_HEADER_SIZE);
+            for (Map.Entry<byte[], byte[]> e : pending.entrySet()) {
+                segment.put(e.getKey());
+                segment.put(e.getValue());
+            }
+            segment.putInt(0, pending.size());
+            segment.putInt(4, crc(segment, SEGMENT_HEADER_SIZE, segment.capacity() - SEGMENT_HEADER_SIZE));
+            segment.rewind();
+
+            // Anything past the committed length is left over from a failed commit
+            channel.truncate(length);
+            write(channel, segment, length);
+            channel.force(true);
+            writeSlot(channel, generation + 1, length + segmentSize, count + pending.size());
+            channel.force(false);
+            pending.clear();
+            load();
+        }
+        finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Re-read the vault file to pick up keys committed by other processes
+     *
+     * @throws IOException if the vault could not be read
+     */
+    public void refresh() throws IOException {
+        load();
+    }
+
+    /**
+     * Commit any added keys, then rewrite the vault file with all keys in a single segment.
+     * The new file replaces the old one when it is complete.  Other processes must not write
+     * to the vault while it is compacted, and must reopen it afterwards to see new keys.
+     *
+     * @throws IOException if the vault could not be rewritten
+     */
+    public void compact() throws IOException {
+        commit();
+        if (segments.size() <= 1)
+            return;
+
+        File temp = File.createTempFile(file.getName(), TEMP_SUFFIX, file.getAbsoluteFile().getParentFile());
+        try {
+            RandomAccessFile out = new RandomAccessFile(temp, "rw");
+            try {
+                final FileChannel tc = out.getChannel();
+                final ByteBuffer buf = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+                final CRC32 crc = new CRC32();
+                final long[] position = { HEADER_SIZE + SEGMENT_HEADER_SIZE };
+                final IOException[] error = new IOException[1];
+                forEachRecord(new RecordVisitor() {
+                    public void visit(ByteBuffer records, int offset) {
+                        for (int i = 0; i < RECORD_SIZE; i++)
+                            buf.put(records.get(offset + i));
+                        if (buf.hasRemaining() || error[0] != null)
+                            return;
+                        try {
+                            buf.flip();
+                            crc.update(buf.array(), 0, buf.limit());
+                            position[0] += write(tc, buf, position[0]);
+                            buf.clear();
+                        }
+                        catch (IOException e) {
+                            error[0] = e;
+                        }
+                    }
+                });
+                if (error[0] != null)
+                    throw error[0];
+                buf.flip();
+                crc.update(buf.array(), 0, buf.limit());
+                write(tc, buf, position[0]);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + SEGMENT_HEADER_SIZE);
+                header.putInt(0, MAGIC);
+                header.putInt(4, VERSION);
+                header.putInt(HEADER_SIZE, count);
+                header.putInt(HEADER_SIZE + 4, (int)crc.getValue());
+                write(tc, header, 0);
+                writeSlot(tc, generation + 1, HEADER_SIZE + SEGMENT_HEADER_SIZE + (long)count * RECORD_SIZE, count);
+                tc.force(true);
+            }
+            finally {
+                out.close();
+            }
+
+            close();
+            if (!temp.renameTo(file)) {
+                file.delete();
+                if (!temp.renameTo(file))
+                    throw new IOException("Could not rename " + temp + " to " + file);
+            }
+        }
+        finally {
+            temp.delete();
+            if (channel == null || !channel.isOpen())
+                open();
+        }
+    }
+
+    /**
+     * Add keys from a text key file, which holds one "&lt;key_id&gt;=&lt;key&gt;" pair per
+     * line with the key ID in GUID form and the key in hexadecimal.  Blank lines and lines
+     * starting with '#' are ignored.  The keys are not written to the vault file until the
+     * next commit.
+     *
+     * @param reader the text key file
+     * @return the number of keys read
+     * @throws IOException if the key file could not be read or holds an invalid key
+     */
+    public int importText(Reader reader) throws IOException {
+        BufferedReader br = new BufferedReader(reader);
+        String line;
+        int lineNum = 0;
+        int imported = 0;
+        while ((line = br.readLine()) != null) {
+            lineNum++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] keypair = line.split("=");
+            try {
+                if (keypair.length != 2)
+                    throw new IllegalArgumentException("Invalid key specification: " + line);
+                put(new KeyPair(keypair[0].trim(), keypair[1].trim()));
+            }
+            catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage() + " on line " + lineNum);
+            }
+            imported++;
+        }
+        return imported;
+    }
+
+    /**
+     * Write all committed keys as a text key file, in the form read by
+     * {@link #importText(Reader)}
+     *
+     * @param writer the text key file
+     * @throws IOException if the key file could not be written
+     */
+    public void exportText(Writer writer) throws IOException {
+        for (KeyPair kp : getKeyPairs())
+            writer.write(KeyPair.toGUID(kp.getID()) + "=" + Hex.encodeHexString(kp.getKey()) + "\n");
+        writer.flush();
+    }
+
+    /**
+     * Close the vault file.  Keys that were not committed are lost.
+     *
+     * @throws IOException if the file could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        data = null;
+        if (raf != null)
+            raf.close();
+        raf = null;
+        channel = null;
+    }
+
+    // Open the vault file, writing an empty vault if it is new
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, readOnly ? "r" : "rw");
+        channel = raf.getChannel();
+        generation = 0;
+        length = 0;
+        count = 0;
+        data = null;
+        segments = new ArrayList<Integer>();
+        if (!readOnly && channel.size() == 0) {
+            FileLock lock = channel.lock();
+            try {
+                if (channel.size() == 0) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putInt(0, MAGIC);
+                    header.putInt(4, VERSION);
+                    write(channel, header, 0);
+                    writeSlot(channel, 1, HEADER_SIZE, 0);
+                    channel.force(true);
+                }
+            }
+            finally {
+                lock.release();
+            }
+        }
+        try {
+            load();
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // Read the header and map the committed part of the file.  Segments that were already
+    // loaded are not checked again
+    private void load() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (channel.size() < HEADER_SIZE || read(channel, header, 0) < HEADER_SIZE ||
+                header.getInt(0) != MAGIC)
+            throw new IOException("Not a key vault: " + file);
+        if (header.getInt(4) != VERSION)
+            throw new IOException("Unsupported key vault version " + header.getInt(4) + ": " + file);
+
+        // Use the newest slot that is intact
+        long newGeneration = -1;
+        long newLength = 0;
+        int newCount = 0;
+        for (int slot = 0; slot < 2; slot++) {
+            int offset = SLOT_OFFSET + slot * SLOT_SIZE;
+            if (crc(header, offset, SLOT_CRC_SIZE) != header.getInt(offset + SLOT_CRC_SIZE))
+                continue;
+            long g = header.getLong(offset);
+            if (g > newGeneration) {
+                newGeneration = g;
+                newLength = header.getLong(offset + 8);
+                newCount = header.getInt(offset + 16);
+            }
+        }
+        if (newGeneration == -1 || newLength < HEADER_SIZE || newLength > Integer.MAX_VALUE ||
+                newLength > channel.size())
+            throw new IOException("Key vault header is corrupt: " + file);
+        if (newGeneration == generation && data != null)
+            return;
+        if (newGeneration < generation || newLength < length)
+            throw new IOException("Key vault was replaced while open: " + file);
+
+        ByteBuffer newData = channel.map(FileChannel.MapMode.READ_ONLY, 0, newLength);
+        List<Integer> newSegments = new ArrayList<Integer>(segments);
+        int total = 0;
+        int offset = HEADER_SIZE;
+        for (int i = 0; offset < newLength; i++) {
+            if (offset + SEGMENT_HEADER_SIZE > newLength)
+                throw new IOException("Key vault segment is truncated: " + file);
+            int records = newData.getInt(offset);
+            long end = offset + SEGMENT_HEADER_SIZE + (long)records * RECORD_SIZE;
+            if (records < 0 || end > newLength)
+                throw new IOException("Key vault segment is truncated: " + file);
+            if (i >= segments.size()) {
+                if (crc(newData, offset + SEGMENT_HEADER_SIZE, (int)end - offset - SEGMENT_HEADER_SIZE) !=
+                        newData.getInt(offset + 4))
+                    throw new IOException("Key vault segment is corrupt: " + file);
+                newSegments.add(offset);
+            }
+            total += records;
+            offset = (int)end;
+        }
+        if (total != newCount)
+            throw new IOException("Key vault key count does not match its segments: " + file);
+
+        generation = newGeneration;
+        length = newLength;
+        count = newCount;
+        data = newData;
+        segments = newSegments;
+    }
+
+    // Binary search each segment for a key ID and return its key
+    private byte[] find(byte[] keyID) {
+        long hi = getLong(keyID, 0);
+        long lo = getLong(keyID, 8);
+        for (int segment : segments) {
+            int low = 0;
+            int high = data.getInt(segment) - 1;
+            int base = segment + SEGMENT_HEADER_SIZE;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int offset = base + mid * RECORD_SIZE;
+                int cmp = compareUnsigned(data.getLong(offset), hi);
+                if (cmp == 0)
+                    cmp = compareUnsigned(data.getLong(offset + 8), lo);
+                if (cmp < 0)
+                    low = mid + 1;
+                else if (cmp > 0)
+                    high = mid - 1;
+                else
+                    return read(data, offset + KeyPair.GUID_SIZE, KeyPair.AES_128_KEYSIZE);
+            }
+        }
+        return null;
+    }
+
+    // Receives the offset of each record in the mapped file
+    private interface RecordVisitor {
+        public void visit(ByteBuffer records, int offset);
+    }
+
+    // Visit every committed record in key ID order by merging the sorted segments
+    private void forEachRecord(RecordVisitor visitor) {
+        int n = segments.size();
+        int[] next = new int[n];
+        int[] end = new int[n];
+        for (int i = 0; i < n; i++) {
+            next[i] = segments.get(i) + SEGMENT_HEADER_SIZE;
+            end[i] = next[i] + data.getInt(segments.get(i)) * RECORD_SIZE;
+        }
+        while (true) {
+            int min = -1;
+            for (int i = 0; i < n; i++) {
+                if (next[i] == end[i])
+                    continue;
+                if (min == -1 || compareRecords(next[i], next[min]) < 0)
+                    min = i;
+            }
+            if (min == -1)
+                return;
+            visitor.visit(data, next[min]);
+            next[min] += RECORD_SIZE;
+        }
+    }
+
+    private int compareRecords(int a, int b) {
+        int cmp = compareUnsigned(data.getLong(a), data.getLong(b));
+        return (cmp != 0) ? cmp : compareUnsigned(data.getLong(a + 8), data.getLong(b + 8));
+    }
+
+    // Write a commit slot.  The slot written is chosen by the generation, so the slot of the
+    // previous commit is left intact
+    private static void writeSlot(FileChannel channel, long generation, long length, int count)
+            throws IOException {
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+        slot.putLong(generation);
+        slot.putLong(length);
+        slot.putInt(count);
+        slot.putInt(crc(slot, 0, SLOT_CRC_SIZE));
+        slot.rewind();
+        write(channel, slot, SLOT_OFFSET + (generation % 2) * SLOT_SIZE);
+    }
+
+    private static int crc(ByteBuffer buf, int offset, int length) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[Math.min(length, COPY_BUFFER_SIZE)];
+        ByteBuffer src = buf.duplicate();
+        src.clear();
+        src.position(offset);
+        while (length > 0) {
+            int n = Math.min(length, chunk.length);
+            src.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+            length -= n;
+        }
+        return (int)crc.getValue();
+    }
+
+    private static int write(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        int written = 0;
+        while (buf.hasRemaining())
+            written += channel.write(buf, position + written);
+        return written;
+    }
+
+    private static int read(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + total);
+            if (n < 0)
+                break;
+            total += n;
+        }
+        return total;
+    }
+
+    private static byte[] read(ByteBuffer buf, int offset, int length) {
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++)
+            value[i] = buf.get(offset + i);
+        return value;
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (data[offset + i] & 0xff);
+        return value;
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        a += Long.MIN_VALUE;
+        b += Long.MIN_VALUE;
+        return (a < b) ? -1 : ((a > b) ? 1 : 0);
+    }
+
+    private static class Usage implements org.cablelabs.cmdline.Usage {
+        public void usage() {
+            System.out.println("Key vault tool.");
+            System.out.println("");
+            System.out.println("usage:  KeyVault [OPTIONS] <vault_file>");
+            System.out.println("");
+            System.out.println("\t<vault_file> is the key vault.  It is created if it does not exist.");
+            System.out.println("");
+            System.out.println("\tOPTIONS:");
+            System.out.println("");
+            System.out.println("\t-help");
+            System.out.println("\t\tDisplay this usage message.");
+            System.out.println("");
+            System.out.println("\t-import <key_file>");
+            System.out.println("\t\tAdd the keys in a text key file to the vault.  The key file holds one");
+            System.out.println("\t\t<key_id>=<key> pair per line, with the key ID in GUID form and the key");
+            System.out.println("\t\tin hexadecimal.");
+            System.out.println("");
+            System.out.println("\t-export <key_file>");
+            System.out.println("\t\tWrite all keys in the vault to a text key file.");
+            System.out.println("");
+            System.out.println("\t-compact");
+            System.out.println("\t\tRewrite the vault with all keys in a single segment.");
+        }
+    }
+
+    public static void main(String[] args) {
+
+        CmdLine cmdline = new CmdLine(new Usage());
+        List<String> imports = new ArrayList<String>();
+        String export = null;
+        boolean compact = false;
+        String vaultFile = null;
+
+        // Parse arguments
+        for (int i = 0; i < args.length; i++) {
+            String[] subopts;
+            if ((subopts = cmdline.checkOption("-help", args, i, 0)) != null) {
+                (new Usage()).usage();
+                System.exit(0);
+            }
+            else if ((subopts = cmdline.checkOption("-import", args, i, 1)) != null) {
+                imports.add(subopts[0]);
+                i++;
+            }
+            else if ((subopts = cmdline.checkOption("-export", args, i, 1)) != null) {
+                export = subopts[0];
+                i++;
+            }
+            else if ((subopts = cmdline.checkOption("-compact", args, i, 0)) != null) {
+                compact = true;
+            }
+            else if (args[i].startsWith("-") || vaultFile != null) {
+                cmdline.errorExit("Illegal argument: " + args[i]);
+            }
+            else {
+                vaultFile = args[i];
+            }
+        }
+        if (vaultFile == null)
+            cmdline.errorExit("Must specify a vault file");
+
+        try {
+            KeyVault vault = new KeyVault(new File(vaultFile), false);
+            try {
+                for (String keyfile : imports) {
+                    Reader r = new InputStreamReader(new FileInputStream(keyfile), "UTF-8");
+                    try {
+                        System.out.println("Imported " + vault.importText(r) + " keys from " + keyfile);
+                    }
+                    catch (IOException e) {
+                        throw new IOException(e.getMessage() + " of " + keyfile);
+                    }
+                    finally {
+                        r.close();
+                    }
+                }
+                vault.commit();
+                if (compact)
+                    vault.compact();
+                if (export != null) {
+                    Writer w = new OutputStreamWriter(new FileOutputStream(export), "UTF-8");
+                    try {
+                        vault.exportText(w);
+                    }
+                    finally {
+                        w.close();
+                    }
+                }
+                System.out.println(vault.size() + " keys in " + vaultFile);
+            }
+            finally {
+                vault.close();
+            }
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        catch (IOException e) {
+            System.err.println("Key vault error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Creates, parses and serializes cryptfile XML documents.  The XML factories are looked up
+ * once when the context is created, and each thread that uses the context is given its own
+ * document builder and transformer, which are reused on every subsequent call from that
+ * thread.  A single context may be shared by any number of threads.
+ * <p>
+ * Errors are reported as <code>IOException</code>s rather than terminating the process.
+ */
+public class XMLContext {
+
+    private static XMLContext defaultContext;
+
+    private DocumentBuilderFactory documentBuilderFactory;
+    private TransformerFactory transformerFactory;
+    private XMLInputFactory inputFactory;
+
+    private ThreadLocal<DocumentBuilder> documentBuilder = new ThreadLocal<DocumentBuilder>();
+    private ThreadLocal<Transformer> transformer = new ThreadLocal<Transformer>();
+    private ThreadLocal<Transformer> compactTransformer = new ThreadLocal<Transformer>();
+
+    // Parse errors are reported to the caller as exceptions, so don't print them as well
+    private static final ErrorHandler PARSE_ERRORS = new ErrorHandler() {
+        public void warning(SAXParseException ex) {
+        }
+        public void error(SAXParseException ex) throws SAXException {
+            throw ex;
+        }
+        public void fatalError(SAXParseException ex) throws SAXException {
+            throw ex;
+        }
+    };
+
+    /**
+     * Create a new context using the default XML factory implementations
+     */
+    public XMLContext() {
+        documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        transformerFactory = TransformerFactory.newInstance();
+        
+        // Cryptfiles never need a DTD, so don't resolve one or any external entities
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    /**
+     * Returns the context shared by all cryptfile classes
+     *
+     * @return the shared context
+     */
+    public static synchronized XMLContext getDefault() {
+        if (defaultContext == null)
+            defaultContext = new XMLContext();
+        return defaultContext;
+    }
+
+    // Returns the document builder for the calling thread.  The factories are not
+    // guaranteed to be thread-safe, so creation is serialized on the factory
+    private DocumentBuilder getDocumentBuilder() throws IOException {
+        DocumentBuilder builder = documentBuilder.get();
+        if (builder == null) {
+            try {
+                synchronized (documentBuilderFactory) {
+                    builder = documentBuilderFactory.newDocumentBuilder();
+                }
+            }
+            catch (ParserConfigurationException ex) {
+                throw new IOException("Error creating XML DocumentBuilder: " + ex.getMessage(), ex);
+            }
+            documentBuilder.set(builder);
+        }
+        return builder;
+    }
+
+    // Returns the transformer for the calling thread, configured for cryptfile output
+    private Transformer getTransformer() throws IOException {
+        Transformer tf = transformer.get();
+        if (tf == null) {
+            tf = newTransformer(true);
+            transformer.set(tf);
+        }
+        return tf;
+    }
+
+    // Returns the transformer for the calling thread that writes without indentation
+    private Transformer getCompactTransformer() throws IOException {
+        Transformer tf = compactTransformer.get();
+        if (tf == null) {
+            tf = newTransformer(false);
+            compactTransformer.set(tf);
+        }
+        return tf;
+    }
+
+    private Transformer newTransformer(boolean indent) throws IOException {
+        try {
+            Transformer tf;
+            synchronized (transformerFactory) {
+                tf = transformerFactory.newTransformer();
+            }
+            if (indent)
+                tf.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+            tf.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            tf.setOutputProperty(OutputKeys.INDENT, indent ? "yes" : "no");
+            tf.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            return tf;
+        }
+        catch (TransformerConfigurationException ex) {
+            throw new IOException("Error creating XML Transformer: " + ex.getMessage(), ex);
+        }
+        catch (IllegalArgumentException ex) {
+            throw new IOException("Error creating XML Transformer: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Creates a new XML document
+     *
+     * @return the document
+     * @throws IOException if no document builder could be created
+     */
+    public Document newDocument() throws IOException {
+        return getDocumentBuilder().newDocument();
+    }
+
+    /**
+     * Parses an XML document
+     *
+     * @param is the stream containing the document
+     * @return the document
+     * @throws IOException if the stream could not be read or is not a valid XML document
+     */
+    public Document parse(InputStream is) throws IOException {
+        DocumentBuilder builder = getDocumentBuilder();
+        builder.setErrorHandler(PARSE_ERRORS);
+        try {
+            return builder.parse(is);
+        }
+        catch (SAXException ex) {
+            throw new IOException("Error parsing XML document: " + ex.getMessage(), ex);
+        }
+        finally {
+            builder.reset();
+        }
+    }
+
+    /**
+     * Writes an XML document in properly formatted style with indentation
+     *
+     * @param d the XML document to write
+     * @param os the stream to write the document
+     * @throws IOException if the document could not be written
+     */
+    public void writeXML(Document d, OutputStream os) throws IOException {
+        try {
+            getTransformer().transform(new DOMSource(d), new StreamResult(os));
+        }
+        catch (TransformerException ex) {
+            throw new IOException("Error performing XML transform: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Writes an XML document without indentation or an XML declaration, in the given
+     * encoding.  This is the form in which XML is embedded in binary structures such as PSSH
+     * boxes.
+     *
+     * @param d the XML document to write
+     * @param os the stream to write the document
+     * @param encoding the character encoding, such as "UTF-16LE"
+     * @throws IOException if the document could not be written
+     */
+    public void writeCompactXML(Document d, OutputStream os, String encoding) throws IOException {
+        Transformer tf = getCompactTransformer();
+        try {
+            tf.setOutputProperty(OutputKeys.ENCODING, encoding);
+            tf.transform(new DOMSource(d), new StreamResult(os));
+        }
+        catch (TransformerException ex) {
+            throw new IOException("Error performing XML transform: " + ex.getMessage(), ex);
+        }
+        catch (IllegalArgumentException ex) {
+            throw new IOException("Unsupported XML encoding: " + encoding, ex);
+        }
+    }
+
+    /**
+     * Creates an XML stream writer that formats its output the same way as
+     * {@link #writeXML(Document, OutputStream)}.  The writer buffers its output, so it must
+     * be flushed when the document is complete.
+     *
+     * @param os the stream to write the document
+     * @return the XML stream writer
+     * @throws IOException if the writer could not be created
+     */
+    public XMLStreamWriter createXMLStreamWriter(OutputStream os) throws IOException {
+        return new FormattedXMLStreamWriter(new OutputStreamWriter(os, "UTF-8"));
+    }
+
+    /**
+     * Creates an XML stream reader
+     *
+     * @param is the stream containing the document
+     * @return the XML stream reader
+     * @throws IOException if the reader could not be created
+     */
+    public XMLStreamReader createXMLStreamReader(InputStream is) throws IOException {
+        try {
+            return inputFactory.createXMLStreamReader(is);
+        }
+        catch (XMLStreamException ex) {
+            throw new IOException("Error creating XML stream reader: " + ex.getMessage(), ex);
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.isobmff;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A single ISOBMFF box held in memory.  Container boxes (moov, trak, moof, traf, etc.)
+ * are parsed into a tree of child boxes.  All other boxes are kept as an opaque payload
+ * of bytes following the box header.
+ *
+ * This class is meant for the small metadata boxes that must be modified when encrypting
+ * a file (moov and moof).  Media data boxes should never be loaded with this class.
+ */
+public class Box {
+
+    private String type;
+    private byte[] payload;
+    private List<Box> children;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Size of a compact box header (32-bit size + fourcc)
+     */
+    public static final int HEADER_SIZE = 8;
+
+    /**
+     * Size of a box header that uses the 64-bit "largesize" field
+     */
+    public static final int LARGE_HEADER_SIZE = 16;
+
+    // Box types that contain only other boxes
+    private static final Set<String> CONTAINERS = new HashSet<String>(Arrays.asList(
+            "moov", "trak", "mdia", "minf", "stbl", "mvex", "dinf", "edts",
+            "moof", "traf", "sinf", "schi"));
+
+    /**
+     * Returns whether or not boxes of the given type are parsed as containers
+     *
+     * @param type the box type
+     * @return true if the box type is a container, false otherwise
+     */
+    public static boolean isContainer(String type) {
+        return CONTAINERS.contains(type);
+    }
+
+    /**
+     * Convert 4 bytes of a buffer into a fourcc string
+     *
+     * @param buf the buffer
+     * @param index the index of the first byte of the fourcc
+     * @return the fourcc
+     */
+    public static String fourCC(ByteBuffer buf, int index) {
+        byte[] fcc = new byte[4];
+        for (int i = 0; i < 4; i++)
+            fcc[i] = buf.get(index + i);
+        return new String(fcc, ASCII);
+    }
+
+    /**
+     * Convert a fourcc string into its 4-byte form
+     *
+     * @param fourcc the fourcc
+     * @return the 4 bytes
+     */
+    public static byte[] fourCC(String fourcc) {
+        if (fourcc.length() != 4)
+            throw new IllegalArgumentException("FOURCC is not 4 characters long: " + fourcc);
+        return fourcc.getBytes(ASCII);
+    }
+
+    /**
+     * Create a new leaf box with the given payload
+     *
+     * @param type the box type
+     * @param payload the box payload (everything after the box header)
+     */
+    public Box(String type, byte[] payload) {
+        fourCC(type);
+        this.type = type;
+        this.payload = payload;
+    }
+
+    /**
+     * Create a new, empty container box
+     *
+     * @param type the box type
+     */
+    public Box(String type) {
+        fourCC(type);
+        this.type = type;
+        this.children = new ArrayList<Box>();
+    }
+
+    /**
+     * Parse a box from its payload.  If the box type is a known container, its
+     * children are parsed as well.
+     *
+     * @param type the box type
+     * @param payload the box payload from its current position to its limit
+     * @return the box
+     */
+    public static Box parse(String type, ByteBuffer payload) {
+        if (!isContainer(type)) {
+            byte[] data = new byte[payload.remaining()];
+            payload.get(data);
+            return new Box(type, data);
+        }
+
+        Box box = new Box(type);
+        while (payload.remaining() >= HEADER_SIZE)
+            box.addChild(read(payload));
+        return box;
+    }
+
+    /**
+     * Read a complete box (header and payload) from the given buffer.  The buffer position
+     * is advanced past the end of the box.
+     *
+     * @param buf the buffer positioned at the start of a box header
+     * @return the box
+     */
+    public static Box read(ByteBuffer buf) {
+        int start = buf.position();
+        long size = buf.getInt() & 0xFFFFFFFFL;
+        String type = fourCC(buf, start + 4);
+        buf.position(start + HEADER_SIZE);
+        if (size == 1) {
+            size = buf.getLong();
+        }
+        else if (size == 0) {
+            size = buf.limit() - start;
+        }
+        if (size < buf.position() - start || start + size > buf.limit())
+            throw new IllegalArgumentException("Invalid size for '" + type + "' box: " + size);
+
+        ByteBuffer payload = buf.duplicate();
+        payload.limit((int)(start + size));
+        buf.position((int)(start + size));
+        return parse(type, payload);
+    }
+
+    /**
+     * Returns the box type
+     *
+     * @return the fourcc box type
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Change the type of this box
+     *
+     * @param type the new fourcc box type
+     */
+    public void setType(String type) {
+        fourCC(type);
+        this.type = type;
+    }
+
+    /**
+     * Returns whether or not this box contains child boxes
+     *
+     * @return true if this is a container box, false otherwise
+     */
+    public boolean isContainer() {
+        return children != null;
+    }
+
+    /**
+     * Returns the payload of a leaf box.  The returned array is not copied, so changes
+     * to it will be reflected in the box.
+     *
+     * @return the payload or null if this is a container box
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Replace the payload of a leaf box
+     *
+     * @param payload the new payload
+     */
+    public void setPayload(byte[] payload) {
+        if (children != null)
+            throw new IllegalStateException("Container boxes do not have a payload");
+        this.payload = payload;
+    }
+
+    /**
+     * Returns the child boxes of a container box
+     *
+     * @return the child boxes
+     */
+    public List<Box> getChildren() {
+        return children;
+    }
+
+    /**
+     * Returns the first child box of the given type
+     *
+     * @param type the box type
+     * @return the first child of the given type or null if there are none
+     */
+    public Box getChild(String type) {
+        if (children == null)
+            return null;
+        for (Box b : children) {
+            if (b.type.equals(type))
+                return b;
+        }
+        return null;
+    }
+
+    /**
+     * Returns all child boxes of the given type
+     *
+     * @param type the box type
+     * @return the list of children with the given type
+     */
+    public List<Box> getChildren(String type) {
+        List<Box> retVal = new ArrayList<Box>();
+        if (children == null)
+            return retVal;
+        for (Box b : children) {
+            if (b.type.equals(type))
+                retVal.add(b);
+        }
+        return retVal;
+    }
+
+    /**
+     * Returns the descendant found by following the given box types from this box
+     *
+     * @param path the box types to follow (e.g. "mdia", "minf", "stbl")
+     * @return the descendant or null if not found
+     */
+    public Box find(String... path) {
+        Box b = this;
+        for (String type : path) {
+            b = b.getChild(type);
+            if (b == null)
+                return null;
+        }
+        return b;
+    }
+
+    /**
+     * Add a child box to the end of this container
+     *
+     * @param child the child box
+     */
+    public void addChild(Box child) {
+        if (children == null)
+            throw new IllegalStateException("Can not add children to a leaf box");
+        children.add(child);
+    }
+
+    /**
+     * Returns the size of the payload of this box
+     *
+     * @return the payload size
+     */
+    public long getPayloadSize() {
+        if (children == null)
+            return payload.length;
+        long size = 0;
+        for (Box b : children)
+            size += b.getSize();
+        return size;
+    }
+
+    /**
+     * Returns the total size of this box including its header
+     *
+     * @return the box size
+     */
+    public long getSize() {
+        long payloadSize = getPayloadSize();
+        if (payloadSize + HEADER_SIZE > 0xFFFFFFFFL)
+            return payloadSize + LARGE_HEADER_SIZE;
+        return payloadSize + HEADER_SIZE;
+    }
+
+    /**
+     * Returns the byte offset of the given descendant box from the start of this box
+     *
+     * @param descendant the descendant box
+     * @return the offset or -1 if the box is not a descendant of this box
+     */
+    public long getOffset(Box descendant) {
+        if (children == null)
+            return -1;
+        long offset = getSize() - getPayloadSize();
+        for (Box b : children) {
+            if (b == descendant)
+                return offset;
+            long childOffset = b.getOffset(descendant);
+            if (childOffset != -1)
+                return offset + childOffset;
+            offset += b.getSize();
+        }
+        return -1;
+    }
+
+    /**
+     * Write this box (header and payload) into the given buffer
+     *
+     * @param buf the buffer
+     */
+    public void write(ByteBuffer buf) {
+        long size = getSize();
+        if (size > 0xFFFFFFFFL) {
+            buf.putInt(1);
+            buf.put(fourCC(type));
+            buf.putLong(size);
+        }
+        else {
+            buf.putInt((int)size);
+            buf.put(fourCC(type));
+        }
+        if (children == null) {
+            buf.put(payload);
+        }
+        else {
+            for (Box b : children)
+                b.write(buf);
+        }
+    }
+
+    /**
+     * Returns this box (header and payload) as an array of bytes
+     *
+     * @return the serialized box
+     */
+    public byte[] toByteArray() {
+        ByteBuffer buf = ByteBuffer.allocate((int)getSize());
+        write(buf);
+        return buf.array();
+    }
+}
@@ -0,0 +1,276 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.isobmff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streaming reader for the boxes in a region of an ISOBMFF file.  Only box headers are
+ * read while walking the file, so memory use does not depend on the size of the file or
+ * of any individual box.  Small boxes may be loaded into memory with {@link #readBox()}.
+ * <p>
+ * To use, call {@link #next()} until it returns false and query the header of the
+ * current box after each call.
+ * <p>
+ * Boxes may also be read from a buffer that already holds them in memory, in which case
+ * offsets are indices into the buffer.
+ */
+public class BoxReader {
+
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private long next;
+    private long end;
+    private ByteBuffer header = ByteBuffer.allocate(Box.LARGE_HEADER_SIZE);
+
+    // Current box
+    private String type;
+    private long position = -1;
+    private long size;
+    private int headerSize;
+
+    /**
+     * Create a reader for all top-level boxes in a file
+     *
+     * @param channel the file channel
+     * @throws IOException
+     */
+    public BoxReader(FileChannel channel) throws IOException {
+        this(channel, 0, channel.size());
+    }
+
+    /**
+     * Create a reader for the boxes in a region of a file
+     *
+     * @param channel the file channel
+     * @param start the file offset of the first box header
+     * @param end the file offset just past the last box
+     */
+    public BoxReader(FileChannel channel, long start, long end) {
+        this.channel = channel;
+        this.next = start;
+        this.end = end;
+    }
+
+    /**
+     * Create a reader for the boxes held in a buffer, from its current position to its limit.
+     * The buffer is not modified.
+     *
+     * @param buffer the buffer
+     */
+    public BoxReader(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.next = buffer.position();
+        this.end = buffer.limit();
+    }
+
+    // Create a reader for a region of the same source as the given reader
+    private BoxReader(BoxReader parent, long start, long end) {
+        this.channel = parent.channel;
+        this.buffer = parent.buffer;
+        this.next = start;
+        this.end = end;
+    }
+
+    /**
+     * Advance to the next box and read its header
+     *
+     * @return true if a box was found, false if the end of the region was reached
+     * @throws IOException if the box header could not be read or is invalid
+     */
+    public boolean next() throws IOException {
+        if (next >= end)
+            return false;
+
+        header.clear();
+        if (end - next < header.capacity())
+            header.limit((int)(end - next));
+        if (buffer != null) {
+            fill(header, next);
+        }
+        else {
+            while (header.hasRemaining()) {
+                if (channel.read(header, next + header.position()) < 0)
+                    break;
+            }
+        }
+        header.flip();
+        if (header.remaining() < Box.HEADER_SIZE)
+            throw new IOException("Truncated box header at offset " + next);
+
+        long boxSize = header.getInt(0) & 0xFFFFFFFFL;
+        String boxType = Box.fourCC(header, 4);
+        int boxHeaderSize = Box.HEADER_SIZE;
+        if (boxSize == 1) {
+            if (header.remaining() < Box.LARGE_HEADER_SIZE)
+                throw new IOException("Truncated box header at offset " + next);
+            boxSize = header.getLong(Box.HEADER_SIZE);
+            boxHeaderSize = Box.LARGE_HEADER_SIZE;
+        }
+        else if (boxSize == 0) {
+            boxSize = end - next;
+        }
+        if (boxSize < boxHeaderSize || next + boxSize > end)
+            throw new IOException("Invalid size for '" + boxType + "' box at offset " + next);
+
+        type = boxType;
+        position = next;
+        size = boxSize;
+        headerSize = boxHeaderSize;
+        next += boxSize;
+        return true;
+    }
+
+    /**
+     * Returns the type of the current box
+     *
+     * @return the fourcc box type
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Returns the file offset of the current box header
+     *
+     * @return the box position
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the total size of the current box including its header
+     *
+     * @return the box size
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the size of the header of the current box
+     *
+     * @return the header size
+     */
+    public int getHeaderSize() {
+        return headerSize;
+    }
+
+    /**
+     * Returns the file offset of the payload of the current box
+     *
+     * @return the payload position
+     */
+    public long getPayloadPosition() {
+        return position + headerSize;
+    }
+
+    /**
+     * Returns the size of the payload of the current box
+     *
+     * @return the payload size
+     */
+    public long getPayloadSize() {
+        return size - headerSize;
+    }
+
+    /**
+     * Returns the channel being read
+     *
+     * @return the file channel, or null if boxes are read from a buffer
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns a reader for the children of the current box
+     *
+     * @return the child box reader
+     */
+    public BoxReader children() {
+        return new BoxReader(this, getPayloadPosition(), position + size);
+    }
+
+    /**
+     * Read the payload of the current box into a new heap buffer
+     *
+     * @return the payload
+     * @throws IOException
+     */
+    public ByteBuffer readPayload() throws IOException {
+        if (getPayloadSize() > Integer.MAX_VALUE)
+            throw new IOException("'" + type + "' box is too large to read into memory: " + size);
+        ByteBuffer payload = ByteBuffer.allocate((int)getPayloadSize());
+        read(payload, getPayloadPosition());
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * Load the current box (and its children, if it is a container) into memory
+     *
+     * @return the box
+     * @throws IOException
+     */
+    public Box readBox() throws IOException {
+        return Box.parse(type, readPayload());
+    }
+
+    /**
+     * Fill the given buffer with data from the channel starting at the given file offset
+     *
+     * @param buf the buffer
+     * @param position the file offset
+     * @throws IOException if the end of the file was reached before the buffer was filled
+     */
+    public void read(ByteBuffer buf, long position) throws IOException {
+        if (buffer != null) {
+            if (position < 0 || position + buf.remaining() > buffer.limit())
+                throw new IOException("Unexpected end of buffer at offset " + position);
+            fill(buf, position);
+            return;
+        }
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of file at offset " + position);
+            position += read;
+        }
+    }
+
+    // Copy as much of the source buffer as fits into the given buffer
+    private void fill(ByteBuffer buf, long position) {
+        ByteBuffer src = buffer.duplicate();
+        src.limit((int)Math.min(buffer.limit(), position + buf.remaining()));
+        src.position((int)position);
+        buf.put(src);
+    }
+}
@@ -0,0 +1,70 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.isobmff;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base class for typed views of in-memory boxes.  Views read and write fields directly in
+ * the payload of the underlying {@link Box}, so changes made through a view are reflected
+ * when the box is written.
+ */
+public abstract class BoxView {
+
+    protected Box box;
+
+    /**
+     * Create a view of the given box
+     *
+     * @param box the box
+     * @param type the expected box type
+     */
+    protected BoxView(Box box, String type) {
+        if (box == null || !box.getType().equals(type))
+            throw new IllegalArgumentException("Expected '" + type + "' box: " +
+                                               (box == null ? "null" : box.getType()));
+        this.box = box;
+    }
+
+    /**
+     * Returns the underlying box
+     *
+     * @return the box
+     */
+    public Box getBox() {
+        return box;
+    }
+
+    /**
+     * Returns a buffer over the payload of the underlying leaf box
+     *
+     * @return the payload buffer
+     */
+    protected ByteBuffer payload() {
+        return ByteBuffer.wrap(box.getPayload());
+    }
+}
@@ -0,0 +1,136 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.isobmff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Streaming writer for ISOBMFF files.  Boxes that are not modified can be copied directly
+ * from an input file with {@link #copy(BoxReader)}, which uses
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} so that their payloads
+ * never pass through heap buffers.
+ */
+public class BoxWriter {
+
+    private WritableByteChannel channel;
+    private long position = 0;
+    private ByteBuffer header = ByteBuffer.allocate(Box.LARGE_HEADER_SIZE);
+
+    /**
+     * Create a new writer
+     *
+     * @param channel the channel to write
+     */
+    public BoxWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Returns the number of bytes written so far
+     *
+     * @return the output position
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Write the remaining bytes of the given buffer
+     *
+     * @param buf the buffer
+     * @throws IOException
+     */
+    public void write(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            position += channel.write(buf);
+    }
+
+    /**
+     * Write an in-memory box
+     *
+     * @param box the box
+     * @throws IOException
+     */
+    public void write(Box box) throws IOException {
+        write(ByteBuffer.wrap(box.toByteArray()));
+    }
+
+    /**
+     * Write a box header.  The caller must follow this with exactly <i>payloadSize</i>
+     * bytes of payload.
+     *
+     * @param type the box type
+     * @param payloadSize the size of the payload that will follow
+     * @throws IOException
+     */
+    public void writeHeader(String type, long payloadSize) throws IOException {
+        header.clear();
+        if (payloadSize + Box.HEADER_SIZE > 0xFFFFFFFFL) {
+            header.putInt(1);
+            header.put(Box.fourCC(type));
+            header.putLong(payloadSize + Box.LARGE_HEADER_SIZE);
+        }
+        else {
+            header.putInt((int)(payloadSize + Box.HEADER_SIZE));
+            header.put(Box.fourCC(type));
+        }
+        header.flip();
+        write(header);
+    }
+
+    /**
+     * Copy a region of a file to the output without modification
+     *
+     * @param src the source file
+     * @param srcPosition the file offset of the first byte to copy
+     * @param count the number of bytes to copy
+     * @throws IOException
+     */
+    public void transfer(FileChannel src, long srcPosition, long count) throws IOException {
+        while (count > 0) {
+            long transferred = src.transferTo(srcPosition, count, channel);
+            if (transferred <= 0)
+                throw new IOException("Unexpected end of file at offset " + srcPosition);
+            srcPosition += transferred;
+            count -= transferred;
+            position += transferred;
+        }
+    }
+
+    /**
+     * Copy the current box of the given reader to the output without modification
+     *
+     * @param reader the box reader
+     * @throws IOException
+     */
+    public void copy(BoxReader reader) throws IOException {
+        transfer(reader.getChannel(), reader.getPosition(), reader.getSize());
+    }
+}
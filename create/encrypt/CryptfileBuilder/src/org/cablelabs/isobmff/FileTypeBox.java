@@ -0,0 +1,77 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.isobmff;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * View of a file type ('ftyp') box
+ */
+public class FileTypeBox extends BoxView {
+
+    /**
+     * Create a view of the given box
+     *
+     * @param box the 'ftyp' box
+     */
+    public FileTypeBox(Box box) {
+        super(box, "ftyp");
+    }
+
+    /**
+     * Returns the major brand
+     *
+     * @return the major brand fourcc
+     */
+    public String getMajorBrand() {
+        return Box.fourCC(payload(), 0);
+    }
+
+    /**
+     * Returns the minor version
+     *
+     * @return the minor version
+     */
+    public int getMinorVersion() {
+        return payload().getInt(4);
+    }
+
+    /**
+     * Returns the list of compatible brands
+     *
+     * @return the compatible brand fourccs
+     */
+    public List<String> getCompatibleBrands() {
+        ByteBuffer data = payload();
+        List<String> brands = new ArrayList<String>();
+        for (int i = 8; i + 4 <= data.limit(); i += 4)
+            brands.add(Box.fourCC(data, i));
+        return brands;
+    }
+}
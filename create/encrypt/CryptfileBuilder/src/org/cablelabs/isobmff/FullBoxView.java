@@ -0,0 +1,64 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.isobmff;
+
+/**
+ * Base class for typed views of boxes that start with the "full box" version and
+ * flags fields
+ */
+public abstract class FullBoxView extends BoxView {
+
+    /**
+     * Create a view of the given full box
+     *
+     * @param box the box
+     * @param type the expected box type
+     */
+    protected FullBoxView(Box box, String type) {
+        super(box, type);
+        if (box.getPayload().length < 4)
+            throw new IllegalArgumentException("Truncated '" + type + "' box");
+    }
+
+    /**
+     * Returns the box version
+     *
+     * @return the version
+     */
+    public int getVersion() {
+        return box.getPayload()[0] & 0xFF;
+    }
+
+    /**
+     * Returns the 24-bit box flags
+     *
+     * @return the flags
+     */
+    public int getFlags() {
+        return payload().getInt(0) & 0xFFFFFF;
+    }
+}
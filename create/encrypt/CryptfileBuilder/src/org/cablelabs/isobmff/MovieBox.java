@@ -0,0 +1,84 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.isobmff;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * View of a movie ('moov') box
+ */
+public class MovieBox extends BoxView {
+
+    /**
+     * Create a view of the given box
+     *
+     * @param box the 'moov' box
+     */
+    public MovieBox(Box box) {
+        super(box, "moov");
+    }
+
+    /**
+     * Returns whether or not this movie is fragmented (contains a movie extends box)
+     *
+     * @return true if the movie is fragmented, false otherwise
+     */
+    public boolean isFragmented() {
+        return box.getChild("mvex") != null;
+    }
+
+    /**
+     * Returns all tracks in this movie
+     *
+     * @return the tracks
+     */
+    public List<TrackBox> getTracks() {
+        List<TrackBox> tracks = new ArrayList<TrackBox>();
+        for (Box trak : box.getChildren("trak"))
+            tracks.add(new TrackBox(trak));
+        return tracks;
+    }
+
+    /**
+     * Returns the track extends box for the given track
+     *
+     * @param trackID the track ID
+     * @return the track extends box or null if none exists for the track
+     */
+    public TrackExtendsBox getTrackExtends(int trackID) {
+        Box mvex = box.getChild("mvex");
+        if (mvex == null)
+            return null;
+        for (Box trex : mvex.getChildren("trex")) {
+            TrackExtendsBox t = new TrackExtendsBox(trex);
+            if (t.getTrackID() == trackID)
+                return t;
+        }
+        return null;
+    }
+}
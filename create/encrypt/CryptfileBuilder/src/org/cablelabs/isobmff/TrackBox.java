@@ -0,0 +1,74 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.isobmff;
+
+import java.nio.ByteBuffer;
+
+/**
+ * View of a track ('trak') box
+ */
+public class TrackBox extends BoxView {
+
+    /**
+     * Create a view of the given box
+     *
+     * @param box the 'trak' box
+     */
+    public TrackBox(Box box) {
+        super(box, "trak");
+    }
+
+    /**
+     * Returns the track header
+     *
+     * @return the track header
+     */
+    public TrackHeaderBox getHeader() {
+        return new TrackHeaderBox(box.getChild("tkhd"));
+    }
+
+    /**
+     * Returns the media handler type (e.g. 'vide' or 'soun')
+     *
+     * @return the handler type fourcc or null if no handler box is present
+     */
+    public String getHandlerType() {
+        Box hdlr = box.find("mdia", "hdlr");
+        if (hdlr == null)
+            return null;
+        return Box.fourCC(ByteBuffer.wrap(hdlr.getPayload()), 8);
+    }
+
+    /**
+     * Returns the sample description ('stsd') box
+     *
+     * @return the sample description box or null if not present
+     */
+    public Box getSampleDescription() {
+        return box.find("mdia", "minf", "stbl", "stsd");
+    }
+}
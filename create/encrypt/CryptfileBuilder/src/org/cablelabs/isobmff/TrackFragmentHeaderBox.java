@@ -0,0 +1,138 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.isobmff;
+
+/**
+ * View of a track fragment header ('tfhd') box
+ */
+public class TrackFragmentHeaderBox extends FullBoxView {
+
+    public static final int BASE_DATA_OFFSET_PRESENT         = 0x000001;
+    public static final int SAMPLE_DESCRIPTION_INDEX_PRESENT = 0x000002;
+    public static final int DEFAULT_SAMPLE_DURATION_PRESENT  = 0x000008;
+    public static final int DEFAULT_SAMPLE_SIZE_PRESENT      = 0x000010;
+    public static final int DEFAULT_SAMPLE_FLAGS_PRESENT     = 0x000020;
+    public static final int DURATION_IS_EMPTY                = 0x010000;
+    public static final int DEFAULT_BASE_IS_MOOF             = 0x020000;
+
+    /**
+     * Create a view of the given box
+     *
+     * @param box the 'tfhd' box
+     */
+    public TrackFragmentHeaderBox(Box box) {
+        super(box, "tfhd");
+    }
+
+    /**
+     * Returns the track ID
+     *
+     * @return the track ID
+     */
+    public int getTrackID() {
+        return payload().getInt(4);
+    }
+
+    /**
+     * Returns whether or not an explicit base data offset is present
+     *
+     * @return true if the base data offset is present, false otherwise
+     */
+    public boolean hasBaseDataOffset() {
+        return (getFlags() & BASE_DATA_OFFSET_PRESENT) != 0;
+    }
+
+    /**
+     * Returns the explicit base data offset (an absolute file offset)
+     *
+     * @return the base data offset
+     */
+    public long getBaseDataOffset() {
+        if (!hasBaseDataOffset())
+            throw new IllegalStateException("No base data offset present");
+        return payload().getLong(8);
+    }
+
+    /**
+     * Change the explicit base data offset
+     *
+     * @param offset the new base data offset
+     */
+    public void setBaseDataOffset(long offset) {
+        if (!hasBaseDataOffset())
+            throw new IllegalStateException("No base data offset present");
+        payload().putLong(8, offset);
+    }
+
+    /**
+     * Returns whether or not data offsets are relative to the start of the enclosing
+     * movie fragment box
+     *
+     * @return true if the default-base-is-moof flag is set, false otherwise
+     */
+    public boolean isDefaultBaseMoof() {
+        return (getFlags() & DEFAULT_BASE_IS_MOOF) != 0;
+    }
+
+    /**
+     * Returns the file offset that the data offsets of this track fragment are relative to
+     *
+     * @param moofPosition the file offset of the enclosing movie fragment box
+     * @param previousEnd the file offset of the end of the data of the preceding track fragment
+     * in the same movie fragment, or -1 if this is the first track fragment
+     * @return the explicit base data offset if present, otherwise the start of the movie
+     * fragment for the first track fragment or when the default-base-is-moof flag is set,
+     * otherwise <i>previousEnd</i>
+     */
+    public long getBaseDataOffset(long moofPosition, long previousEnd) {
+        if (hasBaseDataOffset())
+            return getBaseDataOffset();
+        if (isDefaultBaseMoof() || previousEnd < 0)
+            return moofPosition;
+        return previousEnd;
+    }
+
+    /**
+     * Returns the default sample size for this track fragment
+     *
+     * @param trackDefault the default sample size from the track extends box
+     * @return the default sample size if present, otherwise <i>trackDefault</i>
+     */
+    public int getDefaultSampleSize(int trackDefault) {
+        int flags = getFlags();
+        if ((flags & DEFAULT_SAMPLE_SIZE_PRESENT) == 0)
+            return trackDefault;
+        int index = 8;
+        if ((flags & BASE_DATA_OFFSET_PRESENT) != 0)
+            index += 8;
+        if ((flags & SAMPLE_DESCRIPTION_INDEX_PRESENT) != 0)
+            index += 4;
+        if ((flags & DEFAULT_SAMPLE_DURATION_PRESENT) != 0)
+            index += 4;
+        return payload().getInt(index);
+    }
+}
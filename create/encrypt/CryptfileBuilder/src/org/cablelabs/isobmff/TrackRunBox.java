@@ -0,0 +1,124 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.isobmff;
+
+import java.nio.ByteBuffer;
+
+/**
+ * View of a track run ('trun') box
+ */
+public class TrackRunBox extends FullBoxView {
+
+    public static final int DATA_OFFSET_PRESENT                     = 0x000001;
+    public static final int FIRST_SAMPLE_FLAGS_PRESENT              = 0x000004;
+    public static final int SAMPLE_DURATION_PRESENT                 = 0x000100;
+    public static final int SAMPLE_SIZE_PRESENT                     = 0x000200;
+    public static final int SAMPLE_FLAGS_PRESENT                    = 0x000400;
+    public static final int SAMPLE_COMPOSITION_TIME_OFFSETS_PRESENT = 0x000800;
+
+    /**
+     * Create a view of the given box
+     *
+     * @param box the 'trun' box
+     */
+    public TrackRunBox(Box box) {
+        super(box, "trun");
+    }
+
+    /**
+     * Returns the number of samples in this run
+     *
+     * @return the sample count
+     */
+    public int getSampleCount() {
+        return payload().getInt(4);
+    }
+
+    /**
+     * Returns whether or not a data offset is present
+     *
+     * @return true if the data offset is present, false otherwise
+     */
+    public boolean hasDataOffset() {
+        return (getFlags() & DATA_OFFSET_PRESENT) != 0;
+    }
+
+    /**
+     * Returns the data offset of the first sample relative to the track fragment's
+     * base data offset
+     *
+     * @return the data offset
+     */
+    public int getDataOffset() {
+        if (!hasDataOffset())
+            throw new IllegalStateException("No data offset present");
+        return payload().getInt(8);
+    }
+
+    /**
+     * Change the data offset
+     *
+     * @param offset the new data offset
+     */
+    public void setDataOffset(int offset) {
+        if (!hasDataOffset())
+            throw new IllegalStateException("No data offset present");
+        payload().putInt(8, offset);
+    }
+
+    /**
+     * Returns the size of every sample in this run
+     *
+     * @param defaultSize the size of samples when no per-sample size is present
+     * @return the sample sizes
+     */
+    public int[] getSampleSizes(int defaultSize) {
+        ByteBuffer data = payload();
+        int flags = getFlags();
+        int[] sizes = new int[getSampleCount()];
+
+        int index = 8;
+        if ((flags & DATA_OFFSET_PRESENT) != 0)
+            index += 4;
+        if ((flags & FIRST_SAMPLE_FLAGS_PRESENT) != 0)
+            index += 4;
+        for (int i = 0; i < sizes.length; i++) {
+            if ((flags & SAMPLE_DURATION_PRESENT) != 0)
+                index += 4;
+            sizes[i] = defaultSize;
+            if ((flags & SAMPLE_SIZE_PRESENT) != 0) {
+                sizes[i] = data.getInt(index);
+                index += 4;
+            }
+            if ((flags & SAMPLE_FLAGS_PRESENT) != 0)
+                index += 4;
+            if ((flags & SAMPLE_COMPOSITION_TIME_OFFSETS_PRESENT) != 0)
+                index += 4;
+        }
+        return sizes;
+    }
+}
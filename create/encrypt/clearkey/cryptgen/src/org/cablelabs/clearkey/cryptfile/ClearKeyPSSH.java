@@ -26,9 +26,14 @@
 
 package org.cablelabs.clearkey.cryptfile;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.MP4BoxXMLStream;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -36,7 +41,7 @@ import org.w3c.dom.Node;
 /**
  * Abstract base class for CableLabs ClearKey PSSH variants
  */
-public class ClearKeyPSSH extends DRMInfoPSSH {
+public class ClearKeyPSSH extends DRMInfoPSSH implements MP4BoxXMLStream {
     
     private static final byte[] CLEARKEY_SYSTEM_ID = {
         (byte)0x10, (byte)0x77, (byte)0xef, (byte)0xec,
@@ -67,9 +72,28 @@ public class ClearKeyPSSH extends DRMInfoPSSH {
         return e;
     }
 
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#generatePSSHData(java.io.DataOutputStream)
+     */
+    @Override
+    protected void generatePSSHData(DataOutputStream dos) throws IOException {
+        // ClearKey PSSH carries only the key ID list
+    }
+
     @Override
     public Node generateXML(Document d) {
         Element e = generateDRMInfo(d);
         return e;
     }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXMLStream#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        writeDRMInfo(w);
+        w.writeEndElement();
+    }
 }
@@ -27,23 +27,31 @@
 package org.cablelabs.clearkey.cryptgen;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Random;
+import java.util.Set;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 import org.cablelabs.clearkey.cryptfile.ClearKeyPSSH;
+import org.cablelabs.cenc.CencEncryptor;
+import org.cablelabs.cmdline.Batch;
 import org.cablelabs.cmdline.CmdLine;
+import org.cablelabs.cmdline.Server;
 import org.cablelabs.cryptfile.CryptKey;
 import org.cablelabs.cryptfile.CryptTrack;
 import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.CryptfileCache;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.KeyGenerator;
 import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.cryptfile.KeyVault;
 import org.w3c.dom.Document;
 
 /**
@@ -65,6 +73,8 @@ public class CryptfileGen {
             System.out.println("");
             System.out.println("\t\t<keyid_file> is a file that contains a list of key IDs, one pair per line in");
             System.out.println("\t\tGUID form.");
+            System.out.println("\t\tIt may also be a key vault file (see org.cablelabs.cryptfile.KeyVault), in which");
+            System.out.println("\t\tcase every key in the vault is used.");
             System.out.println("");
             System.out.println("\t\t<keyid> is a key ID in GUID form.");
             System.out.println("");
@@ -76,6 +86,19 @@ public class CryptfileGen {
             System.out.println("\t-help");
             System.out.println("\t\tDisplay this usage message.");
             System.out.println("");
+            System.out.println("\t-batch <manifest_file>[,<workers>]");
+            System.out.println("\t\tGenerate a cryptfile for every asset in the manifest within a single run.  Each line of");
+            System.out.println("\t\tthe manifest holds the arguments for one asset, separated by whitespace or as a JSON");
+            System.out.println("\t\tarray of strings.  Up to <workers> assets (default is the number of processors) are");
+            System.out.println("\t\tprocessed at the same time.  Must be the only option given.");
+            System.out.println("");
+            System.out.println("\t-server [<host>:]<port>[,<workers>]");
+            System.out.println("\t\tRun as an HTTP server.  The body of each POST request holds the arguments for one");
+            System.out.println("\t\tcryptfile, in the same form as a -batch manifest line.  POST /cryptfile returns the");
+            System.out.println("\t\tcryptfile and POST /pssh returns its PSSH boxes.  Options that write files are not");
+            System.out.println("\t\tallowed.  <host> defaults to the loopback interface and <workers> to the number of");
+            System.out.println("\t\tprocessors.  Must be the only option given.");
+            System.out.println("");
             System.out.println("\t-out <filename>");
             System.out.println("\t\tIf present, the cryptfile will be written to the given file. Otherwise output will be");
             System.out.println("\t\twritten to stdout.");
@@ -84,6 +107,31 @@ public class CryptfileGen {
             System.out.println("\t\tUsed for rolling keys only.  <sample_count> is the number of consecutive samples to be");
             System.out.println("\t\tencrypted with each key before moving to the next.");
             System.out.println("");
+            System.out.println("\t-encrypt <input_file>,<output_file>");
+            System.out.println("\t\tEncrypt the given fragmented MP4 file directly, without MP4Box.  May be specified");
+            System.out.println("\t\tmultiple times.");
+            System.out.println("");
+            System.out.println("\t-encryptInPlace <file>");
+            System.out.println("\t\tEncrypt the given fragmented MP4 file in place.  The file must reserve space for the");
+            System.out.println("\t\tencryption boxes with 'free' boxes after the 'moov' box and in each 'traf' box.  May be");
+            System.out.println("\t\tspecified multiple times.");
+            System.out.println("");
+            System.out.println("\t-cbcs");
+            System.out.println("\t\tUse the 'cbcs' scheme (AES-CBC with constant 16-byte IVs) instead of 'cenc' (AES-CTR).");
+            System.out.println("\t\tTracks given with -video use a 1:9 pattern.  Every block of other tracks is encrypted.");
+            System.out.println("");
+            System.out.println("\t-video <track_id>[,<track_id>...]");
+            System.out.println("\t\tThe given tracks are video tracks and use pattern encryption with -cbcs.");
+            System.out.println("");
+            System.out.println("\t-threads <count>");
+            System.out.println("\t\tNumber of threads used to encrypt samples with -encrypt.  Defaults to 1.");
+            System.out.println("");
+            System.out.println("\t-cache <dir>[,<max_size_MB>]");
+            System.out.println("\t\tReuse the cryptfile generated by an earlier run with the same arguments, if it is found");
+            System.out.println("\t\tin the given cache directory, instead of generating it again.  New cryptfiles are added");
+            System.out.println("\t\tto the cache, and the least recently used ones are removed once the cache is larger than");
+            System.out.println("\t\t<max_size_MB> (default is 64).");
+            System.out.println("");
             System.out.println("\t-cp");
             System.out.println("\t\tPrint a DASH <ContentProtection> element that can be pasted into the MPD");
         }
@@ -98,15 +146,59 @@ public class CryptfileGen {
 
         CmdLine cmdline = new CmdLine(new Usage());
         
+        // Batch mode runs the tool once for each asset in the manifest
+        String[] subopts;
+        if (args.length > 0 && (subopts = cmdline.checkOption("-batch", args, 0, 1, 2)) != null) {
+            if (args.length != 2)
+                cmdline.errorExit("-batch can not be combined with other arguments");
+            Batch.runAndExit(subopts, new Batch.Job() {
+                public void run(String[] args) {
+                    generate(args, new CmdLine(new Usage(), false));
+                }
+            });
+        }
+        
+        // Server mode generates cryptfiles for HTTP clients until the process is stopped
+        if (args.length > 0 && (subopts = cmdline.checkOption("-server", args, 0, 1, 2)) != null) {
+            if (args.length != 2)
+                cmdline.errorExit("-server can not be combined with other arguments");
+            Server.start(subopts, new Server.Generator() {
+                public CryptfileBuilder generate(String[] args) {
+                    return CryptfileGen.generate(args, new CmdLine(new Usage(), false));
+                }
+            });
+            return;
+        }
+        
+        generate(args, cmdline);
+    }
+    
+    // Generate the cryptfile described by the arguments, write it and encrypt any media
+    // files.  Errors are reported through cmdline
+    private static CryptfileBuilder generate(String[] args, CmdLine cmdline) {
+        
         // Rolling keys
         int rollingKeySamples = -1;
         
         // Print content protection element?
         boolean printCP = false;
         
+        // Files to encrypt natively
+        List<String[]> encryptFiles = new ArrayList<String[]>();
+        List<String> encryptInPlaceFiles = new ArrayList<String>();
+        int encryptThreads = 1;
+        
+        // Use 'cbcs' pattern encryption instead of 'cenc'
+        boolean cbcs = false;
+        Set<Integer> videoTracks = new HashSet<Integer>();
+        
         String outfile = null;
         List<Track> tracks = new ArrayList<Track>();
         
+        // Cryptfile cache directory and size limit
+        String cacheDir = null;
+        long cacheSizeMB = 64;
+        
         // Parse arguments
         for (int i = 0; i < args.length; i++) {
             
@@ -125,6 +217,32 @@ public class CryptfileGen {
                     rollingKeySamples = Integer.parseInt(subopts[0]);
                     i++;
                 }
+                else if ((subopts = cmdline.checkOption("-encrypt", args, i, 2)) != null) {
+                    encryptFiles.add(subopts);
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-encryptInPlace", args, i, 1)) != null) {
+                    encryptInPlaceFiles.add(subopts[0]);
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-cbcs", args, i, 0)) != null) {
+                    cbcs = true;
+                }
+                else if ((subopts = cmdline.checkOption("-video", args, i, 1, Integer.MAX_VALUE)) != null) {
+                    for (String id : subopts)
+                        videoTracks.add(Integer.parseInt(id));
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-threads", args, i, 1)) != null) {
+                    encryptThreads = Integer.parseInt(subopts[0]);
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-cache", args, i, 1, 2)) != null) {
+                    cacheDir = subopts[0];
+                    if (subopts.length > 1)
+                        cacheSizeMB = Long.parseLong(subopts[1]);
+                    i++;
+                }
                 else if ((subopts = cmdline.checkOption("-cp", args, i, 0)) != null) {
                     printCP = true;
                 }
@@ -147,16 +265,27 @@ public class CryptfileGen {
                 // Read key pairs from file
                 if (track_desc[1].startsWith("@")) {
                     String keyfile = track_desc[1].substring(1);
-                    BufferedReader br = new BufferedReader(new FileReader(keyfile));
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        String[] keypair = line.split(":");
-                        if (keypair.length != 2) {
-                            cmdline.errorExit("Illegal keypair from file: " + line);
+                    if (KeyVault.isKeyVault(new File(keyfile))) {
+                        KeyVault vault = new KeyVault(new File(keyfile), true);
+                        try {
+                            t.keypairs.addAll(vault.getKeyPairs());
+                        }
+                        finally {
+                            vault.close();
                         }
-                        t.keypairs.add(new KeyPair(keypair[0], keypair[1]));
                     }
-                    br.close();
+                    else {
+                        BufferedReader br = new BufferedReader(new FileReader(keyfile));
+                        String line;
+                        while ((line = br.readLine()) != null) {
+                            String[] keypair = line.split(":");
+                            if (keypair.length != 2) {
+                                cmdline.errorExit("Illegal keypair from file: " + line);
+                            }
+                            t.keypairs.add(new KeyPair(keypair[0], keypair[1]));
+                        }
+                        br.close();
+                    }
                 }
                 else { // Key pairs on command line
                     String[] keypairsarg = track_desc[1].split(",");
@@ -165,10 +294,7 @@ public class CryptfileGen {
                         if (keypair.length == 2) {
                             t.keypairs.add(new KeyPair(keypair[0], keypair[1]));
                         } else if (keypair.length == 1) {
-                            Random r = new Random();
-                            byte[] key = new byte[16];
-                            r.nextBytes(key);
-                            t.keypairs.add(new KeyPair(keypair[0], key));
+                            t.keypairs.add(new KeyPair(keypair[0], KeyGenerator.getDefault().generateKey()));
                         } else {
                             cmdline.errorExit("Illegal keypair: " + keypairs);
                         }
@@ -188,68 +314,159 @@ public class CryptfileGen {
             }
         }
         
-        List<CryptTrack> cryptTracks = new ArrayList<CryptTrack>();
-        List<KeyPair> keypairs = new ArrayList<KeyPair>(); // Need this for URL-based PSSH
-        for (Track t : tracks) {
-            List<CryptKey> cryptKeys = new ArrayList<CryptKey>();
-            for (KeyPair key : t.keypairs) {
-                cryptKeys.add(new CryptKey(key));
-            }
-            keypairs.addAll(t.keypairs);
-            
-            cryptTracks.add(new CryptTrack(t.id, 8, null, cryptKeys, rollingKeySamples));
+        // Reuse the cryptfile from an earlier run with the same arguments, if there is one
+        CryptfileCache cache = null;
+        String cacheKey = null;
+        CryptfileBuilder cfBuilder = null;
+        if (cacheDir != null) {
+            try {
+                cache = new CryptfileCache(new File(cacheDir), cacheSizeMB * 1024 * 1024);
+                cacheKey = CryptfileCache.requestKey("clearkey", args);
+                cfBuilder = cache.get(cacheKey);
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Could not use cryptfile cache: " + e.getMessage());
+            }
         }
-        
-        ClearKeyPSSH ckPSSH = null;
-        
-        byte[][] keyIDs = new byte[keypairs.size()][];
-        int i = 0;
-        System.out.println("Ensure the following keys are available to the client:");
-        for (KeyPair keypair : keypairs) {
-            System.out.println("\t" + Hex.encodeHexString(keypair.getID()) +
-                               " : " + Hex.encodeHexString(keypair.getKey()) +
-                               " (" + Base64.encodeBase64URLSafeString(keypair.getID()) +
-                               " : " + Base64.encodeBase64URLSafeString(keypair.getKey()) + ")");
-            keyIDs[i++] = keypair.getID();
+        if (cfBuilder != null) {
+            System.out.println("Using cached cryptfile " + cacheKey);
+            List<KeyPair> keypairs = new ArrayList<KeyPair>();
+            for (CryptTrack t : cfBuilder.getTracks()) {
+                for (CryptKey key : t.getKeys())
+                    keypairs.add(key.getKeyPair());
+            }
+            printKeys(keypairs);
+        }
+        else {
+            List<CryptTrack> cryptTracks = new ArrayList<CryptTrack>();
+            List<KeyPair> keypairs = new ArrayList<KeyPair>(); // Need this for URL-based PSSH
+            for (Track t : tracks) {
+                List<CryptKey> cryptKeys = new ArrayList<CryptKey>();
+                for (KeyPair key : t.keypairs) {
+                    cryptKeys.add(new CryptKey(key));
+                }
+                keypairs.addAll(t.keypairs);
+                
+                CryptTrack cryptTrack = new CryptTrack(t.id, cbcs ? 16 : 8, null, cryptKeys, rollingKeySamples, cbcs);
+                if (cbcs && videoTracks.contains(t.id))
+                    cryptTrack.setPattern(CryptfileBuilder.ProtectionScheme.AES_CBCS.getCryptByteBlock(),
+                                          CryptfileBuilder.ProtectionScheme.AES_CBCS.getSkipByteBlock());
+                cryptTracks.add(cryptTrack);
+            }
+            
+            ClearKeyPSSH ckPSSH = null;
+            
+            byte[][] keyIDs = new byte[keypairs.size()][];
+            int i = 0;
+            printKeys(keypairs);
+            for (KeyPair keypair : keypairs) {
+                keyIDs[i++] = keypair.getID();
+            }
+            ckPSSH = new ClearKeyPSSH(keyIDs);
+            
+            List<DRMInfoPSSH> psshList = new ArrayList<DRMInfoPSSH>();
+            psshList.add(ckPSSH);
+            
+            cfBuilder = new CryptfileBuilder(cbcs ? CryptfileBuilder.ProtectionScheme.AES_CBCS :
+                                                    CryptfileBuilder.ProtectionScheme.AES_CTR,
+                                             cryptTracks, psshList);
+            
+            if (cache != null) {
+                try {
+                    cache.put(cacheKey, cfBuilder);
+                }
+                catch (IOException e) {
+                    System.err.println("Could not add cryptfile to cache: " + e.getMessage());
+                }
+            }
         }
-        System.out.println("");
-        ckPSSH = new ClearKeyPSSH(keyIDs);
-        
-        List<DRMInfoPSSH> psshList = new ArrayList<DRMInfoPSSH>();
-        psshList.add(ckPSSH);
         
         // Print ContentProtection element
         if (printCP) {
             System.out.println("############# Content Protection Element #############");
-            for (DRMInfoPSSH pssh : psshList) {
-                Document d = CryptfileBuilder.newDocument();
+            for (DRMInfoPSSH pssh : cfBuilder.getPSSH()) {
                 try {
+                    Document d = CryptfileBuilder.newDocument();
                     d.appendChild(pssh.generateContentProtection(d));
+                    CryptfileBuilder.writeXML(d, System.out);
                 }
                 catch (IOException e) {
                     System.out.println("Could not generate ContentProtection element!");
-                    continue;
                 }
-                CryptfileBuilder.writeXML(d, System.out);
             }
             System.out.println("######################################################");
         }
         
-        CryptfileBuilder cfBuilder = new CryptfileBuilder(CryptfileBuilder.ProtectionScheme.AES_CTR,
-                                                          cryptTracks, psshList);
-        
         // Write the output
-        Document d = cfBuilder.buildCryptfile();
-        CryptfileBuilder.writeXML(d, System.out);
+        try {
+            cfBuilder.writeCryptfile(System.out);
+        }
+        catch (IOException e) {
+            cmdline.errorExit("Could not write cryptfile: " + e.getMessage());
+        }
         if (outfile != null) {
             try {
                 System.out.println("Writing cryptfile to: " + outfile);
-                CryptfileBuilder.writeXML(d, new FileOutputStream(outfile));
+                FileOutputStream fos = new FileOutputStream(outfile);
+                try {
+                    cfBuilder.writeCryptfile(fos);
+                }
+                finally {
+                    fos.close();
+                }
             }
             catch (FileNotFoundException e) {
                 cmdline.errorExit("Could not open output file (" + outfile + ") for writing");
             }
+            catch (IOException e) {
+                cmdline.errorExit("Could not write cryptfile: " + e.getMessage());
+            }
+        }
+        
+        // Encrypt media files
+        for (String[] files : encryptFiles) {
+            try {
+                System.out.println("Encrypting " + files[0] + " to " + files[1]);
+                CencEncryptor encryptor = new CencEncryptor(cfBuilder);
+                encryptor.setParallelism(encryptThreads);
+                encryptor.encrypt(new File(files[0]), new File(files[1]));
+            }
+            catch (IllegalArgumentException e) {
+                cmdline.errorExit("Can not encrypt " + files[0] + " -- " + e.getMessage());
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Error encrypting " + files[0] + " -- " + e.getMessage());
+            }
         }
+        for (String file : encryptInPlaceFiles) {
+            try {
+                System.out.println("Encrypting " + file + " in place");
+                CencEncryptor encryptor = new CencEncryptor(cfBuilder);
+                encryptor.setParallelism(encryptThreads);
+                encryptor.encryptInPlace(new File(file));
+            }
+            catch (IllegalArgumentException e) {
+                cmdline.errorExit("Can not encrypt " + file + " -- " + e.getMessage());
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Error encrypting " + file + " -- " + e.getMessage());
+            }
+        }
+        
+        return cfBuilder;
+    }
+    
+    // Print the keys that the client must be given, in hex and in the base64url form used
+    // by ClearKey license responses
+    private static void printKeys(List<KeyPair> keypairs) {
+        System.out.println("Ensure the following keys are available to the client:");
+        for (KeyPair keypair : keypairs) {
+            System.out.println("\t" + Hex.encodeHexString(keypair.getID()) +
+                               " : " + Hex.encodeHexString(keypair.getKey()) +
+                               " (" + Base64.encodeBase64URLSafeString(keypair.getID()) +
+                               " : " + Base64.encodeBase64URLSafeString(keypair.getKey()) + ")");
+        }
+        System.out.println("");
     }
 
 }
@@ -49,6 +49,13 @@ public class AuthAPI {
     
     
     private static final String AUTH_API_LOGIN = "/cas/v1/tickets";
+    
+    // All API calls share a single pooled client, so connections to the DRMToday servers are
+    // kept alive and reused from one request (and one asset) to the next
+    private static final CloseableHttpClient client = HttpClients.custom()
+            .setMaxConnPerRoute(16)
+            .setMaxConnTotal(32)
+            .build();
 
     private String ticketURL;
     
@@ -74,8 +81,6 @@ public class AuthAPI {
      */
     public void login() throws Exception {
         
-        CloseableHttpClient client = HttpClients.createDefault();
-        
         HttpPost post = new HttpPost("https://" + authHost + AUTH_API_LOGIN);
         post.addHeader(contentTypeHdr);
         post.addHeader(hostHdr);
@@ -92,6 +97,7 @@ public class AuthAPI {
             resp = client.execute(post);
             if (resp.getStatusLine().getStatusCode() == 201) {
                 ticketURL = resp.getFirstHeader("location").getValue();
+                EntityUtils.consume(resp.getEntity());
                 System.out.println("Login success! Ticket Location = " + ticketURL);
             } else {
                 throw new Exception("Login API received status code " + resp.getStatusLine().getStatusCode());
@@ -105,6 +111,15 @@ public class AuthAPI {
         
     }
     
+    /**
+     * Returns the HTTP client shared by all DRMToday API calls
+     * 
+     * @return the shared client
+     */
+    static CloseableHttpClient getClient() {
+        return client;
+    }
+    
     /**
      * Returns a ticket for the given service
      * 
@@ -116,7 +131,6 @@ public class AuthAPI {
         if (ticketURL == null)
             throw new IllegalAccessException("Must call DRMToday Login API before requesting ticket!");
         
-        CloseableHttpClient client = HttpClients.createDefault();
         HttpPost post = new HttpPost(ticketURL);
         post.addHeader(contentTypeHdr);
         post.addHeader(hostHdr);
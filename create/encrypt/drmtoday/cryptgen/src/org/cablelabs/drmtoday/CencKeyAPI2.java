@@ -32,7 +32,6 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.util.EntityUtils;
 
@@ -78,7 +77,7 @@ public class CencKeyAPI2 {
         builder.setParameter("ticket", keyIngestTicket);
         
         // Create HTTP POST
-        CloseableHttpClient client = HttpClients.createDefault();
+        CloseableHttpClient client = AuthAPI.getClient();
         String urlStr = builder.build().toString();
         HttpPost post = new HttpPost(urlStr);
         post.addHeader(contentTypeHdr);
@@ -29,14 +29,18 @@ package org.cablelabs.drmtoday.cryptfile;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.cablelabs.cryptfile.Bitstream;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.MP4BoxXMLStream;
 import org.cablelabs.drmtoday.PsshData;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
-public class DRMTodayPSSH extends DRMInfoPSSH {
+public class DRMTodayPSSH extends DRMInfoPSSH implements MP4BoxXMLStream {
     
     private PsshData data;
     
@@ -78,4 +82,17 @@ public class DRMTodayPSSH extends DRMInfoPSSH {
         e.appendChild(b.generateXML(d));
         return e;
     }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXMLStream#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        writeDRMInfo(w);
+        Bitstream b = new Bitstream();
+        b.setupDataB64(data.getData());
+        b.writeXML(w);
+        w.writeEndElement();
+    }
 }
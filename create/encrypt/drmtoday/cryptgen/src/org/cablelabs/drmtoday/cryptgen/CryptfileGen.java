@@ -27,23 +27,31 @@
 package org.cablelabs.drmtoday.cryptgen;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 import org.cablelabs.primetime.cryptfile.PrimetimePSSH;
 import org.cablelabs.clearkey.cryptfile.ClearKeyPSSH;
+import org.cablelabs.cenc.CencEncryptor;
+import org.cablelabs.cmdline.Batch;
 import org.cablelabs.cmdline.CmdLine;
+import org.cablelabs.cmdline.Server;
 import org.cablelabs.cryptfile.CryptKey;
 import org.cablelabs.cryptfile.CryptTrack;
 import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.CryptfileCache;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.KeyGenerator;
 import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.cryptfile.KeyVault;
 import org.cablelabs.drmtoday.AuthAPI;
 import org.cablelabs.drmtoday.CencKeyAPI2;
 import org.cablelabs.drmtoday.CencKeysV2;
@@ -96,11 +104,27 @@ public class CryptfileGen {
             System.out.println("\t<track_type> is one of AUDIO, VIDEO, or VIDEO_AUDIO describing the content type of the");
             System.out.println("\tassociated track");
             System.out.println("");
+            System.out.println("\t<keyid_file> is either a text file with one <key_id>=<key> pair per line, or a key");
+            System.out.println("\tvault file (see org.cablelabs.cryptfile.KeyVault) whose keys are all used");
+            System.out.println("");
             System.out.println("\tOPTIONS:");
             System.out.println("");
             System.out.println("\t-help");
             System.out.println("\t\tDisplay this usage message.");
             System.out.println("");
+            System.out.println("\t-batch <manifest_file>[,<workers>]");
+            System.out.println("\t\tGenerate a cryptfile for every asset in the manifest within a single run.  Each line of");
+            System.out.println("\t\tthe manifest holds the arguments for one asset, separated by whitespace or as a JSON");
+            System.out.println("\t\tarray of strings.  Up to <workers> assets (default is the number of processors) are");
+            System.out.println("\t\tprocessed at the same time.  Must be the only option given.");
+            System.out.println("");
+            System.out.println("\t-server [<host>:]<port>[,<workers>]");
+            System.out.println("\t\tRun as an HTTP server.  The body of each POST request holds the arguments for one");
+            System.out.println("\t\tcryptfile, in the same form as a -batch manifest line.  POST /cryptfile returns the");
+            System.out.println("\t\tcryptfile and POST /pssh returns its PSSH boxes.  Options that write files are not");
+            System.out.println("\t\tallowed.  <host> defaults to the loopback interface and <workers> to the number of");
+            System.out.println("\t\tprocessors.  Must be the only option given.");
+            System.out.println("");
             System.out.println("\t-out <filename>");
             System.out.println("\t\tIf present, the cryptfile will be written to the given file. Otherwise output will be");
             System.out.println("\t\twritten to stdout");
@@ -126,6 +150,28 @@ public class CryptfileGen {
             System.out.println("\t-pt");
             System.out.println("\t\tAdd Primetime PSSH to the cryptfile.");
             System.out.println("");
+            System.out.println("\t-encrypt <input_file>,<output_file>");
+            System.out.println("\t\tEncrypt the given fragmented MP4 file directly, without MP4Box.  May be specified");
+            System.out.println("\t\tmultiple times.");
+            System.out.println("");
+            System.out.println("\t-encryptInPlace <file>");
+            System.out.println("\t\tEncrypt the given fragmented MP4 file in place.  The file must reserve space for the");
+            System.out.println("\t\tencryption boxes with 'free' boxes after the 'moov' box and in each 'traf' box.  May be");
+            System.out.println("\t\tspecified multiple times.");
+            System.out.println("");
+            System.out.println("\t-cbcs");
+            System.out.println("\t\tUse the 'cbcs' scheme (AES-CBC with constant 16-byte IVs) instead of 'cenc' (AES-CTR).");
+            System.out.println("\t\tAll but AUDIO tracks use a 1:9 pattern.  Every block of AUDIO tracks is encrypted.");
+            System.out.println("");
+            System.out.println("\t-threads <count>");
+            System.out.println("\t\tNumber of threads used to encrypt samples with -encrypt.  Defaults to 1.");
+            System.out.println("");
+            System.out.println("\t-cache <dir>[,<max_size_MB>]");
+            System.out.println("\t\tReuse the cryptfile generated by an earlier run with the same arguments, if it is found");
+            System.out.println("\t\tin the given cache directory, instead of generating it again.  New cryptfiles are added");
+            System.out.println("\t\tto the cache, and the least recently used ones are removed once the cache is larger than");
+            System.out.println("\t\t<max_size_MB> (default is 64).");
+            System.out.println("");
             System.out.println("\t-cp");
             System.out.println("\t\tPrint a DASH <ContentProtection> element (for each DRM) that can be pasted into the MPD");
         }
@@ -185,6 +231,37 @@ public class CryptfileGen {
     public static void main(String[] args) {
         
         CmdLine cmdline = new CmdLine(new Usage());
+        
+        // Batch mode runs the tool once for each asset in the manifest
+        String[] subopts;
+        if (args.length > 0 && (subopts = cmdline.checkOption("-batch", args, 0, 1, 2)) != null) {
+            if (args.length != 2)
+                cmdline.errorExit("-batch can not be combined with other arguments");
+            Batch.runAndExit(subopts, new Batch.Job() {
+                public void run(String[] args) {
+                    generate(args, new CmdLine(new Usage(), false));
+                }
+            });
+        }
+        
+        // Server mode generates cryptfiles for HTTP clients until the process is stopped
+        if (args.length > 0 && (subopts = cmdline.checkOption("-server", args, 0, 1, 2)) != null) {
+            if (args.length != 2)
+                cmdline.errorExit("-server can not be combined with other arguments");
+            Server.start(subopts, new Server.Generator() {
+                public CryptfileBuilder generate(String[] args) {
+                    return CryptfileGen.generate(args, new CmdLine(new Usage(), false));
+                }
+            });
+            return;
+        }
+        
+        generate(args, cmdline);
+    }
+    
+    // Generate the cryptfile described by the arguments, write it and encrypt any media
+    // files.  Errors are reported through cmdline
+    private static CryptfileBuilder generate(String[] args, CmdLine cmdline) {
 
         // DRMToday login properties file
         String dtPropsFile = null;
@@ -206,8 +283,20 @@ public class CryptfileGen {
         // Print content protection element?
         boolean printCP = false;
         
+        // Files to encrypt natively
+        List<String[]> encryptFiles = new ArrayList<String[]>();
+        List<String> encryptInPlaceFiles = new ArrayList<String>();
+        int encryptThreads = 1;
+        
+        // Use 'cbcs' pattern encryption instead of 'cenc'
+        boolean cbcs = false;
+        
         Track[] trackList = new Track[StreamType.NUM_TYPES.ordinal()];
 
+        // Cryptfile cache directory and size limit
+        String cacheDir = null;
+        long cacheSizeMB = 64;
+        
         // Parse arguments
         for (int i = 0; i < args.length; i++) {
             
@@ -239,6 +328,27 @@ public class CryptfileGen {
                 else if ((subopts = cmdline.checkOption("-pt", args, i, 0)) != null) {
                     primetime = true;
                 }
+                else if ((subopts = cmdline.checkOption("-encrypt", args, i, 2)) != null) {
+                    encryptFiles.add(subopts);
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-encryptInPlace", args, i, 1)) != null) {
+                    encryptInPlaceFiles.add(subopts[0]);
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-cbcs", args, i, 0)) != null) {
+                    cbcs = true;
+                }
+                else if ((subopts = cmdline.checkOption("-threads", args, i, 1)) != null) {
+                    encryptThreads = Integer.parseInt(subopts[0]);
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-cache", args, i, 1, 2)) != null) {
+                    cacheDir = subopts[0];
+                    if (subopts.length > 1)
+                        cacheSizeMB = Long.parseLong(subopts[1]);
+                    i++;
+                }
                 else if ((subopts = cmdline.checkOption("-cp", args, i, 0)) != null) {
                     printCP = true;
                 }
@@ -289,20 +399,29 @@ public class CryptfileGen {
                     if (track_desc[1].startsWith("@")) {
                         String keyfile = track_desc[1].substring(1);
                         BufferedReader br = null;
+                        KeyVault vault = null;
                         try {
-                            br = new BufferedReader(new FileReader(keyfile));
-                            String line;
-                            while ((line = br.readLine()) != null) {
-                                String[] key = line.split("=");
-                                if (key.length != 2)
-                                    throw new IllegalArgumentException("Invalid key specification in key file: " + line);
-                                t.keypairs.add(new KeyPair(key[0],key[1]));
+                            if (KeyVault.isKeyVault(new File(keyfile))) {
+                                vault = new KeyVault(new File(keyfile), true);
+                                t.keypairs.addAll(vault.getKeyPairs());
+                            }
+                            else {
+                                br = new BufferedReader(new FileReader(keyfile));
+                                String line;
+                                while ((line = br.readLine()) != null) {
+                                    String[] key = line.split("=");
+                                    if (key.length != 2)
+                                        throw new IllegalArgumentException("Invalid key specification in key file: " + line);
+                                    t.keypairs.add(new KeyPair(key[0],key[1]));
+                                }
                             }
                         } catch (Exception e) {
                             throw new IllegalArgumentException("Error parsing key file! (" + e.getMessage() + ")");
                         } finally {
                             if (br != null)
                                 try { br.close(); } catch (IOException e) { }
+                            if (vault != null)
+                                try { vault.close(); } catch (IOException e) { }
                         }
                     }
                     else { // Key IDs on command line
@@ -316,8 +435,7 @@ public class CryptfileGen {
                     }
                 } else { // Generate random keys
                     int numKeysToGenerate = (rollingKeySamples == 0) ? 1 : numRollingKeys;
-                    for (int k = 0; k < numKeysToGenerate; k++) 
-                        t.keypairs.add(KeyPair.random()); // Create a random key pair
+                    t.keypairs.addAll(Arrays.asList(KeyGenerator.getDefault().generateKeyPairs(numKeysToGenerate)));
                 }
                 trackList[t.streamType.ordinal()] = t;
             }
@@ -347,155 +465,227 @@ public class CryptfileGen {
             cmdline.errorExit("Must specify at least one non-ClearKey DRM!");
         }
         
-        // Login and get ticket for key ingest API
-        AuthAPI drmtodayAuth = new AuthAPI(props.getUsername(), props.getPassword(), props.getAuthHost());
-        try {
-            drmtodayAuth.login();
-            
-        } catch (Exception e) {
-            cmdline.errorExit("Error during DRMToday CAS process! -- " + e.getMessage());
+        // Reuse the cryptfile from an earlier run with the same arguments, if there is one
+        CryptfileCache cache = null;
+        String cacheKey = null;
+        CryptfileBuilder cfBuilder = null;
+        if (cacheDir != null) {
+            try {
+                cache = new CryptfileCache(new File(cacheDir), cacheSizeMB * 1024 * 1024);
+                cacheKey = CryptfileCache.requestKey("drmtoday", args, new File(dtPropsFile));
+                cfBuilder = cache.get(cacheKey);
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Could not use cryptfile cache: " + e.getMessage());
+            }
         }
-        
-        List<DRMInfoPSSH> psshList = new ArrayList<DRMInfoPSSH>();
-        List<CryptTrack> cryptTracks = new ArrayList<CryptTrack>();
-        
-        // Ingest key(s) for each track.  We only do one asset at a time for now
-        CencKeysV2 cencKeys = new CencKeysV2();
-        cencKeys.assets = new CencKeysV2.Asset[1];
-        CencKeysV2.Asset asset = cencKeys.new Asset();
-        cencKeys.assets[0] = asset;
-        asset.assetId = assetId;
-        if (variantId != null) {
-            asset.variantId = variantId;
+        if (cfBuilder != null) {
+            System.out.println("Using cached cryptfile " + cacheKey);
         }
-        CencKeyAPI2 cencKeyAPI = new CencKeyAPI2(drmtodayAuth, props.getFeHost(), props.getMerchant());
-        for (Track t : trackList) {
-            if (t == null)
-                continue;
-
-            List<CryptKey> keyList = new ArrayList<CryptKey>();
-            int rotationId = (t.keypairs.size() == 1) ? -1 : 1;
-            int keyIdx = 0;
-            asset.ingestKeys = new CencKeysV2.IngestKey[t.keypairs.size()];
-            for (KeyPair kp : t.keypairs) {
-                CencKeysV2.IngestKey ingestKey = cencKeys.new IngestKey();
-                ingestKey.streamType = t.streamType.toString();
-                if (rotationId != -1)
-                    ingestKey.keyRotationId = rotationId++;
-                ingestKey.keyId = Base64.encodeBase64String(kp.getID());
-                ingestKey.key = Base64.encodeBase64String(kp.getKey());
-                asset.ingestKeys[keyIdx++] = ingestKey;
-            }
-
+        else {
+            // Login and get ticket for key ingest API
+            AuthAPI drmtodayAuth = new AuthAPI(props.getUsername(), props.getPassword(), props.getAuthHost());
             try {
-                String resp = cencKeyAPI.ingestKey(cencKeys);
+                drmtodayAuth.login();
                 
-                // Parse JSON response
-                JsonParser parser = new JsonParser();
-                JsonArray respAssets = parser.parse(resp).getAsJsonObject().get("assets").getAsJsonArray();
-                if (respAssets.size() != 1)
-                    cmdline.errorExit("Expected only one asset in JSON response, but got " + respAssets.size());
-                JsonObject respAsset = respAssets.get(0).getAsJsonObject();
+            } catch (Exception e) {
+                cmdline.errorExit("Error during DRMToday CAS process! -- " + e.getMessage());
+            }
+            
+            List<DRMInfoPSSH> psshList = new ArrayList<DRMInfoPSSH>();
+            List<CryptTrack> cryptTracks = new ArrayList<CryptTrack>();
+            
+            // Ingest key(s) for each track.  We only do one asset at a time for now
+            CencKeysV2 cencKeys = new CencKeysV2();
+            cencKeys.assets = new CencKeysV2.Asset[1];
+            CencKeysV2.Asset asset = cencKeys.new Asset();
+            cencKeys.assets[0] = asset;
+            asset.assetId = assetId;
+            if (variantId != null) {
+                asset.variantId = variantId;
+            }
+            CencKeyAPI2 cencKeyAPI = new CencKeyAPI2(drmtodayAuth, props.getFeHost(), props.getMerchant());
+            for (Track t : trackList) {
+                if (t == null)
+                    continue;
 
-                // Validate fields and check for errors
-                if (!respAsset.get("assetId").getAsString().equals(assetId))
-                    cmdline.errorExit("Response assetId not what was expected: " + respAsset.get("assetId").getAsString());
-                if (variantId != null && !respAsset.get("variantId").getAsString().equals(variantId)) 
-                    cmdline.errorExit("Response variantId not what was expected: " + respAsset.get("variantId").getAsString());
-                if (respAsset.get("errors") != null && respAsset.get("errors").getAsJsonArray().size() != 0) {
-                    JsonArray errors = respAsset.get("errors").getAsJsonArray();
-                    for (int errIdx = 0; errIdx < errors.size(); errIdx++) {
-                        System.out.println("\t " + errors.get(errIdx).getAsString());
-                    }
-                    cmdline.errorExit("Errors in license ingest response!");
+                List<CryptKey> keyList = new ArrayList<CryptKey>();
+                int rotationId = (t.keypairs.size() == 1) ? -1 : 1;
+                int keyIdx = 0;
+                asset.ingestKeys = new CencKeysV2.IngestKey[t.keypairs.size()];
+                for (KeyPair kp : t.keypairs) {
+                    CencKeysV2.IngestKey ingestKey = cencKeys.new IngestKey();
+                    ingestKey.streamType = t.streamType.toString();
+                    if (rotationId != -1)
+                        ingestKey.keyRotationId = rotationId++;
+                    ingestKey.keyId = Base64.encodeBase64String(kp.getID());
+                    ingestKey.key = Base64.encodeBase64String(kp.getKey());
+                    asset.ingestKeys[keyIdx++] = ingestKey;
                 }
-                
-                JsonArray respKeys = respAsset.get("keys").getAsJsonArray();
-                for (int respKeyIdx = 0; respKeyIdx < respKeys.size(); respKeyIdx++) {
-                    JsonObject respKey = respKeys.get(respKeyIdx).getAsJsonObject();
-                    byte[] key = Base64.decodeBase64(respKey.get("key").getAsString());
-                    byte[] keyID = Base64.decodeBase64(respKey.get("keyId").getAsString());
-                    boolean alreadyExisted = respKey.get("alreadyExisted").getAsBoolean();
-                    if (alreadyExisted) {
-                        System.out.println("WARNING:  KeyID already exists for this asset! " + KeyPair.toGUID(keyID));
+
+                try {
+                    String resp = cencKeyAPI.ingestKey(cencKeys);
+                    
+                    // Parse JSON response
+                    JsonParser parser = new JsonParser();
+                    JsonArray respAssets = parser.parse(resp).getAsJsonObject().get("assets").getAsJsonArray();
+                    if (respAssets.size() != 1)
+                        cmdline.errorExit("Expected only one asset in JSON response, but got " + respAssets.size());
+                    JsonObject respAsset = respAssets.get(0).getAsJsonObject();
+
+                    // Validate fields and check for errors
+                    if (!respAsset.get("assetId").getAsString().equals(assetId))
+                        cmdline.errorExit("Response assetId not what was expected: " + respAsset.get("assetId").getAsString());
+                    if (variantId != null && !respAsset.get("variantId").getAsString().equals(variantId)) 
+                        cmdline.errorExit("Response variantId not what was expected: " + respAsset.get("variantId").getAsString());
+                    if (respAsset.get("errors") != null && respAsset.get("errors").getAsJsonArray().size() != 0) {
+                        JsonArray errors = respAsset.get("errors").getAsJsonArray();
+                        for (int errIdx = 0; errIdx < errors.size(); errIdx++) {
+                            System.out.println("\t " + errors.get(errIdx).getAsString());
+                        }
+                        cmdline.errorExit("Errors in license ingest response!");
                     }
                     
-                    List<PsshData> psshdata = PsshData.parseFromDrmTodayJson(respKey.get("cencResponse").toString());
-                    for (PsshData d : psshdata) {
-                        // Add DRMToday PSSH boxes if requested
-                        if ((WidevinePSSH.isWidevine(d.getSystemID()) && widevine) || 
-                            (PlayReadyPSSH.isPlayReady(d.getSystemID()) && playready) ||
-                            (PrimetimePSSH.isPrimetime(d.getSystemID()) && primetime)) {
-                            psshList.add(new DRMTodayPSSH(d));
+                    JsonArray respKeys = respAsset.get("keys").getAsJsonArray();
+                    for (int respKeyIdx = 0; respKeyIdx < respKeys.size(); respKeyIdx++) {
+                        JsonObject respKey = respKeys.get(respKeyIdx).getAsJsonObject();
+                        byte[] key = Base64.decodeBase64(respKey.get("key").getAsString());
+                        byte[] keyID = Base64.decodeBase64(respKey.get("keyId").getAsString());
+                        boolean alreadyExisted = respKey.get("alreadyExisted").getAsBoolean();
+                        if (alreadyExisted) {
+                            System.out.println("WARNING:  KeyID already exists for this asset! " + KeyPair.toGUID(keyID));
+                        }
+                        
+                        List<PsshData> psshdata = PsshData.parseFromDrmTodayJson(respKey.get("cencResponse").toString());
+                        for (PsshData d : psshdata) {
+                            // Add DRMToday PSSH boxes if requested
+                            if ((WidevinePSSH.isWidevine(d.getSystemID()) && widevine) || 
+                                (PlayReadyPSSH.isPlayReady(d.getSystemID()) && playready) ||
+                                (PrimetimePSSH.isPrimetime(d.getSystemID()) && primetime)) {
+                                psshList.add(new DRMTodayPSSH(d));
+                            }
                         }
+                    
+                        keyList.add(new CryptKey(new KeyPair(keyID, key)));
                     }
-                
-                    keyList.add(new CryptKey(new KeyPair(keyID, key)));
-                }
 
-            }
-            catch (Exception e) {
-                // TODO Auto-generated catch block
-                System.out.println("Error during Cenc key ingest! -- " + e.getMessage());
+                }
+                catch (Exception e) {
+                    // TODO Auto-generated catch block
+                    System.out.println("Error during Cenc key ingest! -- " + e.getMessage());
+                }
+                
+                CryptTrack cryptTrack = new CryptTrack(t.id, cbcs ? 16 : 8, null, keyList, rollingKeySamples, cbcs);
+                if (cbcs && t.streamType != StreamType.AUDIO)
+                    cryptTrack.setPattern(CryptfileBuilder.ProtectionScheme.AES_CBCS.getCryptByteBlock(),
+                                          CryptfileBuilder.ProtectionScheme.AES_CBCS.getSkipByteBlock());
+                cryptTracks.add(cryptTrack);
             }
             
-            cryptTracks.add(new CryptTrack(t.id, 8, null, keyList, rollingKeySamples));
-        }
-        
-        // Add clearkey PSSH if requested
-        if (clearkey) {
-            int keyCount = 0;
-            for (CryptTrack t : cryptTracks) {
-                keyCount += t.getKeys().size();
+            // Add clearkey PSSH if requested
+            if (clearkey) {
+                int keyCount = 0;
+                for (CryptTrack t : cryptTracks) {
+                    keyCount += t.getKeyCount();
+                }
+                byte[][] keyIDs = new byte[keyCount][];
+                int i = 0;
+                System.out.println("Ensure the following keys are available to the client:");
+                for (CryptTrack t : cryptTracks) {
+                    for (CryptKey key : t.getKeys()) {
+                        System.out.println("\t" + Hex.encodeHexString(key.getKeyPair().getID()) +
+                                           " : " + Hex.encodeHexString(key.getKeyPair().getKey()) +
+                                           " (" + Base64.encodeBase64String(key.getKeyPair().getID()) +
+                                           " : " + Base64.encodeBase64String(key.getKeyPair().getKey()) + ")");
+                        keyIDs[i++] = key.getKeyPair().getID();
+                    }
+                }
+                System.out.println("");
+                psshList.add(new ClearKeyPSSH(keyIDs));
             }
-            byte[][] keyIDs = new byte[keyCount][];
-            int i = 0;
-            System.out.println("Ensure the following keys are available to the client:");
-            for (CryptTrack t : cryptTracks) {
-                for (CryptKey key : t.getKeys()) {
-                    System.out.println("\t" + Hex.encodeHexString(key.getKeyPair().getID()) +
-                                       " : " + Hex.encodeHexString(key.getKeyPair().getKey()) +
-                                       " (" + Base64.encodeBase64String(key.getKeyPair().getID()) +
-                                       " : " + Base64.encodeBase64String(key.getKeyPair().getKey()) + ")");
-                    keyIDs[i++] = key.getKeyPair().getID();
+            
+            cfBuilder = new CryptfileBuilder(cbcs ? CryptfileBuilder.ProtectionScheme.AES_CBCS :
+                                                    CryptfileBuilder.ProtectionScheme.AES_CTR,
+                                             cryptTracks, psshList);
+            
+            if (cache != null) {
+                try {
+                    cache.put(cacheKey, cfBuilder);
+                }
+                catch (IOException e) {
+                    System.err.println("Could not add cryptfile to cache: " + e.getMessage());
                 }
             }
-            System.out.println("");
-            psshList.add(new ClearKeyPSSH(keyIDs));
         }
         
         // Print ContentProtection element
         if (printCP) {
             System.out.println("############# Content Protection Element #############");
-            for (DRMInfoPSSH pssh : psshList) {
-                Document d = CryptfileBuilder.newDocument();
+            for (DRMInfoPSSH pssh : cfBuilder.getPSSH()) {
                 try {
+                    Document d = CryptfileBuilder.newDocument();
                     d.appendChild(pssh.generateContentProtection(d));
+                    CryptfileBuilder.writeXML(d, System.out);
                 }
                 catch (IOException e) {
                     System.out.println("Could not generate ContentProtection element!");
-                    continue;
                 }
-                CryptfileBuilder.writeXML(d, System.out);
             }
             System.out.println("######################################################");
         }
         
-        CryptfileBuilder cfBuilder = new CryptfileBuilder(CryptfileBuilder.ProtectionScheme.AES_CTR,
-                                                          cryptTracks, psshList);
-        
         // Write the output
-        Document d = cfBuilder.buildCryptfile();
-        CryptfileBuilder.writeXML(d, System.out);
         try {
+            cfBuilder.writeCryptfile(System.out);
             if (outfile != null) {
                 System.out.println("Writing cryptfile to: " + outfile);
-                CryptfileBuilder.writeXML(d, new FileOutputStream(outfile));
+                FileOutputStream fos = new FileOutputStream(outfile);
+                try {
+                    cfBuilder.writeCryptfile(fos);
+                }
+                finally {
+                    fos.close();
+                }
             }
         }
         catch (FileNotFoundException e) {
             cmdline.errorExit("Could not open output file (" + outfile + ") for writing");
         }
+        catch (IOException e) {
+            cmdline.errorExit("Could not write cryptfile: " + e.getMessage());
+        }
+        
+        // Encrypt media files
+        for (String[] files : encryptFiles) {
+            try {
+                System.out.println("Encrypting " + files[0] + " to " + files[1]);
+                CencEncryptor encryptor = new CencEncryptor(cfBuilder);
+                encryptor.setParallelism(encryptThreads);
+                encryptor.encrypt(new File(files[0]), new File(files[1]));
+            }
+            catch (IllegalArgumentException e) {
+                cmdline.errorExit("Can not encrypt " + files[0] + " -- " + e.getMessage());
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Error encrypting " + files[0] + " -- " + e.getMessage());
+            }
+        }
+        for (String file : encryptInPlaceFiles) {
+            try {
+                System.out.println("Encrypting " + file + " in place");
+                CencEncryptor encryptor = new CencEncryptor(cfBuilder);
+                encryptor.setParallelism(encryptThreads);
+                encryptor.encryptInPlace(new File(file));
+            }
+            catch (IllegalArgumentException e) {
+                cmdline.errorExit("Can not encrypt " + file + " -- " + e.getMessage());
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Error encrypting " + file + " -- " + e.getMessage());
+            }
+        }
+        
         
+        return cfBuilder;
     }
 }
@@ -0,0 +1,268 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.playready;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Derives PlayReady content keys and their checksums from a key seed for large numbers of
+ * key IDs, such as the keys of every segment of an asset with per-segment key rotation.
+ * <p>
+ * Each thread keeps its own SHA-256 digests and AES cipher, which are reused for every key
+ * it derives rather than looked up again for each one.  Key IDs are divided between
+ * worker threads when there are enough of them to be worth it.  The keys are the same as
+ * those created one at a time by {@link PlayReadyKeyPair#PlayReadyKeyPair(String, byte[])}.
+ */
+public class PlayReadyKeyDerivation {
+
+    // Below this many key IDs per thread, starting the threads costs more than it saves
+    private static final int MIN_KEYS_PER_THREAD = 1024;
+
+    private static final int SHA256_SIZE = 32;
+    private static final int KEY_SIZE = 16;
+    private static final int CHECKSUM_SIZE = 8;
+
+    private byte[] keySeed;
+    private int threads;
+
+    // Digests, cipher and buffers for a single thread
+    private static class Engine {
+        MessageDigest shaA;
+        MessageDigest shaB;
+        Cipher aes;
+        byte[] hashA = new byte[SHA256_SIZE];
+        byte[] hashB = new byte[SHA256_SIZE];
+        byte[] hashC = new byte[SHA256_SIZE];
+        byte[] block = new byte[KEY_SIZE];
+
+        Engine() {
+            try {
+                shaA = MessageDigest.getInstance("SHA-256");
+                shaB = MessageDigest.getInstance("SHA-256");
+                aes = Cipher.getInstance("AES/ECB/NoPadding");
+            }
+            catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Java Virtual Machine does not support SHA-256 and AES/ECB: " +
+                                                e.getMessage(), e);
+            }
+        }
+
+        // Generate the key from the MS-encoded key ID according to the Microsoft-documented
+        // algorithm.  The key is the XOR of both halves of three hashes:
+        //     - Key Seed, Key ID
+        //     - Key Seed, Key ID, Key Seed
+        //     - Key Seed, Key ID, Key Seed, Key ID
+        // The last two share everything up to the second key seed, so the third hash
+        // continues from a copy of the second
+        byte[] generateKey(byte[] mskeyID, byte[] keySeed) {
+            try {
+                shaA.update(keySeed);
+                shaA.update(mskeyID);
+                shaA.digest(hashA, 0, SHA256_SIZE);
+
+                shaB.update(keySeed);
+                shaB.update(mskeyID);
+                shaB.update(keySeed);
+                MessageDigest shaC = (MessageDigest)shaB.clone();
+                shaB.digest(hashB, 0, SHA256_SIZE);
+                shaC.update(mskeyID);
+                shaC.digest(hashC, 0, SHA256_SIZE);
+            }
+            catch (CloneNotSupportedException e) {
+                throw new IllegalStateException("SHA-256 digest cannot be copied", e);
+            }
+            catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Error generating key: " + e.getMessage(), e);
+            }
+
+            byte[] key = new byte[KEY_SIZE];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = (byte)(hashA[i] ^ hashA[i + key.length] ^
+                                hashB[i] ^ hashB[i + key.length] ^
+                                hashC[i] ^ hashC[i + key.length]);
+            }
+            return key;
+        }
+
+        // Generate the key/keyID checksum according to the Microsoft documentation: the
+        // first 8 bytes of the MS-encoded key ID encrypted with the key
+        byte[] generateChecksum(byte[] mskeyID, byte[] key) {
+            try {
+                aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+                aes.doFinal(mskeyID, 0, block.length, block, 0);
+            }
+            catch (GeneralSecurityException e) {
+                throw new IllegalArgumentException("Error generating key checksum: " + e.getMessage(), e);
+            }
+            byte[] checksum = new byte[CHECKSUM_SIZE];
+            System.arraycopy(block, 0, checksum, 0, CHECKSUM_SIZE);
+            return checksum;
+        }
+    }
+
+    private static final ThreadLocal<Engine> engine = new ThreadLocal<Engine>() {
+        @Override
+        protected Engine initialValue() {
+            return new Engine();
+        }
+    };
+
+    /**
+     * Create a key derivation for the key seed used by the Microsoft test server, using as
+     * many threads as there are available processors
+     */
+    public PlayReadyKeyDerivation() {
+        this(PlayReadyKeyPair.DEFAULT_KEY_SEED);
+    }
+
+    /**
+     * Create a key derivation for the given key seed, using as many threads as there are
+     * available processors
+     *
+     * @param keySeed the key seed
+     */
+    public PlayReadyKeyDerivation(byte[] keySeed) {
+        this(keySeed, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a key derivation for the given key seed
+     *
+     * @param keySeed the key seed
+     * @param threads the maximum number of threads used to derive keys
+     */
+    public PlayReadyKeyDerivation(byte[] keySeed, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Key derivation thread count must be at least 1");
+        this.keySeed = keySeed.clone();
+        this.threads = threads;
+    }
+
+    /**
+     * Derive the key for a single key ID
+     *
+     * @param keyID the 16-byte key ID
+     * @return the key pair
+     */
+    public PlayReadyKeyPair derive(byte[] keyID) {
+        return derive(engine.get(), keyID, keySeed);
+    }
+
+    /**
+     * Derive the keys for a list of key IDs
+     *
+     * @param keyIDs the 16-byte key IDs
+     * @return the key pairs, in the same order as the key IDs
+     */
+    public List<PlayReadyKeyPair> derive(List<byte[]> keyIDs) {
+        PlayReadyKeyPair[] keys = derive(keyIDs.toArray(new byte[keyIDs.size()][]));
+        List<PlayReadyKeyPair> list = new ArrayList<PlayReadyKeyPair>(keys.length);
+        for (PlayReadyKeyPair key : keys)
+            list.add(key);
+        return list;
+    }
+
+    /**
+     * Derive the keys for an array of key IDs
+     *
+     * @param keyIDs the 16-byte key IDs
+     * @return the key pairs, in the same order as the key IDs
+     * @throws IllegalArgumentException if any key ID is not 16 bytes long
+     */
+    public PlayReadyKeyPair[] derive(final byte[][] keyIDs) {
+        final PlayReadyKeyPair[] keys = new PlayReadyKeyPair[keyIDs.length];
+        int workers = Math.min(threads, keyIDs.length / MIN_KEYS_PER_THREAD);
+        if (workers <= 1) {
+            deriveRange(keyIDs, keys, 0, keyIDs.length);
+            return keys;
+        }
+
+        // Each worker derives a contiguous range of keys
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>(workers);
+            for (int i = 0; i < workers; i++) {
+                final int start = (int)((long)keyIDs.length * i / workers);
+                final int end = (int)((long)keyIDs.length * (i + 1) / workers);
+                results.add(pool.submit(new Callable<Void>() {
+                    public Void call() {
+                        deriveRange(keyIDs, keys, start, end);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results)
+                result.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Key derivation interrupted");
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        return keys;
+    }
+
+    private void deriveRange(byte[][] keyIDs, PlayReadyKeyPair[] keys, int start, int end) {
+        Engine e = engine.get();
+        for (int i = start; i < end; i++)
+            keys[i] = derive(e, keyIDs[i], keySeed);
+    }
+
+    private static PlayReadyKeyPair derive(Engine e, byte[] keyID, byte[] keySeed) {
+        byte[] mskeyID = PlayReadyKeyPair.binaryEncodeMSGUID(keyID);
+        byte[] key = e.generateKey(mskeyID, keySeed);
+        return new PlayReadyKeyPair(keyID.clone(), mskeyID, key, e.generateChecksum(mskeyID, key), keySeed);
+    }
+
+    // Derivation of single keys for PlayReadyKeyPair, sharing the calling thread's engine
+
+    static byte[] generateKey(byte[] mskeyID, byte[] keySeed) {
+        return engine.get().generateKey(mskeyID, keySeed);
+    }
+
+    static byte[] generateChecksum(byte[] mskeyID, byte[] key) {
+        return engine.get().generateChecksum(mskeyID, key);
+    }
+}
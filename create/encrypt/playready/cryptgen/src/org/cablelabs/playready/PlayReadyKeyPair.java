@@ -26,17 +26,6 @@
 
 package org.cablelabs.playready;
 
-import java.security.InvalidKeyException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.SecretKeySpec;
-
 import org.cablelabs.cryptfile.KeyPair;
 
 /**
@@ -51,7 +40,7 @@ public class PlayReadyKeyPair extends KeyPair {
     private byte[] checksum;
     
     // Default key seed is the one used by the Microsoft test server
-    private byte[] keySeed = {
+    static final byte[] DEFAULT_KEY_SEED = {
             (byte)0x5D, (byte)0x50, (byte)0x68, (byte)0xBE,
             (byte)0xC9, (byte)0xB3, (byte)0x84, (byte)0xFF,
             (byte)0x60, (byte)0x44, (byte)0x86, (byte)0x71,
@@ -62,6 +51,8 @@ public class PlayReadyKeyPair extends KeyPair {
             (byte)0x8E, (byte)0x88 
     };
     
+    private byte[] keySeed = DEFAULT_KEY_SEED.clone();
+    
     /**
      * Converts a GUID into the Microsoft-specific binary encoded form as described
      * <a href="http://en.wikipedia.org/wiki/Globally_unique_identifier#Binary_encoding">here</a>
@@ -70,7 +61,7 @@ public class PlayReadyKeyPair extends KeyPair {
      * @param guid the 16-byte GUID
      * @return the binary encoded GUID for little-endian platforms
      */
-    private byte[] binaryEncodeMSGUID(byte[] guid) {
+    static byte[] binaryEncodeMSGUID(byte[] guid) {
         if (guid.length != 16)
             throw new IllegalArgumentException("Illegal GUID length: " + guid.length);
         
@@ -91,80 +82,22 @@ public class PlayReadyKeyPair extends KeyPair {
     
     // Generate the key from the key ID according to the Microsoft-documented algorithm
     private static byte[] generateKey(byte[] keyID, byte[] keySeed) {
-        byte[] key = new byte[AES_128_KEYSIZE];
-        
-        try {
-            
-            // First hash is
-            //     - Key Seed
-            //     - Key ID
-            MessageDigest sha256_a = MessageDigest.getInstance("SHA-256");
-            sha256_a.update(keySeed);
-            sha256_a.update(keyID);
-            byte[] sha_a = sha256_a.digest();
-            
-            // Second hash is
-            //     - Key Seed
-            //     - Key ID
-            //     - Key Seed
-            MessageDigest sha256_b = MessageDigest.getInstance("SHA-256");
-            sha256_b.update(keySeed);
-            sha256_b.update(keyID);
-            sha256_b.update(keySeed);
-            byte[] sha_b = sha256_b.digest();
-            
-            // Third hash is
-            //     - Key Seed
-            //     - Key ID
-            //     - Key Seed
-            //     - Key ID
-            MessageDigest sha256_c = MessageDigest.getInstance("SHA-256");
-            sha256_c.update(keySeed);
-            sha256_c.update(keyID);
-            sha256_c.update(keySeed);
-            sha256_c.update(keyID);
-            byte[] sha_c = sha256_c.digest();
-            
-            for (int i = 0; i < AES_128_KEYSIZE; i++) {
-                key[i] = (byte)
-                        (sha_a[i] ^ sha_a[i + AES_128_KEYSIZE] ^
-                        sha_b[i] ^ sha_b[i + AES_128_KEYSIZE] ^
-                        sha_c[i] ^ sha_c[i + AES_128_KEYSIZE]);
-            }
-        }
-        catch (NoSuchAlgorithmException e) {
-            System.out.println("Java Virtual Machine does not support SHA-256 algorithm!");
-        }
-        
-        return key;
+        return PlayReadyKeyDerivation.generateKey(keyID, keySeed);
     }
     
     // Generate the key/keyID checksum according to the Microsoft documentation
     private static byte[] generateChecksum(byte[] mskeyID, byte[] key) {
-        byte[] checksum = null;
-        // Generate checksum
-        try {
-            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
-            SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
-            cipher.init(Cipher.ENCRYPT_MODE, keySpec);
-            checksum = Arrays.copyOf(cipher.doFinal(mskeyID), 8);
-        }
-        catch (NoSuchAlgorithmException e) {
-            System.out.println("Java Virtual Machine does not support AES/ECB cipher!");
-        }
-        catch (NoSuchPaddingException e) {
-            System.out.println("Java Virtual Machine does not support NoPadding!");
-        }
-        catch (InvalidKeyException e) {
-            System.out.println("Invalid key during checksum generation!");
-        }
-        catch (IllegalBlockSizeException e) {
-            System.out.println("Illegal block size exception during checksum generation!");
-        }
-        catch (BadPaddingException e) {
-            System.out.println("Bad padding exception during checksum generation!");
-        }
-        return checksum;
+        return PlayReadyKeyDerivation.generateChecksum(mskeyID, key);
+    }
+    
+    // Create a key that has already been derived by PlayReadyKeyDerivation
+    PlayReadyKeyPair(byte[] keyID, byte[] mskeyID, byte[] key, byte[] checksum, byte[] keySeed) {
+        super();
+        this.keyID = keyID;
+        this.mskeyID = mskeyID;
+        this.key = key;
+        this.checksum = checksum;
+        this.keySeed = keySeed;
     }
     
     /**
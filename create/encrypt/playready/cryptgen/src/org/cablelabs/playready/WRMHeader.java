@@ -27,18 +27,10 @@
 package org.cablelabs.playready;
 
 import java.io.ByteArrayOutputStream;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import java.io.IOException;
 
 import org.apache.commons.codec.binary.Base64;
+import org.cablelabs.cryptfile.XMLContext;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
@@ -98,18 +90,23 @@ public class WRMHeader {
         // here until I have a working test
     }
     
+    /**
+     * Create a new WRM header
+     *
+     * @param version the header version
+     * @param key the key
+     * @param url the license acquisition URL
+     * @throws IllegalStateException if no XML document could be created
+     */
     public WRMHeader(Version version, PlayReadyKeyPair key, String url) {
         
         // Create a new document
-        DocumentBuilder builder = null;
         try {
-            builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            doc = XMLContext.getDefault().newDocument();
         }
-        catch (ParserConfigurationException ex) {
-            System.out.println("Error creating XML DocumentBuilder: " + ex.getMessage());
-            System.exit(1);
+        catch (IOException ex) {
+            throw new IllegalStateException(ex.getMessage(), ex);
         }
-        doc = builder.newDocument();
         
         // Create root element and set namespace and version
         Element root = doc.createElement("WRMHEADER");
@@ -133,39 +130,18 @@ public class WRMHeader {
     /**
      * Returns the WRMHeader data exactly as it should be used in the PlayReady PSSH 
      * 
-     * @return the WRMHeader data
+     * @return the WRMHeader data, UTF-16 little-endian with no declaration and no indenting
+     * @throws IllegalStateException if the header could not be serialized
      */
     public byte[] getWRMHeaderData() {
-        
-        // Setup our transformer to output UTF16 little-endian, with no declaration and no
-        // indenting
-        Transformer tf = null;
-        try {
-            tf = TransformerFactory.newInstance().newTransformer();
-            tf.setOutputProperty(OutputKeys.ENCODING, "UTF-16LE");
-            tf.setOutputProperty(OutputKeys.INDENT, "no");
-            tf.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-        }
-        catch (Exception ex) {
-            System.out.println("Error creating XML Transformer: " + ex.getMessage());
-            System.exit(1);;
-        }
-        
-        byte[] retVal = null;
-        
-        // Write the document to a byte array
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DOMSource source = new DOMSource(doc);
-        StreamResult result = new StreamResult(baos);
         try {
-            tf.transform(source, result);
-            retVal = baos.toByteArray();
+            XMLContext.getDefault().writeCompactXML(doc, baos, "UTF-16LE");
         }
-        catch (TransformerException ex) {
-            System.out.println("Error performing XML transform: " + ex.getMessage());
+        catch (IOException ex) {
+            throw new IllegalStateException(ex.getMessage(), ex);
         }
-        
-        return retVal;
+        return baos.toByteArray();
     }
 
 }
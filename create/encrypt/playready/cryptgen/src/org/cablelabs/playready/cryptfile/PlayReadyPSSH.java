@@ -33,9 +33,13 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.List;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.apache.commons.codec.binary.Base64;
 import org.cablelabs.cryptfile.Bitstream;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.MP4BoxXMLStream;
 import org.cablelabs.playready.WRMHeader;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -44,7 +48,7 @@ import org.w3c.dom.Node;
 /**
  * Generates PlayReady-specific PSSH for MP4Box cryptfiles
  */
-public class PlayReadyPSSH extends DRMInfoPSSH {
+public class PlayReadyPSSH extends DRMInfoPSSH implements MP4BoxXMLStream {
     
     private static final String MSPRO_ELEMENT = "mspr:pro";
     
@@ -228,4 +232,42 @@ public class PlayReadyPSSH extends DRMInfoPSSH {
         
         return e;
     }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXMLStream#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        
+        writeDRMInfo(w);
+        Bitstream b = new Bitstream();
+        
+        // PlayReady Header Object Size field
+        b.setupIntegerLE(proSize, 32);
+        b.writeXML(w);
+        
+        // Number of Records field
+        b.setupIntegerLE(wrmHeaders.size(), 16);
+        b.writeXML(w);
+        
+        for (WRMHeader header : wrmHeaders) {
+            
+            byte[] wrmData = header.getWRMHeaderData();
+            
+            // Record Type (always 1 for WRM Headers)
+            b.setupIntegerLE(1, 16);
+            b.writeXML(w);
+            
+            // Record Length
+            b.setupIntegerLE(wrmData.length, 16);
+            b.writeXML(w);
+            
+            // Data
+            b.setupDataB64(wrmData);
+            b.writeXML(w);
+        }
+        
+        w.writeEndElement();
+    }
 }
@@ -27,21 +27,31 @@
 package org.cablelabs.playready.cryptgen;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 import org.cablelabs.clearkey.cryptfile.ClearKeyPSSH;
+import org.cablelabs.cenc.CencEncryptor;
+import org.cablelabs.cmdline.Batch;
 import org.cablelabs.cmdline.CmdLine;
+import org.cablelabs.cmdline.Server;
 import org.cablelabs.cryptfile.CryptKey;
 import org.cablelabs.cryptfile.CryptTrack;
 import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.CryptfileCache;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.playready.PlayReadyKeyDerivation;
 import org.cablelabs.playready.PlayReadyKeyPair;
 import org.cablelabs.playready.WRMHeader;
 import org.cablelabs.playready.cryptfile.PlayReadyPSSH;
@@ -70,6 +80,19 @@ public class CryptfileGen {
             System.out.println("\t-help");
             System.out.println("\t\tDisplay this usage message.");
             System.out.println("");
+            System.out.println("\t-batch <manifest_file>[,<workers>]");
+            System.out.println("\t\tGenerate a cryptfile for every asset in the manifest within a single run.  Each line of");
+            System.out.println("\t\tthe manifest holds the arguments for one asset, separated by whitespace or as a JSON");
+            System.out.println("\t\tarray of strings.  Up to <workers> assets (default is the number of processors) are");
+            System.out.println("\t\tprocessed at the same time.  Must be the only option given.");
+            System.out.println("");
+            System.out.println("\t-server [<host>:]<port>[,<workers>]");
+            System.out.println("\t\tRun as an HTTP server.  The body of each POST request holds the arguments for one");
+            System.out.println("\t\tcryptfile, in the same form as a -batch manifest line.  POST /cryptfile returns the");
+            System.out.println("\t\tcryptfile and POST /pssh returns its PSSH boxes.  Options that write files are not");
+            System.out.println("\t\tallowed.  <host> defaults to the loopback interface and <workers> to the number of");
+            System.out.println("\t\tprocessors.  Must be the only option given.");
+            System.out.println("");
             System.out.println("\t-out <filename>");
             System.out.println("\t\tIf present, the cryptfile will be written to the given file. Otherwise output will be");
             System.out.println("\t\twritten to stdout.");
@@ -90,6 +113,31 @@ public class CryptfileGen {
             System.out.println("\t-ck");
             System.out.println("\t\tAdd ClearKey PSSH to the cryptfile.");
             System.out.println("");
+            System.out.println("\t-encrypt <input_file>,<output_file>");
+            System.out.println("\t\tEncrypt the given fragmented MP4 file directly, without MP4Box.  May be specified");
+            System.out.println("\t\tmultiple times.");
+            System.out.println("");
+            System.out.println("\t-encryptInPlace <file>");
+            System.out.println("\t\tEncrypt the given fragmented MP4 file in place.  The file must reserve space for the");
+            System.out.println("\t\tencryption boxes with 'free' boxes after the 'moov' box and in each 'traf' box.  May be");
+            System.out.println("\t\tspecified multiple times.");
+            System.out.println("");
+            System.out.println("\t-cbcs");
+            System.out.println("\t\tUse the 'cbcs' scheme (AES-CBC with constant 16-byte IVs) instead of 'cenc' (AES-CTR).");
+            System.out.println("\t\tTracks given with -video use a 1:9 pattern.  Every block of other tracks is encrypted.");
+            System.out.println("");
+            System.out.println("\t-video <track_id>[,<track_id>...]");
+            System.out.println("\t\tThe given tracks are video tracks and use pattern encryption with -cbcs.");
+            System.out.println("");
+            System.out.println("\t-threads <count>");
+            System.out.println("\t\tNumber of threads used to encrypt samples with -encrypt.  Defaults to 1.");
+            System.out.println("");
+            System.out.println("\t-cache <dir>[,<max_size_MB>]");
+            System.out.println("\t\tReuse the cryptfile generated by an earlier run with the same arguments, if it is found");
+            System.out.println("\t\tin the given cache directory, instead of generating it again.  New cryptfiles are added");
+            System.out.println("\t\tto the cache, and the least recently used ones are removed once the cache is larger than");
+            System.out.println("\t\t<max_size_MB> (default is 64).");
+            System.out.println("");
             System.out.println("\t-cp");
             System.out.println("\t\tPrint a DASH <ContentProtection> element that can be pasted into the MPD");
         }
@@ -104,6 +152,37 @@ public class CryptfileGen {
 
         CmdLine cmdline = new CmdLine(new Usage());
         
+        // Batch mode runs the tool once for each asset in the manifest
+        String[] subopts;
+        if (args.length > 0 && (subopts = cmdline.checkOption("-batch", args, 0, 1, 2)) != null) {
+            if (args.length != 2)
+                cmdline.errorExit("-batch can not be combined with other arguments");
+            Batch.runAndExit(subopts, new Batch.Job() {
+                public void run(String[] args) {
+                    generate(args, new CmdLine(new Usage(), false));
+                }
+            });
+        }
+        
+        // Server mode generates cryptfiles for HTTP clients until the process is stopped
+        if (args.length > 0 && (subopts = cmdline.checkOption("-server", args, 0, 1, 2)) != null) {
+            if (args.length != 2)
+                cmdline.errorExit("-server can not be combined with other arguments");
+            Server.start(subopts, new Server.Generator() {
+                public CryptfileBuilder generate(String[] args) {
+                    return CryptfileGen.generate(args, new CmdLine(new Usage(), false));
+                }
+            });
+            return;
+        }
+        
+        generate(args, cmdline);
+    }
+    
+    // Generate the cryptfile described by the arguments, write it and encrypt any media
+    // files.  Errors are reported through cmdline
+    private static CryptfileBuilder generate(String[] args, CmdLine cmdline) {
+        
         // Rolling keys
         int rollingKeySamples = -1;
         
@@ -118,6 +197,19 @@ public class CryptfileGen {
         // Print content protection element?
         boolean printCP = false;
         
+        // Files to encrypt natively
+        List<String[]> encryptFiles = new ArrayList<String[]>();
+        List<String> encryptInPlaceFiles = new ArrayList<String>();
+        int encryptThreads = 1;
+        
+        // Use 'cbcs' pattern encryption instead of 'cenc'
+        boolean cbcs = false;
+        Set<Integer> videoTracks = new HashSet<Integer>();
+        
+        // Cryptfile cache directory and size limit
+        String cacheDir = null;
+        long cacheSizeMB = 64;
+        
         // Parse arguments
         for (int i = 0; i < args.length; i++) {
             
@@ -155,6 +247,32 @@ public class CryptfileGen {
                 else if ((subopts = cmdline.checkOption("-ck", args, i, 0)) != null) {
                     clearkey = true;
                 }
+                else if ((subopts = cmdline.checkOption("-encrypt", args, i, 2)) != null) {
+                    encryptFiles.add(subopts);
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-encryptInPlace", args, i, 1)) != null) {
+                    encryptInPlaceFiles.add(subopts[0]);
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-cbcs", args, i, 0)) != null) {
+                    cbcs = true;
+                }
+                else if ((subopts = cmdline.checkOption("-video", args, i, 1, Integer.MAX_VALUE)) != null) {
+                    for (String id : subopts)
+                        videoTracks.add(Integer.parseInt(id));
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-threads", args, i, 1)) != null) {
+                    encryptThreads = Integer.parseInt(subopts[0]);
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-cache", args, i, 1, 2)) != null) {
+                    cacheDir = subopts[0];
+                    if (subopts.length > 1)
+                        cacheSizeMB = Long.parseLong(subopts[1]);
+                    i++;
+                }
                 else if ((subopts = cmdline.checkOption("-cp", args, i, 0)) != null) {
                     printCP = true;
                 }
@@ -204,80 +322,166 @@ public class CryptfileGen {
             }
         }
         
-        List<WRMHeader> wrmHeaders = new ArrayList<WRMHeader>();
-        List<CryptTrack> cryptTracks = new ArrayList<CryptTrack>();
-        
-        // Build one CryptTrack for every track and gather a list of all
-        // WRMHeaders to put in one PSSH
-        for (Track t : tracks) {
-            List<CryptKey> cryptKeys = new ArrayList<CryptKey>();
-            for (String keyID : t.keyIDs) {
-                PlayReadyKeyPair prKey = new PlayReadyKeyPair(keyID);
-                wrmHeaders.add(new WRMHeader(headerVersion, prKey, url));
-                
-                cryptKeys.add(new CryptKey(prKey));
+        // Reuse the cryptfile from an earlier run with the same arguments, if there is one
+        CryptfileCache cache = null;
+        String cacheKey = null;
+        CryptfileBuilder cfBuilder = null;
+        if (cacheDir != null) {
+            try {
+                cache = new CryptfileCache(new File(cacheDir), cacheSizeMB * 1024 * 1024);
+                cacheKey = CryptfileCache.requestKey("playready", args);
+                cfBuilder = cache.get(cacheKey);
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Could not use cryptfile cache: " + e.getMessage());
             }
-            cryptTracks.add(new CryptTrack(t.id, 8, null, cryptKeys, rollingKeySamples));
         }
-        
-        // Create our PSSH
-        List<DRMInfoPSSH> psshList = new ArrayList<DRMInfoPSSH>();
-        psshList.add(new PlayReadyPSSH(wrmHeaders, PlayReadyPSSH.ContentProtectionType.CENC));
-        
-        // Add clearkey PSSH if requested
-        if (clearkey) {
-            int keyCount = 0;
-            for (CryptTrack t : cryptTracks) {
-                keyCount += t.getKeys().size();
+        if (cfBuilder != null) {
+            System.out.println("Using cached cryptfile " + cacheKey);
+        }
+        else {
+            List<WRMHeader> wrmHeaders = new ArrayList<WRMHeader>();
+            List<CryptTrack> cryptTracks = new ArrayList<CryptTrack>();
+            
+            // Derive the keys of all tracks at once
+            List<byte[]> allKeyIDs = new ArrayList<byte[]>();
+            for (Track t : tracks) {
+                for (String keyID : t.keyIDs) {
+                    try {
+                        allKeyIDs.add(KeyPair.parseGUID(keyID));
+                    }
+                    catch (IllegalArgumentException e) {
+                        cmdline.errorExit("Illegal key ID (" + e.getMessage() + ") -- " + keyID);
+                    }
+                }
             }
-            byte[][] keyIDs = new byte[keyCount][];
-            int i = 0;
-            System.out.println("Ensure the following keys are available to the client:");
-            for (CryptTrack t : cryptTracks) {
-                for (CryptKey key : t.getKeys()) {
-                    System.out.println("\t" + Hex.encodeHexString(key.getKeyPair().getID()) +
-                                       " : " + Hex.encodeHexString(key.getKeyPair().getKey()) +
-                                       " (" + Base64.encodeBase64String(key.getKeyPair().getID()) +
-                                       " : " + Base64.encodeBase64String(key.getKeyPair().getKey()) + ")");
-                    keyIDs[i++] = key.getKeyPair().getID();
+            Iterator<PlayReadyKeyPair> prKeys = new PlayReadyKeyDerivation().derive(allKeyIDs).iterator();
+            
+            // Build one CryptTrack for every track and gather a list of all
+            // WRMHeaders to put in one PSSH
+            for (Track t : tracks) {
+                List<CryptKey> cryptKeys = new ArrayList<CryptKey>();
+                for (int i = 0; i < t.keyIDs.size(); i++) {
+                    PlayReadyKeyPair prKey = prKeys.next();
+                    wrmHeaders.add(new WRMHeader(headerVersion, prKey, url));
+                    
+                    cryptKeys.add(new CryptKey(prKey));
+                }
+                CryptTrack cryptTrack = new CryptTrack(t.id, cbcs ? 16 : 8, null, cryptKeys, rollingKeySamples, cbcs);
+                if (cbcs && videoTracks.contains(t.id))
+                    cryptTrack.setPattern(CryptfileBuilder.ProtectionScheme.AES_CBCS.getCryptByteBlock(),
+                                          CryptfileBuilder.ProtectionScheme.AES_CBCS.getSkipByteBlock());
+                cryptTracks.add(cryptTrack);
+            }
+            
+            // Create our PSSH
+            List<DRMInfoPSSH> psshList = new ArrayList<DRMInfoPSSH>();
+            psshList.add(new PlayReadyPSSH(wrmHeaders, PlayReadyPSSH.ContentProtectionType.CENC));
+            
+            // Add clearkey PSSH if requested
+            if (clearkey) {
+                int keyCount = 0;
+                for (CryptTrack t : cryptTracks) {
+                    keyCount += t.getKeyCount();
+                }
+                byte[][] keyIDs = new byte[keyCount][];
+                int i = 0;
+                System.out.println("Ensure the following keys are available to the client:");
+                for (CryptTrack t : cryptTracks) {
+                    for (CryptKey key : t.getKeys()) {
+                        System.out.println("\t" + Hex.encodeHexString(key.getKeyPair().getID()) +
+                                           " : " + Hex.encodeHexString(key.getKeyPair().getKey()) +
+                                           " (" + Base64.encodeBase64String(key.getKeyPair().getID()) +
+                                           " : " + Base64.encodeBase64String(key.getKeyPair().getKey()) + ")");
+                        keyIDs[i++] = key.getKeyPair().getID();
+                    }
+                }
+                System.out.println("");
+                psshList.add(new ClearKeyPSSH(keyIDs));
+            }
+            
+            // Create the cryptfile builder
+            cfBuilder = new CryptfileBuilder(cbcs ? CryptfileBuilder.ProtectionScheme.AES_CBCS :
+                                                    CryptfileBuilder.ProtectionScheme.AES_CTR,
+                                             cryptTracks, psshList);
+            
+            if (cache != null) {
+                try {
+                    cache.put(cacheKey, cfBuilder);
+                }
+                catch (IOException e) {
+                    System.err.println("Could not add cryptfile to cache: " + e.getMessage());
                 }
             }
-            System.out.println("");
-            psshList.add(new ClearKeyPSSH(keyIDs));
         }
         
         // Print ContentProtection element
         if (printCP) {
             System.out.println("############# Content Protection Element #############");
-            for (DRMInfoPSSH pssh : psshList) {
-                Document d = CryptfileBuilder.newDocument();
+            for (DRMInfoPSSH pssh : cfBuilder.getPSSH()) {
                 try {
+                    Document d = CryptfileBuilder.newDocument();
                     d.appendChild(pssh.generateContentProtection(d));
+                    CryptfileBuilder.writeXML(d, System.out);
                 }
                 catch (IOException e) {
                     System.out.println("Could not generate ContentProtection element!");
-                    continue;
                 }
-                CryptfileBuilder.writeXML(d, System.out);
             }
             System.out.println("######################################################");
         }
         
-        // Create the cryptfile builder
-        CryptfileBuilder cfBuilder = new CryptfileBuilder(CryptfileBuilder.ProtectionScheme.AES_CTR,
-                                                          cryptTracks, psshList);
-        
         // Write the output
-        Document d = cfBuilder.buildCryptfile();
-        CryptfileBuilder.writeXML(d, System.out);
         try {
+            cfBuilder.writeCryptfile(System.out);
             if (outfile != null) {
                 System.out.println("Writing cryptfile to: " + outfile);
-                CryptfileBuilder.writeXML(d, new FileOutputStream(outfile));
+                FileOutputStream fos = new FileOutputStream(outfile);
+                try {
+                    cfBuilder.writeCryptfile(fos);
+                }
+                finally {
+                    fos.close();
+                }
             }
         }
         catch (FileNotFoundException e) {
             cmdline.errorExit("Could not open output file (" + outfile + ") for writing");
         }
+        catch (IOException e) {
+            cmdline.errorExit("Could not write cryptfile: " + e.getMessage());
+        }
+        
+        // Encrypt media files
+        for (String[] files : encryptFiles) {
+            try {
+                System.out.println("Encrypting " + files[0] + " to " + files[1]);
+                CencEncryptor encryptor = new CencEncryptor(cfBuilder);
+                encryptor.setParallelism(encryptThreads);
+                encryptor.encrypt(new File(files[0]), new File(files[1]));
+            }
+            catch (IllegalArgumentException e) {
+                cmdline.errorExit("Can not encrypt " + files[0] + " -- " + e.getMessage());
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Error encrypting " + files[0] + " -- " + e.getMessage());
+            }
+        }
+        for (String file : encryptInPlaceFiles) {
+            try {
+                System.out.println("Encrypting " + file + " in place");
+                CencEncryptor encryptor = new CencEncryptor(cfBuilder);
+                encryptor.setParallelism(encryptThreads);
+                encryptor.encryptInPlace(new File(file));
+            }
+            catch (IllegalArgumentException e) {
+                cmdline.errorExit("Can not encrypt " + file + " -- " + e.getMessage());
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Error encrypting " + file + " -- " + e.getMessage());
+            }
+        }
+        
+        return cfBuilder;
     }
 }
@@ -30,7 +30,6 @@ import java.util.Arrays;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -40,6 +39,7 @@ import javax.crypto.spec.SecretKeySpec;
 import javax.xml.bind.DatatypeConverter;
 
 import org.apache.commons.codec.binary.Base64;
+import org.cablelabs.cryptfile.KeyGenerator;
 
 public class PlayReadyKeygen {
     
@@ -189,9 +189,7 @@ public class PlayReadyKeygen {
         }
         
         // Now generate a random 8-byte IV
-        byte[] iv = new byte[8];
-        SecureRandom sr = new SecureRandom();
-        sr.nextBytes(iv);
+        byte[] iv = KeyGenerator.getDefault().generateIV(8);
             
         System.out.println("===============================================");
         System.out.println("Content key ID = ");
@@ -32,13 +32,17 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.List;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.cablelabs.cryptfile.Bitstream;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.MP4BoxXMLStream;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
-public class PrimetimePSSH extends DRMInfoPSSH {
+public class PrimetimePSSH extends DRMInfoPSSH implements MP4BoxXMLStream {
     
     private static final byte[] PRIMETIME_SYSTEM_ID = {
         (byte)0xf2, (byte)0x39, (byte)0xe7, (byte)0x69,
@@ -98,7 +102,7 @@ public class PrimetimePSSH extends DRMInfoPSSH {
     protected void generatePSSHData(DataOutputStream dos) throws IOException {
         
         // Size is 4-byte "size" + 4-byte "boxtype" + 4-byte "version+flags" + datasize
-        dos.write(12 + accessMetadataBoxData.length);
+        dos.writeInt(12 + accessMetadataBoxData.length);
         
         // boxtype
         dos.write('a'); dos.write('m'); dos.write('e'); dos.write('t');
@@ -138,4 +142,33 @@ public class PrimetimePSSH extends DRMInfoPSSH {
         
         return e;
     }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXMLStream#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        writeDRMInfo(w);
+        Bitstream b = new Bitstream();
+        
+        // Size 
+        b.setupInteger(12 + accessMetadataBoxData.length, 32);
+        b.writeXML(w);
+        
+        // Type
+        char[] amet = {'a','m','e','t'};
+        b.setupFourCC(amet);
+        b.writeXML(w);
+        
+        // Version & Flags
+        b.setupInteger(0, 32);
+        b.writeXML(w);
+        
+        // Box data
+        b.setupData(accessMetadataBoxData);
+        b.writeXML(w);
+        
+        w.writeEndElement();
+    }
 }
@@ -29,8 +29,12 @@ package org.cablelabs.widevine.cryptfile;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.cablelabs.cryptfile.Bitstream;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.MP4BoxXMLStream;
 import org.cablelabs.widevine.proto.WidevinePSSHProtoBuf;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -39,7 +43,7 @@ import org.w3c.dom.Node;
 /**
  * Generates Widevine-specific PSSH for MP4Box cryptfiles
  */
-public class WidevinePSSH extends DRMInfoPSSH {
+public class WidevinePSSH extends DRMInfoPSSH implements MP4BoxXMLStream {
     
     
     private static final byte[] WIDEVINE_SYSTEM_ID = {
@@ -99,4 +103,17 @@ public class WidevinePSSH extends DRMInfoPSSH {
         e.appendChild(b.generateXML(d));
         return e;
     }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXMLStream#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        writeDRMInfo(w);
+        Bitstream b = new Bitstream();
+        b.setupDataB64(psshProto.toByteArray());
+        b.writeXML(w);
+        w.writeEndElement();
+    }
 }
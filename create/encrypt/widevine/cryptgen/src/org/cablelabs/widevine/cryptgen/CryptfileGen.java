@@ -26,6 +26,7 @@
 
 package org.cablelabs.widevine.cryptgen;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -35,10 +36,14 @@ import java.util.List;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 import org.cablelabs.clearkey.cryptfile.ClearKeyPSSH;
+import org.cablelabs.cenc.CencEncryptor;
+import org.cablelabs.cmdline.Batch;
 import org.cablelabs.cmdline.CmdLine;
+import org.cablelabs.cmdline.Server;
 import org.cablelabs.cryptfile.CryptKey;
 import org.cablelabs.cryptfile.CryptTrack;
 import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.CryptfileCache;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
 import org.cablelabs.cryptfile.KeyPair;
 import org.cablelabs.widevine.Track;
@@ -80,6 +85,19 @@ public class CryptfileGen {
             System.out.println("\t-help");
             System.out.println("\t\tDisplay this usage message.");
             System.out.println("");
+            System.out.println("\t-batch <manifest_file>[,<workers>]");
+            System.out.println("\t\tGenerate a cryptfile for every asset in the manifest within a single run.  Each line of");
+            System.out.println("\t\tthe manifest holds the arguments for one asset, separated by whitespace or as a JSON");
+            System.out.println("\t\tarray of strings.  Up to <workers> assets (default is the number of processors) are");
+            System.out.println("\t\tprocessed at the same time.  Must be the only option given.");
+            System.out.println("");
+            System.out.println("\t-server [<host>:]<port>[,<workers>]");
+            System.out.println("\t\tRun as an HTTP server.  The body of each POST request holds the arguments for one");
+            System.out.println("\t\tcryptfile, in the same form as a -batch manifest line.  POST /cryptfile returns the");
+            System.out.println("\t\tcryptfile and POST /pssh returns its PSSH boxes.  Options that write files are not");
+            System.out.println("\t\tallowed.  <host> defaults to the loopback interface and <workers> to the number of");
+            System.out.println("\t\tprocessors.  Must be the only option given.");
+            System.out.println("");
             System.out.println("\t-out <filename>");
             System.out.println("\t\tIf present, the cryptfile will be written to the given file. Otherwise output will be");
             System.out.println("\t\twritten to stdout");
@@ -103,6 +121,28 @@ public class CryptfileGen {
             System.out.println("\t-ck");
             System.out.println("\t\tAdd ClearKey PSSH to the cryptfile.");
             System.out.println("");
+            System.out.println("\t-encrypt <input_file>,<output_file>");
+            System.out.println("\t\tEncrypt the given fragmented MP4 file directly, without MP4Box.  May be specified");
+            System.out.println("\t\tmultiple times.");
+            System.out.println("");
+            System.out.println("\t-encryptInPlace <file>");
+            System.out.println("\t\tEncrypt the given fragmented MP4 file in place.  The file must reserve space for the");
+            System.out.println("\t\tencryption boxes with 'free' boxes after the 'moov' box and in each 'traf' box.  May be");
+            System.out.println("\t\tspecified multiple times.");
+            System.out.println("");
+            System.out.println("\t-cbcs");
+            System.out.println("\t\tUse the 'cbcs' scheme (AES-CBC with constant 16-byte IVs) instead of 'cenc' (AES-CTR).");
+            System.out.println("\t\tHD and SD tracks use a 1:9 pattern.  Every block of AUDIO tracks is encrypted.");
+            System.out.println("");
+            System.out.println("\t-threads <count>");
+            System.out.println("\t\tNumber of threads used to encrypt samples with -encrypt.  Defaults to 1.");
+            System.out.println("");
+            System.out.println("\t-cache <dir>[,<max_size_MB>]");
+            System.out.println("\t\tReuse the cryptfile generated by an earlier run with the same arguments, if it is found");
+            System.out.println("\t\tin the given cache directory, instead of generating it again.  New cryptfiles are added");
+            System.out.println("\t\tto the cache, and the least recently used ones are removed once the cache is larger than");
+            System.out.println("\t\t<max_size_MB> (default is 64).");
+            System.out.println("");
             System.out.println("\t-cp");
             System.out.println("\t\tPrint a DASH <ContentProtection> element that can be pasted into the MPD");
         }
@@ -112,6 +152,37 @@ public class CryptfileGen {
 
         CmdLine cmdline = new CmdLine(new Usage());
         
+        // Batch mode runs the tool once for each asset in the manifest
+        String[] subopts;
+        if (args.length > 0 && (subopts = cmdline.checkOption("-batch", args, 0, 1, 2)) != null) {
+            if (args.length != 2)
+                cmdline.errorExit("-batch can not be combined with other arguments");
+            Batch.runAndExit(subopts, new Batch.Job() {
+                public void run(String[] args) {
+                    generate(args, new CmdLine(new Usage(), false));
+                }
+            });
+        }
+        
+        // Server mode generates cryptfiles for HTTP clients until the process is stopped
+        if (args.length > 0 && (subopts = cmdline.checkOption("-server", args, 0, 1, 2)) != null) {
+            if (args.length != 2)
+                cmdline.errorExit("-server can not be combined with other arguments");
+            Server.start(subopts, new Server.Generator() {
+                public CryptfileBuilder generate(String[] args) {
+                    return CryptfileGen.generate(args, new CmdLine(new Usage(), false));
+                }
+            });
+            return;
+        }
+        
+        generate(args, cmdline);
+    }
+    
+    // Generate the cryptfile described by the arguments, write it and encrypt any media
+    // files.  Errors are reported through cmdline
+    private static CryptfileBuilder generate(String[] args, CmdLine cmdline) {
+        
         // Track list -- one slot for each track type
         Track[] track_args = new Track[TrackType.NUM_TYPES.ordinal()];
         
@@ -131,6 +202,18 @@ public class CryptfileGen {
         // Print content protection element?
         boolean printCP = false;
         
+        // Files to encrypt natively
+        List<String[]> encryptFiles = new ArrayList<String[]>();
+        List<String> encryptInPlaceFiles = new ArrayList<String>();
+        int encryptThreads = 1;
+        
+        // Use 'cbcs' pattern encryption instead of 'cenc'
+        boolean cbcs = false;
+        
+        // Cryptfile cache directory and size limit
+        String cacheDir = null;
+        long cacheSizeMB = 64;
+        
         // Parse arguments
         String content_id_str = null;
         for (int i = 0; i < args.length; i++) {
@@ -160,6 +243,27 @@ public class CryptfileGen {
                     rollingKeySamples = Integer.parseInt(subopts[2]);
                     i++;
                 }
+                else if ((subopts = cmdline.checkOption("-encrypt", args, i, 2)) != null) {
+                    encryptFiles.add(subopts);
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-encryptInPlace", args, i, 1)) != null) {
+                    encryptInPlaceFiles.add(subopts[0]);
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-cbcs", args, i, 0)) != null) {
+                    cbcs = true;
+                }
+                else if ((subopts = cmdline.checkOption("-threads", args, i, 1)) != null) {
+                    encryptThreads = Integer.parseInt(subopts[0]);
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-cache", args, i, 1, 2)) != null) {
+                    cacheDir = subopts[0];
+                    if (subopts.length > 1)
+                        cacheSizeMB = Long.parseLong(subopts[1]);
+                    i++;
+                }
                 else if ((subopts = cmdline.checkOption("-cp", args, i, 0)) != null) {
                     printCP = true;
                 }
@@ -207,113 +311,190 @@ public class CryptfileGen {
             cmdline.errorExit("Must specify at least one track!");
         }
         
-        KeyRequest request = (rollingKeyCount != -1 && rollingKeyStart != -1) ?
-            new KeyRequest(content_id_str, trackList, rollingKeyStart, rollingKeyCount) :
-            new KeyRequest(content_id_str, trackList);
-        if (signingFile != null) {
+        // Reuse the cryptfile from an earlier run with the same arguments, if there is one
+        CryptfileCache cache = null;
+        String cacheKey = null;
+        CryptfileBuilder cfBuilder = null;
+        if (cacheDir != null) {
             try {
-                request.setSigningProperties(signingFile);
+                cache = new CryptfileCache(new File(cacheDir), cacheSizeMB * 1024 * 1024);
+                cacheKey = CryptfileCache.requestKey("widevine", args, (signingFile != null) ?
+                        new File[] { new File(signingFile) } : new File[0]);
+                cfBuilder = cache.get(cacheKey);
             }
-            catch (Exception e) {
-                System.err.println("Error in signing file: " + e.getMessage());
-                System.exit(1);
+            catch (IOException e) {
+                cmdline.errorExit("Could not use cryptfile cache: " + e.getMessage());
             }
         }
-        ResponseMessage m = request.requestKeys();
-        if (m.status != ResponseMessage.StatusCode.OK) {
-            System.err.println("Received error from key server! Code = " + m.status.toString());
-            System.exit(1);
+        if (cfBuilder != null) {
+            System.out.println("Using cached cryptfile " + cacheKey);
         }
-    
-        // The Widevine key server provides the PSSH data directly to us.  Optionally, we could
-        // build our own WidevineCencHeader protobuf object from the information in the response.
-        // For rolling keys it might be a better solution to build our own, since the widevine server
-        // currently sends a new PSSH for every key in every track.  Building our own, we could keep
-        // a single PSSH per track
-        
-        List<DRMInfoPSSH> psshList = new ArrayList<DRMInfoPSSH>();
-        List<CryptTrack> cryptTracks = new ArrayList<CryptTrack>();
-        
-        // Build PSSH's (has to be one for each track in the Widevine world)
-        for (ResponseMessage.Track track : m.tracks) {
-            for (ResponseMessage.Track.PSSH pssh : track.pssh) {
-                
-                // Only widevine DRM for now
-                if (!pssh.drm_type.equalsIgnoreCase("widevine"))
-                    continue;
-                
-                WidevinePSSHProtoBuf.WidevineCencHeader wvPSSH = null;
+        else {
+            KeyRequest request = (rollingKeyCount != -1 && rollingKeyStart != -1) ?
+                new KeyRequest(content_id_str, trackList, rollingKeyStart, rollingKeyCount) :
+                new KeyRequest(content_id_str, trackList);
+            if (signingFile != null) {
                 try {
-                    wvPSSH = WidevinePSSHProtoBuf.WidevineCencHeader.parseFrom(Base64.decodeBase64(pssh.data));
+                    request.setSigningProperties(signingFile);
                 }
-                catch (InvalidProtocolBufferException e) {
-                    cmdline.errorExit("Could not parse PSSH protobuf from key response message");
+                catch (Exception e) {
+                    cmdline.errorExit("Error in signing file: " + e.getMessage());
                 }
-                psshList.add(new WidevinePSSH(wvPSSH));
             }
-                
-            // Get the keys for this track and add to our cryptfile
-            List<CryptKey> keyList = new ArrayList<CryptKey>();
-            keyList.add(new CryptKey(new KeyPair(Base64.decodeBase64(track.key_id),
-                                                 Base64.decodeBase64(track.key))));
-            cryptTracks.add(new CryptTrack(track_args[track.type.ordinal()].id, 8, null,
-                                           keyList, rollingKeySamples));
-        }
+            ResponseMessage m = null;
+            try {
+                m = request.requestKeys();
+            }
+            catch (IOException e) {
+                cmdline.errorExit(e.getMessage());
+            }
+            if (m.status != ResponseMessage.StatusCode.OK) {
+                cmdline.errorExit("Received error from key server! Code = " + m.status.toString());
+            }
         
-        // Add clearkey PSSH if requested
-        if (clearkey) {
-            int keyCount = 0;
-            for (CryptTrack t : cryptTracks) {
-                keyCount += t.getKeys().size();
+            // The Widevine key server provides the PSSH data directly to us.  Optionally, we could
+            // build our own WidevineCencHeader protobuf object from the information in the response.
+            // For rolling keys it might be a better solution to build our own, since the widevine server
+            // currently sends a new PSSH for every key in every track.  Building our own, we could keep
+            // a single PSSH per track
+            
+            List<DRMInfoPSSH> psshList = new ArrayList<DRMInfoPSSH>();
+            List<CryptTrack> cryptTracks = new ArrayList<CryptTrack>();
+            
+            // Build PSSH's (has to be one for each track in the Widevine world)
+            for (ResponseMessage.Track track : m.tracks) {
+                for (ResponseMessage.Track.PSSH pssh : track.pssh) {
+                    
+                    // Only widevine DRM for now
+                    if (!pssh.drm_type.equalsIgnoreCase("widevine"))
+                        continue;
+                    
+                    WidevinePSSHProtoBuf.WidevineCencHeader wvPSSH = null;
+                    try {
+                        wvPSSH = WidevinePSSHProtoBuf.WidevineCencHeader.parseFrom(Base64.decodeBase64(pssh.data));
+                    }
+                    catch (InvalidProtocolBufferException e) {
+                        cmdline.errorExit("Could not parse PSSH protobuf from key response message");
+                    }
+                    psshList.add(new WidevinePSSH(wvPSSH));
+                }
+                    
+                // Get the keys for this track and add to our cryptfile
+                List<CryptKey> keyList = new ArrayList<CryptKey>();
+                keyList.add(new CryptKey(new KeyPair(Base64.decodeBase64(track.key_id),
+                                                     Base64.decodeBase64(track.key))));
+                CryptTrack cryptTrack = new CryptTrack(track_args[track.type.ordinal()].id, cbcs ? 16 : 8, null,
+                                                       keyList, rollingKeySamples, cbcs);
+                if (cbcs && track.type != TrackType.AUDIO)
+                    cryptTrack.setPattern(CryptfileBuilder.ProtectionScheme.AES_CBCS.getCryptByteBlock(),
+                                          CryptfileBuilder.ProtectionScheme.AES_CBCS.getSkipByteBlock());
+                cryptTracks.add(cryptTrack);
             }
-            byte[][] keyIDs = new byte[keyCount][];
-            int i = 0;
-            System.out.println("Ensure the following keys are available to the client:");
-            for (CryptTrack t : cryptTracks) {
-                for (CryptKey key : t.getKeys()) {
-                    System.out.println("\t" + Hex.encodeHexString(key.getKeyPair().getID()) +
-                                       " : " + Hex.encodeHexString(key.getKeyPair().getKey()) +
-                                       " (" + Base64.encodeBase64String(key.getKeyPair().getID()) +
-                                       " : " + Base64.encodeBase64String(key.getKeyPair().getKey()) + ")");
-                    keyIDs[i++] = key.getKeyPair().getID();
+            
+            // Add clearkey PSSH if requested
+            if (clearkey) {
+                int keyCount = 0;
+                for (CryptTrack t : cryptTracks) {
+                    keyCount += t.getKeyCount();
+                }
+                byte[][] keyIDs = new byte[keyCount][];
+                int i = 0;
+                System.out.println("Ensure the following keys are available to the client:");
+                for (CryptTrack t : cryptTracks) {
+                    for (CryptKey key : t.getKeys()) {
+                        System.out.println("\t" + Hex.encodeHexString(key.getKeyPair().getID()) +
+                                           " : " + Hex.encodeHexString(key.getKeyPair().getKey()) +
+                                           " (" + Base64.encodeBase64String(key.getKeyPair().getID()) +
+                                           " : " + Base64.encodeBase64String(key.getKeyPair().getKey()) + ")");
+                        keyIDs[i++] = key.getKeyPair().getID();
+                    }
+                }
+                System.out.println("");
+                psshList.add(new ClearKeyPSSH(keyIDs));
+            }
+            
+            cfBuilder = new CryptfileBuilder(cbcs ? CryptfileBuilder.ProtectionScheme.AES_CBCS :
+                                                    CryptfileBuilder.ProtectionScheme.AES_CTR,
+                                             cryptTracks, psshList);
+            
+            if (cache != null) {
+                try {
+                    cache.put(cacheKey, cfBuilder);
+                }
+                catch (IOException e) {
+                    System.err.println("Could not add cryptfile to cache: " + e.getMessage());
                 }
             }
-            System.out.println("");
-            psshList.add(new ClearKeyPSSH(keyIDs));
         }
         
         // Print ContentProtection element
         if (printCP) {
             System.out.println("############# Content Protection Element #############");
-            for (DRMInfoPSSH pssh : psshList) {
-                Document d = CryptfileBuilder.newDocument();
+            for (DRMInfoPSSH pssh : cfBuilder.getPSSH()) {
                 try {
+                    Document d = CryptfileBuilder.newDocument();
                     d.appendChild(pssh.generateContentProtection(d));
+                    CryptfileBuilder.writeXML(d, System.out);
                 }
                 catch (IOException e) {
                     System.out.println("Could not generate ContentProtection element!");
-                    continue;
                 }
-                CryptfileBuilder.writeXML(d, System.out);
             }
             System.out.println("######################################################");
         }
         
-        CryptfileBuilder cfBuilder = new CryptfileBuilder(CryptfileBuilder.ProtectionScheme.AES_CTR,
-                                                          cryptTracks, psshList);
-        
         // Write the output
-        Document d = cfBuilder.buildCryptfile();
-        CryptfileBuilder.writeXML(d, System.out);
         try {
+            cfBuilder.writeCryptfile(System.out);
             if (outfile != null) {
                 System.out.println("Writing cryptfile to: " + outfile);
-                CryptfileBuilder.writeXML(d, new FileOutputStream(outfile));
+                FileOutputStream fos = new FileOutputStream(outfile);
+                try {
+                    cfBuilder.writeCryptfile(fos);
+                }
+                finally {
+                    fos.close();
+                }
             }
         }
         catch (FileNotFoundException e) {
             cmdline.errorExit("Could not open output file (" + outfile + ") for writing");
         }
+        catch (IOException e) {
+            cmdline.errorExit("Could not write cryptfile: " + e.getMessage());
+        }
+        
+        // Encrypt media files
+        for (String[] files : encryptFiles) {
+            try {
+                System.out.println("Encrypting " + files[0] + " to " + files[1]);
+                CencEncryptor encryptor = new CencEncryptor(cfBuilder);
+                encryptor.setParallelism(encryptThreads);
+                encryptor.encrypt(new File(files[0]), new File(files[1]));
+            }
+            catch (IllegalArgumentException e) {
+                cmdline.errorExit("Can not encrypt " + files[0] + " -- " + e.getMessage());
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Error encrypting " + files[0] + " -- " + e.getMessage());
+            }
+        }
+        for (String file : encryptInPlaceFiles) {
+            try {
+                System.out.println("Encrypting " + file + " in place");
+                CencEncryptor encryptor = new CencEncryptor(cfBuilder);
+                encryptor.setParallelism(encryptThreads);
+                encryptor.encryptInPlace(new File(file));
+            }
+            catch (IllegalArgumentException e) {
+                cmdline.errorExit("Can not encrypt " + file + " -- " + e.getMessage());
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Error encrypting " + file + " -- " + e.getMessage());
+            }
+        }
+        
         
+        return cfBuilder;
     }
 }
@@ -170,8 +170,9 @@ public class KeyRequest {
      * Perform the key request.
      * 
      * @return the response message
+     * @throws IOException if the request could not be signed or sent to the key server
      */
-    public ResponseMessage requestKeys() {
+    public ResponseMessage requestKeys() throws IOException {
         
         int i;
         
@@ -234,8 +235,7 @@ public class KeyRequest {
                 serverURL = license_url;
             }
             catch (Exception e) {
-                System.out.println("Error performing message encryption!  Message = " + e.getMessage());
-                System.exit(1);
+                throw new IOException("Error performing message encryption!  Message = " + e.getMessage(), e);
             }
         } else {
             request.signer = TEST_PROVIDER;
@@ -278,8 +278,7 @@ public class KeyRequest {
             jsonResponseStr = sb.toString();
         }
         catch (Exception e) {
-            System.err.println("Error in HTTP communication! -- " + e.getMessage());
-            System.exit(1);
+            throw new IOException("Error in HTTP communication! -- " + e.getMessage(), e);
         }
         
         Response response = gson.fromJson(jsonResponseStr, Response.class);